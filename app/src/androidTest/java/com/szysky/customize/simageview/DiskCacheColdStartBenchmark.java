@@ -0,0 +1,76 @@
+package com.szysky.customize.simageview;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.szysky.customize.siv.ImageLoader;
+import com.szysky.customize.siv.imgprocess.DefaultImageCache;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 冷启动时创建{@link DefaultImageCache}的耗时. 不是功能测试, 需要在设备上运行, 结果输出到logcat.
+ *
+ * 先通过一个单独的实例写入一定数量的条目, 让磁盘缓存的日志中有内容, 然后统计:
+ *
+ * 1. 进程中第一次调用{@link ImageLoader#getInstance(Context)}的耗时, 其中包括创建DefaultImageCache
+ * 2. 多次创建DefaultImageCache的耗时, 取中位数和最小值
+ * 3. 创建之后到磁盘缓存可以使用的耗时, 也就是打开磁盘缓存本身的耗时
+ *
+ * 磁盘缓存在外部存储中, 需要写外部存储的权限
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiskCacheColdStartBenchmark {
+
+    private static final String TAG = "ColdStartBenchmark";
+
+    private static final int ENTRIES = 4000;
+    private static final int ENTRY_SIZE = 2 * 1024;
+    private static final int ROUNDS = 9;
+
+    @Test
+    public void constructorAndFirstGetInstance() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        // 写入条目, 已经存在的条目会被替换, 日志的大小不变
+        DefaultImageCache filler = new DefaultImageCache(context, null);
+        byte[] data = new byte[ENTRY_SIZE];
+        for (int i = 0; i < ENTRIES; i++) {
+            assertTrue(filler.putRawStream("http://img.example.com/cold-start/" + i + ".jpg", new ByteArrayInputStream(data)));
+        }
+        // 等待日志记录批量写入文件
+        Thread.sleep(1000);
+
+        long start = System.nanoTime();
+        ImageLoader.getInstance(context);
+        double getInstanceMillis = (System.nanoTime() - start) / 1e6;
+
+        double[] constructorMillis = new double[ROUNDS];
+        double[] readyMillis = new double[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            DefaultImageCache cache = new DefaultImageCache(context, null);
+            constructorMillis[round] = (System.nanoTime() - start) / 1e6;
+            while (!cache.isDiskCacheReady()) {
+                Thread.sleep(1);
+            }
+            readyMillis[round] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(constructorMillis);
+        Arrays.sort(readyMillis);
+
+        Log.i(TAG, String.format("条目:%d  第一次getInstance(): %.1fms", ENTRIES, getInstanceMillis));
+        Log.i(TAG, String.format("DefaultImageCache构造: 中位数 %.2fms  最小 %.2fms",
+                constructorMillis[ROUNDS / 2], constructorMillis[0]));
+        Log.i(TAG, String.format("构造到磁盘缓存可用: 中位数 %.1fms  最小 %.1fms",
+                readyMillis[ROUNDS / 2], readyMillis[0]));
+    }
+}
@@ -1,6 +1,8 @@
 package com.szysky.customize.siv;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Handler;
@@ -10,28 +12,37 @@ import android.support.annotation.DrawableRes;
 import android.support.annotation.IntegerRes;
 import android.support.annotation.NonNull;
 
+import com.szysky.customize.siv.imgprocess.BitmapPool;
+import com.szysky.customize.siv.imgprocess.CacheMetadata;
 import com.szysky.customize.siv.imgprocess.DefaultImageCache;
+import com.szysky.customize.siv.imgprocess.FailureCache;
+import com.szysky.customize.siv.imgprocess.FetchResponse;
+import com.szysky.customize.siv.imgprocess.HttpFetcher;
 import com.szysky.customize.siv.imgprocess.IImageCache;
+import com.szysky.customize.siv.imgprocess.InFlightRequests;
+import com.szysky.customize.siv.imgprocess.MemoryKey;
+import com.szysky.customize.siv.imgprocess.PriorityExecutor;
+import com.szysky.customize.siv.imgprocess.PriorityTask;
+import com.szysky.customize.siv.imgprocess.ProcessedKey;
 import com.szysky.customize.siv.imgprocess.db.RequestBean;
 import com.szysky.customize.siv.util.CloseUtil;
 import com.szysky.customize.siv.util.LogUtil;
 import com.szysky.customize.siv.util.SecurityUtil;
-import com.szysky.customize.siv.util.UIUtils;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HostnameVerifier;
@@ -82,6 +93,9 @@ public class ImageLoader {
         mContext = context.getApplicationContext();
         mImageCache = new DefaultImageCache(mContext, this);
 
+        // 系统内存紧张时释放内存缓存, 避免进程被杀死
+        mContext.registerComponentCallbacks(mMemoryCallbacks);
+
         mLoadErrBmp = BitmapFactory.decodeResource(mContext.getResources(), android.R.drawable.ic_menu_close_clear_cancel);
         mLoadingBmp = BitmapFactory.decodeResource(mContext.getResources(), android.R.drawable.stat_notify_sync);
 
@@ -111,11 +125,81 @@ public class ImageLoader {
         return mInstance;
     }
 
+    /**
+     * 获得已经创建的实例, 不会触发创建
+     *
+     * @return 还没有创建时返回null
+     */
+    static ImageLoader peekInstance(){
+        return mInstance;
+    }
+
 
     private static final String TAG = ImageLoader.class.getName();
 
     IImageCache mImageCache ;
 
+    /**
+     * 正在进行中的网络请求表, 用来合并相同url和大小的请求
+     */
+    private final InFlightRequests mInFlightRequests = new InFlightRequests();
+
+    /**
+     * 处于暂停中的tag, 以及暂停期间被挂起的请求
+     */
+    private final HashMap<Object, ArrayList<RequestBean>> mPausedRequests = new HashMap<>();
+
+    /**
+     * 加载失败的url记录, 冷却期间的请求直接返回失败图片
+     */
+    private final FailureCache mFailureCache = new FailureCache();
+
+    /**
+     * 不超过这个大小的图片先下载到内存, 解码和写入磁盘同时进行
+     */
+    private static final int MAX_MEMORY_DOWNLOAD_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * 网络下载的结果: 已经写入磁盘缓存(或者正在后台写入)
+     */
+    private static final int DOWNLOAD_CACHED = 0;
+
+    /**
+     * 网络下载的结果: 网络请求成功, 但是没有写入磁盘缓存(磁盘不可用或者条目正在被写入).
+     * 已经下载到内存的数据通过memoryData交给解码阶段
+     */
+    private static final int DOWNLOAD_NOT_CACHED = 1;
+
+    /**
+     * 网络下载的结果: 网络请求失败
+     */
+    private static final int DOWNLOAD_FAILED = 2;
+
+    /**
+     * 网络请求的实现, 默认使用保持长连接的{@link HttpFetcher}
+     */
+    private volatile Fetcher mFetcher = new HttpFetcher();
+
+    /**
+     * 解码策略: 跟随全局设置, 只能用于控件
+     */
+    public static final int DECODE_POLICY_DEFAULT = -1;
+
+    /**
+     * 解码策略: 全部使用ARGB_8888, 画质最好
+     */
+    public static final int DECODE_POLICY_QUALITY = 0;
+
+    /**
+     * 解码策略: 省内存模式, 不透明的格式(JPEG)使用RGB_565, 占用的内存减半. 可能包含透明像素的格式依然使用ARGB_8888
+     */
+    public static final int DECODE_POLICY_MEMORY_SAVING = 1;
+
+    /**
+     * 全局的解码策略
+     */
+    private volatile int mDecodePolicy = DECODE_POLICY_QUALITY;
+
     /**
      * 设置字节流一次缓冲的数据流大小
      */
@@ -128,34 +212,55 @@ public class ImageLoader {
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
 
     /**
-     * 分别对线程池中的核心线程数, 最大线程数, 最大最大存活定义常量
+     * 图片加载的不同阶段, 每个阶段使用独立的线程池
      */
-    private static final int CORE_POOL_SIZE = CPU_COUNT + 1;
-    private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
+    public static final int STAGE_DISK = 0;
+    public static final int STAGE_NETWORK = 1;
+    public static final int STAGE_DECODE = 2;
+
+    /**
+     * 分别对各个阶段线程池的线程数, 最大存活定义常量
+     * 线程池使用的是无界的优先级队列, 所以最大线程数也就是核心线程数, 空闲线程超时后会被回收
+     *
+     * 磁盘读取很快, 少量线程即可; 网络下载大部分时间阻塞在socket上, 需要限制数量避免占满资源;
+     * 解码属于cpu密集型, 和cpu核数保持一致
+     */
+    private static final int DISK_POOL_SIZE = 2;
+    private static final int NETWORK_POOL_SIZE = Math.max(2, Math.min(CPU_COUNT * 2 + 1, 6));
+    private static final int DECODE_POOL_SIZE = Math.max(1, CPU_COUNT);
     private static final long KEEP_ALIVE = 10L;
+
     /**
      * 创建线程工厂, 提供给ThreadPoolExecutor使用
      */
-    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
-        private final AtomicInteger mCount = new AtomicInteger(1);
+    private static ThreadFactory createThreadFactory(final String stageName){
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                return new Thread(r, "ImageLoader-" + stageName + "#" + mCount.getAndIncrement());
+            }
+        };
+    }
 
-        @Override
-        public Thread newThread(@NonNull Runnable r) {
-            return new Thread(r, "ImageLoader#" + mCount.getAndIncrement());
-        }
-    };
     /**
-     * 创建线程池, 用在异步加载图片时
+     * 创建线程池, 用在异步加载图片时.
+     * 按照请求的优先级调度, 相同优先级默认后进先出, 保证快速滑动之后新绑定的控件优先加载
      */
-    public static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(
-            CORE_POOL_SIZE,
-            MAXIMUM_POOL_SIZE,
-            KEEP_ALIVE,
-            TimeUnit.SECONDS,
-            new LinkedBlockingQueue<Runnable>(),
-            sThreadFactory
+    public static final PriorityExecutor DISK_EXECUTOR = new PriorityExecutor(
+            "disk", DISK_POOL_SIZE, KEEP_ALIVE, createThreadFactory("disk"), true);
+
+    public static final PriorityExecutor NETWORK_EXECUTOR = new PriorityExecutor(
+            "network", NETWORK_POOL_SIZE, KEEP_ALIVE, createThreadFactory("network"), true);
 
-    );
+    public static final PriorityExecutor DECODE_EXECUTOR = new PriorityExecutor(
+            "decode", DECODE_POOL_SIZE, KEEP_ALIVE, createThreadFactory("decode"), true);
+
+    /**
+     * 保留兼容, 等同于网络阶段的线程池
+     */
+    public static final PriorityExecutor THREAD_POOL_EXECUTOR = NETWORK_EXECUTOR;
 
 
 
@@ -167,14 +272,15 @@ public class ImageLoader {
      * @param sImageView  图片设置的控件
      * @param reqWidth  需要大小, 可以为0
      * @param reqHeight 需要大小, 可以为0
+     * @param handle 请求的句柄, 可以为null
      *
      */
-    void setPicture(final String imaUrl, final SImageView sImageView, final int reqWidth, final int reqHeight){
+    void setPicture(final String imaUrl, final SImageView sImageView, final int reqWidth, final int reqHeight, RequestHandle handle){
 
         // 判断图片链接是否符合格式--> http(s)://..... .(jpg|png|bmp|jpeg|gif)
         ArrayList<String> strings = new ArrayList<>();
         strings.add(imaUrl);
-        setMulPicture(strings, sImageView, reqWidth, reqHeight);
+        setMulPicture(strings, sImageView, reqWidth, reqHeight, handle);
 
     }
 
@@ -182,33 +288,45 @@ public class ImageLoader {
      * 下载多张图片的方法
      * 只针对SImageView控件场景使用
      */
-    void setMulPicture(List<String> urls, SImageView sImageView, int reqWidth, int reqHeight){
+    void setMulPicture(List<String> urls, SImageView sImageView, int reqWidth, int reqHeight, RequestHandle handle){
 
         ArrayList<String> strings = new ArrayList<>(urls);
         RequestBean requestBean = RequestBean.obtain(strings, sImageView, reqWidth, reqHeight);
+        requestBean.priority = sImageView.getLoadPriority();
+        requestBean.pauseTag = sImageView.getLoadTag();
+        requestBean.decodeConfig = resolveDecodeConfig(sImageView.getDecodePolicy());
+
+        // 关联请求句柄, 用于后续的取消
+        if (handle != null){
+            requestBean.handle = handle;
+            handle.mBean = requestBean;
+        }
 
         // 进行图片地址有效性匹配
         matchUrlLink(requestBean);
 
 
-        // 首先对单张矩形和圆形的控件类型, 尝试获取曾经剪切好的bitmap
-        if (urls.size() == 1 ){
-            Bitmap commonlyUsedBitmap = getCommonlyUsedBitmap(urls.get(0), sImageView.getDisplayShape(), sImageView.getScaleType(), reqWidth, reqHeight);
-            if (null != commonlyUsedBitmap){
-                LogUtil._i(TAG, "单张矩形类型的特殊缓存获取成功  >> 内存途径 : "+(System.currentTimeMillis() - requestBean.startTime) + " ms");
-                requestBean.addBitmap(requestBean.urls.get(0), commonlyUsedBitmap);
-                sImageView.setImages(requestBean.asListBitmap(), requestBean.urls);
-                return ;
-            }
+        // 首先尝试获取曾经处理好的整张图片(单张图片的形状处理, 多张图片的合成)
+        ProcessedKey processedKey = sImageView.getProcessedKey(urls);
+        Bitmap processed = getProcessedBitmap(processedKey);
+        if (null != processed){
+            LogUtil._i(TAG, "图片的处理结果获取成功  >> 内存途径 : "+(System.currentTimeMillis() - requestBean.startTime) + " ms");
+            sImageView.setProcessedImage(processed, requestBean.urls);
+            markDone(requestBean);
+            return ;
+        }
+        if (mProcessedDiskCache && mImageCache instanceof DefaultImageCache){
+            requestBean.processedKey = processedKey;
         }
 
         // 常规从内存中获取
         for (int i = 0; i < urls.size(); i++) {
-            Bitmap bitmap = mImageCache.get(requestBean.urls.get(i), reqWidth, reqHeight, null, false, null);
+            Bitmap bitmap = mImageCache.get(requestBean.urls.get(i), reqWidth, reqHeight, null, false, requestBean);
             if (null != bitmap){
                 requestBean.addBitmap(requestBean.urls.get(i), bitmap);
-            }else if (reqWidth != 0 && reqHeight != 0){
-                 bitmap = mImageCache.get(requestBean.urls.get(i), 0, 0, null, false, null);
+            }else if (reqWidth != 0 && reqHeight != 0 && !(mImageCache instanceof DefaultImageCache)){
+                // 默认缓存在查询时已经包含了原图等其他尺寸
+                 bitmap = mImageCache.get(requestBean.urls.get(i), 0, 0, null, false, requestBean);
                 if (null != bitmap){
                     requestBean.addBitmap(requestBean.urls.get(i), bitmap);
                 }
@@ -221,6 +339,7 @@ public class ImageLoader {
         if (requestBean.isLoadSuccessful()){
             LogUtil._i(TAG, "多张图片的获取时间  >> 内存途径 : "+(System.currentTimeMillis() - requestBean.startTime) + " ms");
             sImageView.setImages(requestBean.asListBitmap(), requestBean.urls);
+            markDone(requestBean);
             return ;
         }
 
@@ -233,8 +352,10 @@ public class ImageLoader {
             sImageView.setBitmap(mLoadingBmp);
         }
 
-        // 开始从磁盘缓存获取
-        mImageCache.get(null, requestBean.reqWidth, requestBean.reqHeight, null,true, requestBean);
+        // 开始从磁盘缓存获取, 请求所在的tag已经暂停的话, 等待恢复之后再获取
+        if (!parkIfPaused(requestBean)){
+            mImageCache.get(null, requestBean.reqWidth, requestBean.reqHeight, null,true, requestBean);
+        }
 
 
     }
@@ -245,117 +366,296 @@ public class ImageLoader {
      */
     private Bitmap downloadBitmapFromUrl(String uriStr,final int reqWidth, final int reqHeight ) {
         Bitmap bitmap = null;
-        HttpURLConnection urlConnection = null;
+        FetchResponse response = null;
         BufferedInputStream in = null;
 
         try {
-            URL url = new URL(uriStr);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
+            response = mFetcher.fetch(uriStr, null);
+            if (!response.isSuccessful()){
+                LogUtil._e(TAG, ">>>>>>downloadBitmapFromUrl()   再次进行网络下载也失败, 状态码: " + response.getCode());
+                mFailureCache.recordFailure(uriStr, isPermanentFailure(response.getCode()));
+                return null;
+            }
+            in = new BufferedInputStream(response.getBody(), IO_BUFFER_SIZE);
             bitmap = BitmapFactory.decodeStream(in);
             // bitmap的缓存
             mImageCache.put(uriStr , bitmap, 0, 0, true);
 
         } catch (IOException e) {
             LogUtil._e(TAG, ">>>>>>downloadBitmapFromUrl()   再次进行网络下载也失败");
+            mFailureCache.recordFailure(uriStr, false);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            // 关闭响应体之后连接才能被复用
             CloseUtil.close(in);
+            CloseUtil.close(response);
         }
 
         return bitmap;
     }
 
     /**
-     * 控制常用类型的bitmap, 在大小为多少的情况下进行额外缓存
+     * 图片的处理结果是否同时保存到磁盘缓存
      */
-    private int CommonlyUsedSizeDp = 100;
+    private volatile boolean mProcessedDiskCache = false;
 
     /**
-     * 对特别常用的进行, 多一层的存储, 如圆形头像, 和矩形头像的center_crop两种类型.
-     * 当处理后的图片大小不超过100dp那么就增加到内存存储.
-     *
+     * 设置图片的处理结果(如圆形头像, 群头像)是否同时保存到磁盘缓存, 默认只保存在内存中.
+     * 开启之后重新启动应用也可以直接读取处理好的整张图片, 不需要加载和处理每一张图片
      */
-    public void saveCommonlyUsedBitmap(String url, int type, Bitmap bmp, int reqWidth, int reqHeight){
-
-        if((reqHeight <= UIUtils.dip2px(mContext, CommonlyUsedSizeDp)) && (reqWidth <= UIUtils.dip2px(mContext, CommonlyUsedSizeDp))){
-            switch (type){
-                case SImageView.TYPE_CIRCLE:
-                    url = url+COMM_CIRCLE;
-                    break;
+    public void setProcessedDiskCacheEnabled(boolean enabled){
+        mProcessedDiskCache = enabled;
+    }
 
-                case SImageView.TYPE_RECT:
-                    url = url+COMM_RECT;
-                    break;
+    public boolean isProcessedDiskCacheEnabled(){
+        return mProcessedDiskCache;
+    }
 
-                default:
-                    return;
-            }
-            LogUtil._i(TAG, "准备对 "+url+" 进行额外常用矩形类型内存存储!!!!!!!!");
-            mImageCache.put(url, bmp, reqWidth, reqHeight, false);
+    /**
+     * 获取图片的处理结果
+     *
+     * @param processedKey 通过{@link SImageView#getProcessedKey(List)}获得
+     * @return 没有时返回null
+     */
+    Bitmap getProcessedBitmap(ProcessedKey processedKey){
+        if (processedKey == null){
+            return null;
         }
-
+        if (mImageCache instanceof DefaultImageCache){
+            return ((DefaultImageCache) mImageCache).getProcessed(processedKey);
+        }
+        return mImageCache.get(processedKey.toString(), 0, 0, null, false, null);
     }
 
-
-    private Bitmap getCommonlyUsedBitmap(String url, int type, int scaleType,  int reqWidth, int reqHeight){
-        if ((reqHeight <= UIUtils.dip2px(mContext, CommonlyUsedSizeDp)) && (reqWidth <= UIUtils.dip2px(mContext, CommonlyUsedSizeDp))){
-            Bitmap bitmap = null;
-            // 只对两种类型进行内存查询
-            if (type == SImageView.TYPE_CIRCLE){
-
-                // TODO: 2016/12/13  单张圆形图片时内存抖动比较恒定, 暂时先不需要缓存
-
-            }else if (type == SImageView.TYPE_RECT  && scaleType == SImageView.SCALE_TYPE_CENTER_CROP){
-
-                bitmap = mImageCache.get(url+COMM_RECT, reqWidth, reqHeight, null, false, null);
-            }
-
-            return bitmap;
-
+    /**
+     * 保存图片的处理结果, 开启了{@link #setProcessedDiskCacheEnabled(boolean)}时同时在后台写入磁盘
+     */
+    void saveProcessedBitmap(ProcessedKey processedKey, Bitmap processed){
+        if (processedKey == null || processed == null){
+            return;
+        }
+        if (mImageCache instanceof DefaultImageCache){
+            ((DefaultImageCache) mImageCache).putProcessed(processedKey, processed, mProcessedDiskCache);
+        }else{
+            mImageCache.put(processedKey.toString(), processed, 0, 0, false);
         }
-        return null;
     }
 
-    private final String COMM_RECT = "_rect_";
-    private final String COMM_CIRCLE = "_circle_";
+    /**
+     * 是否为全局默认的加载中或者加载失败的图片, 这样的结果不能作为处理结果缓存
+     */
+    boolean isPlaceholder(Bitmap bitmap){
+        return bitmap == mLoadErrBmp || bitmap == mLoadingBmp;
+    }
 
     /**
      * 从网络下载图片的流直接存入磁盘, 保证图片的原大小. 并在内部进行内存缓存添加.
+     * 支持断点续传的响应会先写入临时文件, 下载中断时保留已经下载的部分, 下次通过Range请求继续.
      *
+     * @param memoryData 长度为1的数组. 下载到内存的数据没有写入磁盘缓存时放在这里, 解码阶段直接使用, 不用再下载一次
      */
-    private boolean downloadFirstDiskToCache(String uriStr)    {
+    private int downloadFirstDiskToCache(String uriStr, byte[][] memoryData)    {
 
-        boolean result = false;
-        HttpURLConnection urlConnection = null;
-        BufferedInputStream in = null;
+        DefaultImageCache diskCache = (mImageCache instanceof DefaultImageCache) ? (DefaultImageCache) mImageCache : null;
+        boolean partialLocked = diskCache != null && diskCache.lockPartial(uriStr);
         try {
-            URL url = new URL(uriStr);
+            int status = downloadFirstDiskToCache(uriStr, diskCache, partialLocked, memoryData);
+            if (status != DOWNLOAD_FAILED){
+                mFailureCache.recordSuccess(uriStr);
+            }
+            return status;
+        } finally {
+            if (partialLocked){
+                diskCache.unlockPartial(uriStr);
+            }
+        }
+    }
+
+    private int downloadFirstDiskToCache(String uriStr, DefaultImageCache diskCache, boolean partialLocked,
+                                         byte[][] memoryData)    {
+
+        // 磁盘中已有过期的条目时, 带上校验字段进行条件请求
+        CacheMetadata staleMetadata = null;
+        Map<String, String> headers = null;
+        if (diskCache != null){
+            staleMetadata = diskCache.getDiskMetadata(uriStr);
+            if (staleMetadata != null && staleMetadata.hasValidator()){
+                headers = staleMetadata.conditionalHeaders();
+            }
+        }
 
+        // 否则有上次中断的临时文件时, 从中断的位置继续下载. If-Range保证图片没有变化, 变化了服务器会返回完整的200
+        String partialEtag = null;
+        long partialLength = 0;
+        if (headers == null && partialLocked){
+            partialEtag = diskCache.getPartialEtag(uriStr);
+            if (partialEtag != null){
+                partialLength = diskCache.getPartialLength(uriStr);
+                headers = new HashMap<>();
+                headers.put("Range", "bytes=" + partialLength + "-");
+                headers.put("If-Range", partialEtag);
+            }
+        }
 
-            urlConnection = (HttpURLConnection) url.openConnection();
+        int result = DOWNLOAD_FAILED;
+        FetchResponse response = null;
+        BufferedInputStream in = null;
+        try {
+            response = mFetcher.fetch(uriStr, headers);
+            long now = System.currentTimeMillis();
+            int code = response.getCode();
+
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && staleMetadata != null){
+                // 图片没有变化, 只更新元数据
+                LogUtil._i(TAG, "磁盘缓存重新验证通过 >>>> 地址:" + uriStr);
+                diskCache.updateDiskMetadata(uriStr, staleMetadata.revalidate(response, now));
+                return DOWNLOAD_CACHED;
+            }
 
+            if (code == HttpURLConnection.HTTP_PARTIAL){
+                if (partialEtag == null || response.getRangeStart() != partialLength){
+                    // 不是请求的范围, 无法拼接
+                    LogUtil._w(TAG, "服务器返回的范围不正确, 丢弃临时文件 >>>> 地址:" + uriStr);
+                    if (partialLocked){
+                        diskCache.discardPartial(uriStr);
+                    }
+                    mFailureCache.recordFailure(uriStr, false);
+                    return DOWNLOAD_FAILED;
+                }
+                LogUtil._i(TAG, "从第" + partialLength + "字节继续下载 >>>> 地址:" + uriStr);
+                return downloadToPartial(diskCache, uriStr, response, partialEtag, false, response.getRangeTotal(), now);
+            }
 
+            if (!response.isSuccessful()){
+                LogUtil._e(TAG, ">>>>>>网络图片流直接存入磁盘失败, 状态码: " + code);
+                if (code == 416 && partialLocked){
+                    // 请求的范围无效, 临时文件已经不可用
+                    diskCache.discardPartial(uriStr);
+                }
+                mFailureCache.recordFailure(uriStr, isPermanentFailure(code));
+                return DOWNLOAD_FAILED;
+            }
 
+            String etag = response.getHeader("ETag");
+            boolean resumable = partialLocked && response.isResumable();
+            if (partialLocked && !resumable){
+                // 图片已经变化并且不支持续传, 之前的临时文件没有用了
+                diskCache.discardPartial(uriStr);
+            }
 
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
+            long contentLength = response.getContentLength();
+            if (diskCache != null && contentLength > 0 && contentLength <= MAX_MEMORY_DOWNLOAD_SIZE){
+                // 大小合适的图片先下载到内存, 解码直接使用内存中的数据, 同时在后台写入磁盘
+                return downloadToMemory(diskCache, uriStr, response, resumable ? etag : null, now, memoryData);
+            }
 
+            if (resumable){
+                // 可以断点续传的响应先写入临时文件
+                return downloadToPartial(diskCache, uriStr, response, etag, true, contentLength, now);
+            }
 
-            result =  mImageCache.putRawStream(uriStr, in);
+            in = new BufferedInputStream(response.getBody(), IO_BUFFER_SIZE);
 
+            boolean cached;
+            if (diskCache != null){
+                cached = diskCache.putRawStream(uriStr, in, CacheMetadata.fromResponse(response, now));
+            }else{
+                cached =  mImageCache.putRawStream(uriStr, in);
+            }
+            result = cached ? DOWNLOAD_CACHED : DOWNLOAD_NOT_CACHED;
 
         } catch (IOException e) {
             LogUtil._e(TAG, ">>>>>>网络图片流直接存入磁盘失败");
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            if (staleMetadata != null){
+                // 无法重新验证的时候, 过期的图片总比加载失败要好
+                LogUtil._w(TAG, "重新验证失败, 使用过期的磁盘缓存 >>>> 地址:" + uriStr);
+                result = DOWNLOAD_CACHED;
+            }else{
+                mFailureCache.recordFailure(uriStr, false);
             }
+        } finally {
+            // 关闭响应体之后连接才能被复用
             CloseUtil.close(in);
-            return result;
+            CloseUtil.close(response);
         }
+        return result;
+
+    }
+
+    /**
+     * 把响应体完整的读取到内存, 交给磁盘缓存在后台写入. 写入完成之前解码和其他的磁盘读取直接使用内存中的数据,
+     * 省去了写入磁盘之后再打开读取的时间
+     *
+     * @param resumableEtag 支持断点续传时响应的ETag, 下载中断时把已经下载的部分保存到临时文件. 不支持时为null
+     * @param memoryData 磁盘缓存不可用时, 下载完整的数据放在这里
+     * @return {@link #DOWNLOAD_CACHED}, {@link #DOWNLOAD_NOT_CACHED}, {@link #DOWNLOAD_FAILED}
+     */
+    private int downloadToMemory(DefaultImageCache diskCache, String uriStr, FetchResponse response,
+                                 String resumableEtag, long now, byte[][] memoryData){
+        int length = (int) response.getContentLength();
+        byte[] data = new byte[length];
+        int offset = 0;
+        InputStream body = response.getBody();
+        try {
+            int len;
+            while (offset < length && (len = body.read(data, offset, length - offset)) != -1){
+                offset += len;
+            }
+        } catch (IOException e) {
+            LogUtil._e(TAG, ">>>>>>网络图片下载中断");
+        }
+
+        if (offset < length){
+            LogUtil._w(TAG, "下载的数据不完整 " + offset + "/" + length + " >>>> 地址:" + uriStr);
+            if (resumableEtag != null && offset > 0){
+                // 保存已经下载的部分, 重试时从中断的位置继续
+                diskCache.appendPartial(uriStr, resumableEtag, new ByteArrayInputStream(data, 0, offset), true);
+            }
+            mFailureCache.recordFailure(uriStr, false);
+            return DOWNLOAD_FAILED;
+        }
+
+        if (!diskCache.putRawBytesAsync(uriStr, data, CacheMetadata.fromResponse(response, now))){
+            // 磁盘缓存不可用, 解码阶段读不到这份数据, 直接把内存中的数据交给解码阶段
+            LogUtil._w(TAG, "磁盘缓存不可用, 下载的数据没有被缓存 >>>> 地址:" + uriStr);
+            memoryData[0] = data;
+            return DOWNLOAD_NOT_CACHED;
+        }
+        return DOWNLOAD_CACHED;
+    }
+
+    /**
+     * 把响应体写入临时文件, 数据完整之后再提交到磁盘缓存
+     *
+     * @param expectedLength 完整图片的长度, 未知时为-1
+     * @return {@link #DOWNLOAD_CACHED}, {@link #DOWNLOAD_NOT_CACHED}, {@link #DOWNLOAD_FAILED}
+     */
+    private int downloadToPartial(DefaultImageCache diskCache, String uriStr, FetchResponse response,
+                                      String etag, boolean restart, long expectedLength, long now){
+        boolean finished = diskCache.appendPartial(uriStr, etag, response.getBody(), restart);
+        if (!finished){
+            // 已经下载的部分保留在临时文件中, 重试时继续
+            mFailureCache.recordFailure(uriStr, false);
+            return DOWNLOAD_FAILED;
+        }
+        long length = diskCache.getPartialLength(uriStr);
+        if (expectedLength > 0 && length != expectedLength){
+            if (length > expectedLength){
+                // 数据已经错乱, 只能重新下载
+                diskCache.discardPartial(uriStr);
+            }
+            LogUtil._w(TAG, "下载的数据不完整 " + length + "/" + expectedLength + " >>>> 地址:" + uriStr);
+            mFailureCache.recordFailure(uriStr, false);
+            return DOWNLOAD_FAILED;
+        }
+        return diskCache.commitPartial(uriStr, CacheMetadata.fromResponse(response, now)) ? DOWNLOAD_CACHED : DOWNLOAD_NOT_CACHED;
+    }
 
+    /**
+     * 服务器明确拒绝的状态码, 重试也不会成功. 超时, 限流和服务器错误属于暂时的失败
+     */
+    private static boolean isPermanentFailure(int code){
+        return code >= 400 && code < 500
+                && code != HttpURLConnection.HTTP_CLIENT_TIMEOUT && code != 429 && code != 416;
     }
 
     private class MyHostnameVerifier implements HostnameVerifier {
@@ -390,6 +690,239 @@ public class ImageLoader {
     }
 
 
+    /**
+     * 设置相同优先级的请求是否按照后进先出的顺序加载, 默认为true.
+     * 列表快速滑动之后, 后进先出可以让当前屏幕上的控件优先加载
+     */
+    public void setLifoScheduling(boolean lifo){
+        DISK_EXECUTOR.setLifo(lifo);
+        NETWORK_EXECUTOR.setLifo(lifo);
+        DECODE_EXECUTOR.setLifo(lifo);
+    }
+
+    public boolean isLifoScheduling(){
+        return NETWORK_EXECUTOR.isLifo();
+    }
+
+    /**
+     * 获得某个加载阶段的线程池, 可以通过它获取队列的统计信息
+     *
+     * @param stage {@link #STAGE_DISK}, {@link #STAGE_NETWORK}, {@link #STAGE_DECODE}
+     */
+    public PriorityExecutor getStageExecutor(int stage){
+        switch (stage){
+            case STAGE_DISK:
+                return DISK_EXECUTOR;
+            case STAGE_NETWORK:
+                return NETWORK_EXECUTOR;
+            case STAGE_DECODE:
+                return DECODE_EXECUTOR;
+            default:
+                throw new IllegalArgumentException("未知的加载阶段: " + stage);
+        }
+    }
+
+    /**
+     * 设置某个加载阶段的线程数量
+     *
+     * @param stage {@link #STAGE_DISK}, {@link #STAGE_NETWORK}, {@link #STAGE_DECODE}
+     * @param poolSize 线程数量, 必须大于0
+     */
+    public void setStagePoolSize(int stage, int poolSize){
+        getStageExecutor(stage).setPoolSize(poolSize);
+    }
+
+    /**
+     * 获得所有加载阶段线程池的统计信息
+     */
+    public String getStageStatistics(){
+        return DISK_EXECUTOR.getStatistics() + "\r\n"
+                + NETWORK_EXECUTOR.getStatistics() + "\r\n"
+                + DECODE_EXECUTOR.getStatistics();
+    }
+
+    /**
+     * 获得进入网络请求表的请求总数
+     */
+    public int getNetworkRequestCount(){
+        return mInFlightRequests.getRequestCount();
+    }
+
+    /**
+     * 获得被合并到进行中请求上的数量, 也就是节省下来的重复下载和解码次数
+     */
+    public int getMergedRequestCount(){
+        return mInFlightRequests.getMergedCount();
+    }
+
+    /**
+     * 获得因为地址最近加载失败, 没有进行网络请求直接返回失败的请求数量
+     */
+    public int getSuppressedRequestCount(){
+        return mFailureCache.getSuppressedCount();
+    }
+
+    /**
+     * 获得当前记录的加载失败的地址数量
+     */
+    public int getFailedUrlCount(){
+        return mFailureCache.getFailedCount();
+    }
+
+    /**
+     * 清除所有加载失败的记录, 比如网络恢复之后可以调用, 让失败的地址立即重新加载
+     */
+    public void clearFailedUrls(){
+        mFailureCache.clear();
+    }
+
+    /**
+     * 接收系统的内存回调, 按照内存紧张的程度释放缓存
+     */
+    private final ComponentCallbacks2 mMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            clearMemory();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+
+    /**
+     * 按照内存等级缩小或者清空内存缓存和bitmap复用池, 注册了系统回调会自动调用.
+     * 只对默认的缓存实现有效
+     *
+     * @param level {@link ComponentCallbacks2}中的TRIM_MEMORY_*等级
+     * @return 释放的字节数
+     */
+    public long trimMemory(int level){
+        if (!(mImageCache instanceof DefaultImageCache)){
+            return 0;
+        }
+        long reclaimed = ((DefaultImageCache) mImageCache).trimMemory(level);
+        LogUtil._i(TAG, "onTrimMemory level=" + level + " 释放内存:" + reclaimed / 1024 + "KB");
+        return reclaimed;
+    }
+
+    /**
+     * 把内存缓存缩小到指定大小
+     *
+     * @param maxBytes 内存缓存最多保留的字节数
+     * @return 释放的字节数, 使用自定义缓存时返回0
+     */
+    public long trimToSize(long maxBytes){
+        if (!(mImageCache instanceof DefaultImageCache)){
+            return 0;
+        }
+        return ((DefaultImageCache) mImageCache).trimToSize(maxBytes);
+    }
+
+    /**
+     * 清空内存缓存和bitmap复用池, 正在显示的图片不受影响
+     *
+     * @return 释放的字节数, 使用自定义缓存时返回0
+     */
+    public long clearMemory(){
+        if (!(mImageCache instanceof DefaultImageCache)){
+            return 0;
+        }
+        return ((DefaultImageCache) mImageCache).clearMemory();
+    }
+
+    /**
+     * 获得bitmap复用池, 可以通过它获取复用的统计信息. 使用自定义的缓存实现时返回null
+     */
+    public BitmapPool getBitmapPool(){
+        if (mImageCache instanceof DefaultImageCache){
+            return ((DefaultImageCache) mImageCache).getBitmapPool();
+        }
+        return null;
+    }
+
+    /**
+     * 控件开始显示一个bitmap, 显示期间不会被放入复用池
+     */
+    void markDisplayed(Bitmap bitmap){
+        if (mImageCache instanceof DefaultImageCache){
+            ((DefaultImageCache) mImageCache).markDisplayed(bitmap);
+        }
+    }
+
+    /**
+     * 控件不再显示一个bitmap
+     */
+    void markHidden(Bitmap bitmap){
+        if (mImageCache instanceof DefaultImageCache){
+            ((DefaultImageCache) mImageCache).markHidden(bitmap);
+        }
+    }
+
+    /**
+     * 替换网络请求的实现, 比如使用其他的网络库
+     */
+    public void setFetcher(@NonNull Fetcher fetcher){
+        if (fetcher == null){
+            throw new IllegalArgumentException("Fetcher不能为null");
+        }
+        mFetcher = fetcher;
+    }
+
+    public Fetcher getFetcher(){
+        return mFetcher;
+    }
+
+    /**
+     * 设置全局的解码策略, 控件可以通过{@link SImageView#setDecodePolicy(int)}单独设置
+     *
+     * @param policy {@link #DECODE_POLICY_QUALITY}, {@link #DECODE_POLICY_MEMORY_SAVING}
+     */
+    public void setDecodePolicy(int policy){
+        if (policy != DECODE_POLICY_QUALITY && policy != DECODE_POLICY_MEMORY_SAVING){
+            throw new IllegalArgumentException("不支持的解码策略: " + policy);
+        }
+        mDecodePolicy = policy;
+    }
+
+    public int getDecodePolicy(){
+        return mDecodePolicy;
+    }
+
+    /**
+     * 获得解码策略对应的优先解码格式
+     *
+     * @param policy 为{@link #DECODE_POLICY_DEFAULT}时使用全局的解码策略
+     */
+    Bitmap.Config resolveDecodeConfig(int policy){
+        if (policy == DECODE_POLICY_DEFAULT){
+            policy = mDecodePolicy;
+        }
+        return policy == DECODE_POLICY_MEMORY_SAVING ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * 网络请求的接口, 所有的图片下载都通过它进行
+     */
+    public interface Fetcher {
+
+        /**
+         * 发起一次GET请求. 调用者负责关闭返回的响应, 以便连接可以被复用
+         *
+         * @param url 图片地址
+         * @param headers 额外的请求头, 可以为null
+         * @return 请求的响应, 状态码不是2xx的时候也会正常返回
+         * @throws IOException 连接或者读取失败
+         */
+        FetchResponse fetch(String url, Map<String, String> headers) throws IOException;
+    }
+
+
     // 暴露注入的缓存策略
     public void setImageCache(IImageCache imageCache){
         mImageCache = imageCache;
@@ -409,10 +942,16 @@ public class ImageLoader {
 
                     final RequestBean diskGetErrRequest = (RequestBean) msg.obj;
 
+                    // 请求已经被取消, 不再发起网络请求
+                    if (diskGetErrRequest.isCancelled()){
+                        LogUtil._w(TAG, ">>>>  请求已经被取消, 停止发起网络请求");
+                        return ;
+                    }
+
                     // 判断在发起网络请求和进行内存, 磁盘缓存读取的之间 是否要加载的url发生了更改
                     // 如果改变那么, 停止旧的url请求的发送, 避免资源浪费
                     final SImageView sImageView = diskGetErrRequest.sImageView;
-                    if (!diskGetErrRequest.urls.containsAll(sImageView.mUrlLoading)){
+                    if (sImageView != null && !diskGetErrRequest.urls.containsAll(sImageView.mUrlLoading)){
                         // 发生了改变, 跳出发送请求的的步骤
                         LogUtil._w(TAG, ">>>>  控件要加载的url发生了改变\r\n"
                                 + "要加载的图片地址 --> "+diskGetErrRequest.urls.toString()
@@ -420,65 +959,42 @@ public class ImageLoader {
                        return ;
                     }
 
-
-
-                    for (final String noLoadUrl: diskGetErrRequest.checkNoLoadUrl()) {
-                        // 2. 创建一个Runable调用同步加载的方法去获取Bitmap
-                        Runnable loadMultiTask = new Runnable() {
-                            @Override
-                            public void run() {
-                                Bitmap bitmap = null;
-                                // 根据默认缓存添加的分支, 网络下载的输入流直接存入磁盘, 先进行bitmap转换可能会影响到原图片的大小
-                                boolean result = downloadFirstDiskToCache(noLoadUrl);
-                                if (result){
-                                    if (mImageCache instanceof DefaultImageCache){
-                                        bitmap = ((DefaultImageCache) mImageCache).loadBitmapFromDiskCache(noLoadUrl, diskGetErrRequest.reqWidth, diskGetErrRequest.reqHeight);
-                                    }
-                                }else{
-                                    // 通用逻辑, 从网络下载之后, 先把bitmap存入硬盘然后返回bitmap
-                                    // 一般情况下不会走此逻辑, 为了保险起见, 和后续扩展其他实现类可以保证bitmap会被添加到IImageView的put()回调中
-                                    bitmap = downloadBitmapFromUrl(noLoadUrl, diskGetErrRequest.reqWidth, diskGetErrRequest.reqHeight);
-                                }
-
-                                // 判断网络加载是否成功
-                                if (bitmap != null) {
-                                    diskGetErrRequest.addBitmap(noLoadUrl, bitmap);
-                                }else{
-                                    if (sImageView.mErrPicBitmap != null){
-                                        diskGetErrRequest.addBitmap(noLoadUrl, sImageView.mErrPicBitmap);
-                                    }else{
-                                        diskGetErrRequest.addBitmap(noLoadUrl, mLoadErrBmp);
-                                    }
-                                    LogUtil._e(TAG, "图片下载失败, >>>> 图片地址:"+noLoadUrl);
-                                }
-
-                                // 判断是否全部加载完成, 如果全部加载完成, 那么发送通知到Handler
-                                if (diskGetErrRequest.isLoadSuccessful()){
-                                    mMainHandler.obtainMessage(ImageLoader.MESSAGE_MULTI_DISK_GET_OK, diskGetErrRequest).sendToTarget();
-                                }
-
-                            }
-                        };
-                        // 添加任务到线程池
-                        THREAD_POOL_EXECUTOR.execute(loadMultiTask);
+                    // 请求所在的tag已经暂停, 等待恢复之后再发起网络请求
+                    if (parkIfPaused(diskGetErrRequest)){
+                        return ;
                     }
+
+                    loadFromNetwork(diskGetErrRequest);
                     break;
 
                 // 多张图片从磁盘获取成功
                 case MESSAGE_MULTI_DISK_GET_OK:
 
                     RequestBean requestOk = (RequestBean) msg.obj;
+
+                    // 请求已经被取消, 控件已经不再需要这次的结果
+                    if (requestOk.isCancelled()){
+                        LogUtil._w(TAG, ">>>>请求已经被取消, so取消设置图片");
+                        break;
+                    }
                     // 打印多张图片的处理时间
                     LogUtil._i(TAG, "图片的获取时间  >> 磁盘或者网络: "+(System.currentTimeMillis() - requestOk.startTime) + " ms");
 
-                    // 进行控件是否需要有效的判断
-                    if (requestOk.sImageView.getTag().equals(requestOk.getTag())){
-                        requestOk.sImageView.setImages(requestOk.asListBitmap(), requestOk.urls);
+                    // 进行控件是否需要有效的判断, 预加载的请求没有控件
+                    if (requestOk.sImageView == null){
+                        LogUtil._i(TAG, "预加载完成 >>>> "+requestOk.urls.toString());
+                    }else if (requestOk.sImageView.getTag().equals(requestOk.getTag())){
+                        if (requestOk.processed != null){
+                            requestOk.sImageView.setProcessedImage(requestOk.processed, requestOk.urls);
+                        }else{
+                            requestOk.sImageView.setImages(requestOk.asListBitmap(), requestOk.urls);
+                        }
                     }else{
                         LogUtil._w(TAG, ">>>>控件的url发生改变, so取消设置图片");
                     }
 
                     // recycle global pool
+                    markDone(requestOk);
                     requestOk.recycle();
 
                     break;
@@ -491,6 +1007,355 @@ public class ImageLoader {
     };
 
 
+    /**
+     * 预加载的目标缓存
+     */
+    public enum Target {
+        /**
+         * 只下载保存到磁盘缓存
+         */
+        DISK_ONLY,
+        /**
+         * 下载保存到磁盘缓存, 并解码放入内存缓存
+         */
+        DISK_AND_MEMORY
+    }
+
+    /**
+     * 预加载一组图片, 不需要控件. 一般用于列表中即将滑入屏幕的行.
+     * 预加载使用最低的优先级, 不会影响控件的正常加载
+     *
+     * @param urls 需要预加载的图片地址
+     * @param reqWidth 解码放入内存时的大小, 需要和之后控件请求的大小一致才能命中内存缓存, 可以为0
+     * @param reqHeight 解码放入内存时的大小, 可以为0
+     * @param target 预加载的目标缓存
+     * @return 这一组预加载的句柄, 通过{@link RequestHandle#cancel()}可以取消整组还未完成的预加载
+     */
+    public RequestHandle prefetch(List<String> urls, int reqWidth, int reqHeight, Target target){
+        RequestHandle handle = new RequestHandle(this);
+
+        // 过滤无效的地址, 以及已经在内存中的图片
+        ArrayList<String> prefetchUrls = new ArrayList<>();
+        for (String url : urls) {
+            if (url == null || !SecurityUtil.matchUrlPicture(url, mPicUrlRegex)){
+                continue;
+            }
+            if (target == Target.DISK_AND_MEMORY && mImageCache.get(url, reqWidth, reqHeight, null, false, null) != null){
+                continue;
+            }
+            prefetchUrls.add(url);
+        }
+
+        if (prefetchUrls.isEmpty()){
+            handle.mDone = true;
+            return handle;
+        }
+
+        RequestBean requestBean = RequestBean.obtain(prefetchUrls, null, reqWidth, reqHeight);
+        requestBean.priority = PriorityTask.PRIORITY_LOW;
+        requestBean.diskOnly = (target == Target.DISK_ONLY);
+        requestBean.decodeConfig = resolveDecodeConfig(DECODE_POLICY_DEFAULT);
+        requestBean.handle = handle;
+        handle.mBean = requestBean;
+
+        LogUtil._i(TAG, "开始预加载 >>>> 数量:"+prefetchUrls.size()+"  目标:"+target);
+        mImageCache.get(null, reqWidth, reqHeight, null, true, requestBean);
+        return handle;
+    }
+
+    /**
+     * 暂停指定tag的请求. 暂停期间内存缓存依然会同步设置到控件上,
+     * 但是磁盘读取和网络下载会等到{@link #resume(Object)}之后才进行.
+     * 一般在列表快速滑动时调用, 避免滑过的每一行都进行磁盘读取, 网络下载和解码
+     *
+     * @param tag 通过{@link SImageView#setLoadTag(Object)}设置, 默认为控件所在的Context
+     */
+    public void pause(Object tag){
+        if (tag == null){
+            throw new IllegalArgumentException("tag不能为null");
+        }
+        synchronized (mPausedRequests){
+            if (!mPausedRequests.containsKey(tag)){
+                mPausedRequests.put(tag, new ArrayList<RequestBean>());
+                LogUtil._i(TAG, "暂停加载 >>>> tag:"+tag);
+            }
+        }
+    }
+
+    /**
+     * 恢复指定tag的请求, 暂停期间被挂起的请求会重新开始从磁盘获取
+     */
+    public void resume(Object tag){
+        if (tag == null){
+            throw new IllegalArgumentException("tag不能为null");
+        }
+        ArrayList<RequestBean> parked;
+        synchronized (mPausedRequests){
+            parked = mPausedRequests.remove(tag);
+        }
+        if (parked == null){
+            return;
+        }
+
+        LogUtil._i(TAG, "恢复加载 >>>> tag:"+tag+"  挂起的请求数量:"+parked.size());
+        for (RequestBean bean : parked) {
+            if (!bean.isCancelled()){
+                mImageCache.get(null, bean.reqWidth, bean.reqHeight, null, true, bean);
+            }
+        }
+    }
+
+    /**
+     * 判断指定tag的请求是否处于暂停中
+     */
+    public boolean isPaused(Object tag){
+        if (tag == null){
+            return false;
+        }
+        synchronized (mPausedRequests){
+            return mPausedRequests.containsKey(tag);
+        }
+    }
+
+    /**
+     * 如果请求所在的tag处于暂停中, 那么挂起这个请求, 等待恢复之后重新从磁盘获取.
+     * 提供给缓存策略在执行磁盘读取前调用
+     *
+     * @return true: 请求已经被挂起, 调用者不应该再继续处理
+     */
+    public boolean parkIfPaused(RequestBean bean){
+        if (bean.pauseTag == null){
+            return false;
+        }
+        synchronized (mPausedRequests){
+            ArrayList<RequestBean> parked = mPausedRequests.get(bean.pauseTag);
+            if (parked == null){
+                return false;
+            }
+            parked.add(bean);
+            return true;
+        }
+    }
+
+    /**
+     * 对磁盘中没有获取到的图片进行网络下载.
+     * 下载在网络线程池中进行, 下载完成之后的解码交给解码线程池
+     */
+    private void loadFromNetwork(final RequestBean request){
+
+        for (final String noLoadUrl: request.checkNoLoadUrl()) {
+            // 1. 相同url和大小的请求正在进行中, 直接挂载等待结果, 不再重复下载和解码
+            final String callKey = InFlightRequests.keyOf(noLoadUrl, request.reqWidth, request.reqHeight, request.decodeConfig);
+
+            // 最近加载失败还在冷却中的地址, 直接返回失败图片, 不再进行网络请求. 正在重试中的请求可以继续合并
+            if (mInFlightRequests.getTask(callKey) == null && mFailureCache.isSuppressed(noLoadUrl)){
+                LogUtil._i(TAG, "图片地址最近加载失败, 冷却期间直接返回失败 >>>> 图片地址:"+noLoadUrl);
+                deliverToWaiters(Collections.singletonList(request), noLoadUrl, null);
+                continue;
+            }
+
+            final InFlightRequests.Call call = mInFlightRequests.attach(callKey, request);
+            if (call == null){
+                LogUtil._i(TAG, "相同的图片请求正在进行中, 合并本次请求 >>>> 图片地址:"+noLoadUrl);
+                // 当前请求的优先级更高时, 提升还在排队中的任务
+                Runnable runningTask = mInFlightRequests.getTask(callKey);
+                if (runningTask != null){
+                    NETWORK_EXECUTOR.promote(runningTask, request.priority);
+                    DECODE_EXECUTOR.promote(runningTask, request.priority);
+                }
+                continue;
+            }
+
+            final int reqWidth = request.reqWidth;
+            final int reqHeight = request.reqHeight;
+            final Bitmap.Config decodeConfig = request.decodeConfig;
+
+            // 2. 创建一个Runable调用同步加载的方法去获取Bitmap
+            Runnable loadMultiTask = new PriorityTask(request.priority) {
+                @Override
+                public void run() {
+                    // 所有等待这张图片的请求都已经取消, 直接结束
+                    if (call.isCancelled()){
+                        return;
+                    }
+
+                    // 在排队期间可能已经被之前的请求写入了磁盘, 这种情况下直接解码. 过期的条目需要进行条件请求
+                    boolean onDisk = (mImageCache instanceof DefaultImageCache)
+                            && ((DefaultImageCache) mImageCache).isDiskFresh(noLoadUrl);
+
+                    // 下载之后没有写入磁盘缓存的数据
+                    final byte[][] memoryData = new byte[1][];
+                    if (!onDisk){
+                        // 根据默认缓存添加的分支, 网络下载的输入流直接存入磁盘, 先进行bitmap转换可能会影响到原图片的大小
+                        int status = downloadFirstDiskToCache(noLoadUrl, memoryData);
+                        if (call.isCancelled()){
+                            // 下载期间所有请求都已经取消, 图片已经在磁盘中, 省去解码
+                            return;
+                        }
+                        if (status == DOWNLOAD_FAILED){
+                            // 暂时的网络异常, 退避一段时间之后重试, 等待的请求继续保留在请求表中.
+                            // 中断的下载保留了已经下载的部分, 重试时从中断的位置继续
+                            long retryDelay = mFailureCache.getRetryDelay(noLoadUrl);
+                            if (retryDelay >= 0){
+                                scheduleRetry(call, this, noLoadUrl, retryDelay);
+                            }else{
+                                deliverNetworkResult(call, noLoadUrl, null);
+                            }
+                            return;
+                        }
+                        if (status == DOWNLOAD_NOT_CACHED && memoryData[0] == null){
+                            // 通用逻辑, 从网络下载之后, 先把bitmap存入硬盘然后返回bitmap
+                            // 一般情况下不会走此逻辑, 为了保险起见, 和后续扩展其他实现类可以保证bitmap会被添加到IImageView的put()回调中
+                            deliverNetworkResult(call, noLoadUrl, downloadBitmapFromUrl(noLoadUrl, reqWidth, reqHeight));
+                            return;
+                        }
+                    }
+
+                    if (!(mImageCache instanceof DefaultImageCache)){
+                        deliverNetworkResult(call, noLoadUrl, null);
+                        return;
+                    }
+
+                    // 只有预加载到磁盘的请求时, 不需要解码
+                    List<RequestBean> diskOnlyWaiters = mInFlightRequests.detachIfDiskOnly(call);
+                    if (diskOnlyWaiters != null){
+                        deliverToWaiters(diskOnlyWaiters, noLoadUrl, null);
+                        return;
+                    }
+
+                    // 3. 已经在磁盘中(或者正在后台写入磁盘), 交给解码线程池
+                    Runnable decodeTask = new PriorityTask(getPriority()) {
+                        @Override
+                        public void run() {
+                            if (call.isCancelled()){
+                                return;
+                            }
+                            DefaultImageCache diskCache = (DefaultImageCache) mImageCache;
+                            // 其他控件已经显示了相同的图片时直接使用, 不再解码第二份
+                            Bitmap active = diskCache.getDecodedFromMemory(noLoadUrl, reqWidth, reqHeight, decodeConfig);
+                            if (active != null){
+                                deliverNetworkResult(call, noLoadUrl, active);
+                                return;
+                            }
+                            // 刚下载的数据还在内存中时直接解码, 不用等待写入磁盘之后再读取.
+                            // 磁盘缓存不可用时只有内存中的这一份数据
+                            byte[] pending = memoryData[0] != null ? memoryData[0] : diskCache.getPendingDiskWrite(noLoadUrl);
+                            Bitmap bitmap = pending != null
+                                    ? diskCache.decodeBitmapFromBytes(noLoadUrl, pending, reqWidth, reqHeight, decodeConfig)
+                                    : diskCache.loadBitmapFromDiskCache(noLoadUrl, reqWidth, reqHeight, decodeConfig);
+                            deliverNetworkResult(call, noLoadUrl, bitmap);
+                        }
+                    };
+                    call.setTask(decodeTask);
+                    DECODE_EXECUTOR.execute(decodeTask);
+                }
+            };
+            // 添加任务到线程池
+            call.setTask(loadMultiTask);
+            NETWORK_EXECUTOR.execute(loadMultiTask);
+        }
+    }
+
+    /**
+     * 把网络加载的结果分发给所有挂载在这个请求上的控件
+     */
+    private void deliverNetworkResult(InFlightRequests.Call call, String url, Bitmap bitmap){
+        if (bitmap == null){
+            LogUtil._e(TAG, "图片下载失败, >>>> 图片地址:"+url);
+        }
+
+        deliverToWaiters(mInFlightRequests.detach(call), url, bitmap);
+    }
+
+    /**
+     * 在主线程延时之后, 把网络任务重新提交到网络线程池
+     */
+    private void scheduleRetry(final InFlightRequests.Call call, final Runnable task, String url, long delay){
+        LogUtil._w(TAG, "网络加载失败, " + delay + "ms后重试 >>>> 图片地址:" + url);
+        mMainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (!call.isCancelled()){
+                    NETWORK_EXECUTOR.execute(task);
+                }
+            }
+        }, delay);
+    }
+
+    private void deliverToWaiters(List<RequestBean> waiters, String url, Bitmap bitmap){
+        for (RequestBean waiter : waiters) {
+            if (waiter.diskOnly){
+                // 预加载到磁盘的请求只需要完成计数
+                waiter.addBitmap(url, null);
+            }else if (bitmap != null) {
+                waiter.addBitmap(url, bitmap);
+            }else{
+                waiter.addBitmap(url, getErrBitmap(waiter));
+            }
+
+            // 判断是否全部加载完成, 如果全部加载完成, 那么发送通知到Handler
+            if (waiter.isLoadSuccessful()){
+                mMainHandler.obtainMessage(ImageLoader.MESSAGE_MULTI_DISK_GET_OK, waiter).sendToTarget();
+            }
+        }
+    }
+
+    /**
+     * 标记请求已经完成, 并解除请求句柄和请求对象的关联
+     */
+    private void markDone(RequestBean req){
+        RequestHandle handle = req.handle;
+        if (handle != null){
+            handle.mDone = true;
+            handle.mBean = null;
+        }
+    }
+
+    /**
+     * 取消一个请求, 把还在线程池中排队的磁盘读取任务移除,
+     * 并从网络请求表中移除, 已经没有任何等待者的网络下载任务同样从线程池中移除
+     */
+    void cancelRequest(RequestHandle handle){
+        RequestBean bean = handle.mBean;
+        if (bean == null){
+            return;
+        }
+        handle.mBean = null;
+
+        // 处于暂停中被挂起的请求
+        if (bean.pauseTag != null){
+            synchronized (mPausedRequests){
+                ArrayList<RequestBean> parked = mPausedRequests.get(bean.pauseTag);
+                if (parked != null){
+                    parked.remove(bean);
+                }
+            }
+        }
+
+        // 磁盘阶段排队中的任务, 可能是磁盘读取也可能是读取之后的解码
+        Runnable diskTask = bean.pendingTask;
+        if (diskTask != null && (DISK_EXECUTOR.remove(diskTask) || DECODE_EXECUTOR.remove(diskTask))){
+            LogUtil._i(TAG, "取消请求, 移除排队中的磁盘读取任务 >>>> "+bean.urls.toString());
+        }
+
+        // 网络阶段排队中的任务, 可能是网络下载也可能是下载之后的解码
+        for (Runnable networkTask : mInFlightRequests.cancel(bean)) {
+            if (NETWORK_EXECUTOR.remove(networkTask) || DECODE_EXECUTOR.remove(networkTask)){
+                LogUtil._i(TAG, "取消请求, 移除排队中的网络下载任务 >>>> "+bean.urls.toString());
+            }
+        }
+    }
+
+    /**
+     * 获得请求对应的加载失败图片, 控件设置了优先使用控件的, 否则使用全局默认图片
+     */
+    private Bitmap getErrBitmap(RequestBean req){
+        if (req.sImageView != null && req.sImageView.mErrPicBitmap != null){
+            return req.sImageView.mErrPicBitmap;
+        }
+        return mLoadErrBmp;
+    }
+
     private void matchUrlLink( RequestBean req){
         int errNum = 0;
 
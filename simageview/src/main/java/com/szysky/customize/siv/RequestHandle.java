@@ -0,0 +1,61 @@
+package com.szysky.customize.siv;
+
+import com.szysky.customize.siv.imgprocess.db.RequestBean;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-21  上午10:40
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 一次图片加载请求的句柄, 由{@link SImageView#setImageUrls(String...)}返回.
+ *                    通过{@link #cancel()}可以取消还在排队的磁盘读取, 网络下载和解码.
+ */
+
+public class RequestHandle {
+
+    private final ImageLoader mLoader;
+
+    /**
+     * 请求是否已经被取消
+     */
+    private volatile boolean mCancelled;
+
+    /**
+     * 请求是否已经完成, 图片已经设置到控件上
+     */
+    volatile boolean mDone;
+
+    /**
+     * 正在处理中的请求对象, 请求完成或者还未发出时为null
+     */
+    volatile RequestBean mBean;
+
+    RequestHandle(ImageLoader loader) {
+        mLoader = loader;
+    }
+
+    /**
+     * 取消请求. 已经完成的请求调用无效
+     */
+    public void cancel(){
+        if (mCancelled || mDone){
+            return;
+        }
+        mCancelled = true;
+        mLoader.cancelRequest(this);
+    }
+
+    /**
+     * 请求是否已经被取消
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * 请求是否已经完成
+     */
+    public boolean isDone() {
+        return mDone;
+    }
+}
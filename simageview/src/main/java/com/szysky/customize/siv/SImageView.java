@@ -19,9 +19,12 @@ import android.util.Log;
 import android.view.View;
 
 import com.szysky.customize.siv.effect.ConcreteDrawingStrategy;
+import com.szysky.customize.siv.effect.ICacheableStrategy;
 import com.szysky.customize.siv.effect.IDrawingStrategy;
 import com.szysky.customize.siv.effect.NormalOnePicStrategy;
 import com.szysky.customize.siv.imgprocess.ImageCompression;
+import com.szysky.customize.siv.imgprocess.PriorityTask;
+import com.szysky.customize.siv.imgprocess.ProcessedKey;
 import com.szysky.customize.siv.range.ILayoutManager;
 import com.szysky.customize.siv.range.QQLayoutManager;
 import com.szysky.customize.siv.util.LogUtil;
@@ -95,6 +98,56 @@ public class SImageView extends View {
      */
     public Vector<String> mUrlLoading = new Vector();
 
+    /**
+     *  当前正在进行的网络图片请求, 重新绑定或者离开窗口时取消
+     */
+    private RequestHandle mRequestHandle;
+
+    /**
+     *  离开窗口时请求还未完成被取消, 重新回到窗口时需要再次加载
+     */
+    private boolean mReloadOnAttach = false;
+
+    /**
+     *  控件是否在窗口中, 只有在窗口中的控件才登记正在显示的bitmap
+     */
+    private boolean mAttached = false;
+
+    /**
+     *  已经登记为正在显示的bitmap, 在窗口中时和mInfo.readyBmp以及mProcessedBmp保持同步, 离开窗口时为空
+     */
+    private final ArrayList<Bitmap> mDisplayedBmp = new ArrayList<>();
+
+    /**
+     *  绘图策略处理之后的整张图片(单张图片的形状处理, 多张图片的合成), 重绘时直接绘制, 不需要再次处理
+     */
+    private Bitmap mProcessedBmp;
+
+    /**
+     *  mProcessedBmp对应的key
+     */
+    private ProcessedKey mProcessedKey;
+
+    /**
+     *  是否缓存绘图策略的处理结果
+     */
+    private boolean mProcessedCacheEnabled = true;
+
+    /**
+     *  网络图片请求的加载优先级
+     */
+    private int mLoadPriority = PriorityTask.PRIORITY_NORMAL;
+
+    /**
+     *  图片的解码策略, 默认跟随ImageLoader的全局设置
+     */
+    private int mDecodePolicy = ImageLoader.DECODE_POLICY_DEFAULT;
+
+    /**
+     *  暂停加载时使用的tag, 为null时使用控件所在的Context
+     */
+    private Object mLoadTag;
+
 
     /**
      * 控件加载图片错误的资源id
@@ -351,56 +404,213 @@ public class SImageView extends View {
         long startCur = System.nanoTime();
 
 
-        if ( mInfo.readyBmp.size() == 1 && !mCloseNormalOnePicLoad){
+        if (mInfo.readyBmp.isEmpty() && mProcessedBmp != null){
+            // 直接使用缓存的合成结果
+            canvas.drawBitmap(mProcessedBmp, 0, 0, null);
+
+        }else if ( mInfo.readyBmp.size() == 1 && !mCloseNormalOnePicLoad){
             long l = System.nanoTime();
-            mNormalOnePicStrategy.algorithm(canvas,1,1,mInfo.readyBmp.get(0), (ConfigInfo) mInfo.clone());
+            Bitmap processed = obtainProcessed();
+            if (processed != null){
+                canvas.drawBitmap(processed, 0, 0, null);
+            }else{
+                mNormalOnePicStrategy.algorithm(canvas,1,1,mInfo.readyBmp.get(0), (ConfigInfo) mInfo.clone());
+            }
             LogUtil._i(TAG, "一张图片执行时间: "+ (System.nanoTime() - l)/1000000f+"毫秒");
 
         }else if (mInfo.readyBmp.size() > 0 ){
 
-            sizeMeasure();
-            if (mInfo.coordinates == null) return;
-            // layout 子元素布局
-            Iterator<ILayoutManager.LayoutInfoGroup> iterator = mInfo.coordinates.iterator();
-            int index = 0;
-            while (iterator.hasNext()){
-                index++;
-                ILayoutManager.LayoutInfoGroup childInfo = iterator.next();
+            Bitmap processed = obtainProcessed();
+            if (processed != null){
+                canvas.drawBitmap(processed, 0, 0, null);
+            }else{
+                drawMultiPic(canvas);
+            }
+
+            LogUtil._i(TAG, "多张图执行时间: "+ (System.nanoTime() - startCur)/1000000f +"毫秒");
+        }
+
+        // translate padding
+        canvas.translate(-mPaddingLeft, -mPaddingTop);
+
+    }
+
+
+
+    /**
+     * 按照布局把多张图片逐个绘制到画布上
+     */
+    private void drawMultiPic(Canvas canvas){
+        sizeMeasure();
+        if (mInfo.coordinates == null) return;
+        // layout 子元素布局
+        Iterator<ILayoutManager.LayoutInfoGroup> iterator = mInfo.coordinates.iterator();
+        int index = 0;
+        while (iterator.hasNext()){
+            index++;
+            ILayoutManager.LayoutInfoGroup childInfo = iterator.next();
+
+            int offsetX = childInfo.leftTopPoint.x;
+            int offsetY = childInfo.leftTopPoint.y;
 
-                int offsetX = childInfo.leftTopPoint.x;
-                int offsetY = childInfo.leftTopPoint.y;
 
+            Bitmap tempBmp = Bitmap.createBitmap(childInfo.innerWidth, childInfo.innerHeight, Bitmap.Config.ARGB_8888);
 
-                Bitmap tempBmp = Bitmap.createBitmap(childInfo.innerWidth, childInfo.innerHeight, Bitmap.Config.ARGB_8888);
 
+            // 首先关联一个bitmap, 并把关联的canvas对外提供出去
+            mExternalUseCanvas.setBitmap(tempBmp);
 
-                // 首先关联一个bitmap, 并把关联的canvas对外提供出去
-                mExternalUseCanvas.setBitmap(tempBmp);
+            // **重点**. 具体实现由使用者通过mExternalUseCanvas定义.
+            mDrawStrategy.algorithm(mExternalUseCanvas,mInfo.coordinates.size(),index ,mInfo.readyBmp.get(index-1), (ConfigInfo) mInfo.clone());
 
-                // **重点**. 具体实现由使用者通过mExternalUseCanvas定义.
-                mDrawStrategy.algorithm(mExternalUseCanvas,mInfo.coordinates.size(),index ,mInfo.readyBmp.get(index-1), (ConfigInfo) mInfo.clone());
 
+            canvas.drawBitmap(tempBmp,offsetX,offsetY,null);
 
-                canvas.drawBitmap(tempBmp,offsetX,offsetY,null);
 
+            // 取消关联的bitmap  并 清空对外提供的canvas
+            mExternalUseCanvas.setBitmap(null);
+            mExternalUseCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
 
-                // 取消关联的bitmap  并 清空对外提供的canvas
-                mExternalUseCanvas.setBitmap(null);
-                mExternalUseCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        }
+        // 清除布局消息
+        mInfo.coordinates = null;
+    }
+
+    /**
+     * 获得当前图片的处理结果. 依次使用已经持有的结果, 缓存中的结果, 最后才进行处理并放入缓存
+     *
+     * @return 不满足缓存条件(如包含加载中或者失败的图片)或者处理失败时返回null
+     */
+    private Bitmap obtainProcessed(){
+        if (!isProcessedCacheable()){
+            return null;
+        }
+        // 处理结果和原图完全相同时直接绘制原图
+        if (isNormalOnePic() && mNormalOnePicStrategy.drawsSourceAsIs(mInfo.readyBmp.get(0), mInfo)){
+            return null;
+        }
+        ProcessedKey key = getProcessedKey(mInfo.urls);
+        if (key == null){
+            return null;
+        }
+        if (mProcessedBmp != null && key.equals(mProcessedKey)){
+            return mProcessedBmp;
+        }
 
+        ImageLoader loader = ImageLoader.peekInstance();
+        Bitmap processed = loader == null ? null : loader.getProcessedBitmap(key);
+        if (processed == null){
+            try {
+                processed = Bitmap.createBitmap(mInfo.width, mInfo.height, Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                LogUtil._w(TAG, "处理图片时内存不足, 直接绘制");
+                return null;
+            }
+            Canvas processCanvas = new Canvas(processed);
+            if (isNormalOnePic()){
+                mNormalOnePicStrategy.algorithm(processCanvas, 1, 1, mInfo.readyBmp.get(0), (ConfigInfo) mInfo.clone());
+            }else{
+                drawMultiPic(processCanvas);
+            }
+            if (loader != null){
+                loader.saveProcessedBitmap(key, processed);
             }
-            // 清除布局消息
-            mInfo.coordinates = null;
+        }
+        mProcessedBmp = processed;
+        mProcessedKey = key;
+        syncDisplayedBitmaps();
+        return processed;
+    }
 
-            LogUtil._i(TAG, "多张图执行时间: "+ (System.nanoTime() - startCur)/1000000f +"毫秒");
+    /**
+     * 当前显示的图片是否都是加载成功的网络图片, 只有这样的结果才能缓存
+     */
+    private boolean isProcessedCacheable(){
+        if (!mProcessedCacheEnabled || mInfo.readyBmp.isEmpty() || mInfo.urls.size() != mInfo.readyBmp.size()){
+            return false;
         }
+        ImageLoader loader = ImageLoader.peekInstance();
+        for (Bitmap bitmap : mInfo.readyBmp) {
+            if (bitmap == null || bitmap.isRecycled() || bitmap == mErrPicBitmap || bitmap == mLoadingPicBitmap
+                    || (loader != null && loader.isPlaceholder(bitmap))){
+                return false;
+            }
+        }
+        return true;
+    }
 
-        // translate padding
-        canvas.translate(-mPaddingLeft, -mPaddingTop);
+    /**
+     * 是否使用默认的单张图片处理策略
+     */
+    private boolean isNormalOnePic(){
+        return mInfo.readyBmp.size() <= 1 && !mCloseNormalOnePicLoad;
+    }
 
+    /**
+     * 生成处理结果的key, 由绘图策略的处理标识, 布局, 控件大小和图片地址组成.
+     * 单张图片使用默认策略时不需要布局
+     *
+     * @return 没有开启缓存, 策略不支持缓存或者控件还没有大小时返回null
+     */
+    ProcessedKey getProcessedKey(List<String> urls){
+        if (!mProcessedCacheEnabled || urls == null || urls.isEmpty() || mInfo.width <= 0 || mInfo.height <= 0){
+            return null;
+        }
+        boolean normalOnePic = urls.size() == 1 && !mCloseNormalOnePicLoad;
+        IDrawingStrategy strategy = normalOnePic ? mNormalOnePicStrategy : mDrawStrategy;
+        if (!(strategy instanceof ICacheableStrategy)){
+            return null;
+        }
+        String transformationId = ((ICacheableStrategy) strategy).getTransformationId(mInfo);
+        if (transformationId == null){
+            return null;
+        }
+
+        Class<?> layout = normalOnePic ? null : mLayoutManager.getClass();
+        return new ProcessedKey(strategy.getClass(), transformationId, layout, mInfo.width, mInfo.height, urls);
+    }
+
+    /**
+     * 直接显示缓存的处理结果, 由图片加载器在缓存命中时调用
+     */
+    void setProcessedImage(Bitmap processed, List<String> urls){
+        mInfo.urls.clear();
+        mInfo.urls.addAll(urls);
+        mInfo.readyBmp.clear();
+        mProcessedBmp = processed;
+        mProcessedKey = getProcessedKey(urls);
+        syncDisplayedBitmaps();
+
+        invalidate();
+    }
+
+    /**
+     * 清除持有的处理结果, 需要显示的图片发生变化时调用
+     */
+    private void clearProcessed(){
+        mProcessedBmp = null;
+        mProcessedKey = null;
     }
 
+    /**
+     * 是否缓存绘图策略的处理结果
+     */
+    public boolean isProcessedCacheEnabled() {
+        return mProcessedCacheEnabled;
+    }
 
+    /**
+     * 设置是否缓存绘图策略的处理结果, 默认开启. 开启后相同的图片地址, 处理标识, 布局和大小只处理一次,
+     * 之后的重绘和重新绑定只需要绘制一张图片. 只对实现了{@link ICacheableStrategy}的绘图策略有效
+     */
+    public SImageView setProcessedCacheEnabled(boolean enabled) {
+        this.mProcessedCacheEnabled = enabled;
+        if (!enabled){
+            clearProcessed();
+            syncDisplayedBitmaps();
+        }
+        return this;
+    }
 
     /**
      * 对多张图片进行数据测量
@@ -589,7 +799,7 @@ public class SImageView extends View {
             if (isCloseNormalOnePicLoad()){
                 mInfo.readyBmp.add(null);
                 sizeMeasure();
-                ImageLoader.getInstance(mContext).setPicture(url, this, mInfo.coordinates.get(0).innerWidth, mInfo.coordinates.get(0).innerHeight);
+                ImageLoader.getInstance(mContext).setPicture(url, this, mInfo.coordinates.get(0).innerWidth, mInfo.coordinates.get(0).innerHeight, mRequestHandle);
             }else{
                 int reqWid = 0;
                 int reqHeight = 0;
@@ -617,12 +827,14 @@ public class SImageView extends View {
                     reqHeight = reqWid = minSide;
                 }
 
-                ImageLoader.getInstance(mContext).setPicture(url, this, reqWid, reqHeight);
+                ImageLoader.getInstance(mContext).setPicture(url, this, reqWid, reqHeight, mRequestHandle);
             }
         }else{
             if (null != bitmap){
                 mInfo.readyBmp.clear();
                 mInfo.readyBmp.add(bitmap);
+                clearProcessed();
+                syncDisplayedBitmaps();
 
                 invalidate();
             }
@@ -651,12 +863,14 @@ public class SImageView extends View {
                 temp /= 3;
             }
 
-            ImageLoader.getInstance(mContext).setMulPicture(Arrays.asList(urls), this, temp, temp);
+            ImageLoader.getInstance(mContext).setMulPicture(Arrays.asList(urls), this, temp, temp, mRequestHandle);
 
         }else if ((null != bitmaps) && (bitmaps.size() >0)){
             for (Bitmap bitmap : bitmaps) {
                 mInfo.readyBmp.add(bitmap);
             }
+            clearProcessed();
+            syncDisplayedBitmaps();
             invalidate();
         }
     }
@@ -669,6 +883,49 @@ public class SImageView extends View {
         updateForOne(bitmap , STR_EMPTY);
     }
 
+    /**
+     * 把正在显示的图片登记到图片加载器, 显示期间即使被内存缓存淘汰也不会被复用池拿去解码其他图片.
+     * 先登记新的再注销旧的, 保证相同的bitmap在切换过程中一直处于登记状态. 不在窗口中时不登记, 回到窗口时再登记
+     */
+    private void syncDisplayedBitmaps(){
+        ImageLoader loader = ImageLoader.peekInstance();
+        if (loader == null){
+            // 加载器还没有创建, 不会有来自缓存的图片
+            mDisplayedBmp.clear();
+            return;
+        }
+        if (!mAttached){
+            return;
+        }
+        for (Bitmap bitmap : mInfo.readyBmp) {
+            loader.markDisplayed(bitmap);
+        }
+        if (mProcessedBmp != null){
+            loader.markDisplayed(mProcessedBmp);
+        }
+        for (Bitmap bitmap : mDisplayedBmp) {
+            loader.markHidden(bitmap);
+        }
+        mDisplayedBmp.clear();
+        mDisplayedBmp.addAll(mInfo.readyBmp);
+        if (mProcessedBmp != null){
+            mDisplayedBmp.add(mProcessedBmp);
+        }
+    }
+
+    /**
+     * 注销所有登记为正在显示的bitmap, 控件离开窗口时调用. 显示期间被内存缓存淘汰的bitmap会被放回内存缓存
+     */
+    private void releaseDisplayedBitmaps(){
+        ImageLoader loader = ImageLoader.peekInstance();
+        if (loader != null){
+            for (Bitmap bitmap : mDisplayedBmp) {
+                loader.markHidden(bitmap);
+            }
+        }
+        mDisplayedBmp.clear();
+    }
+
     private Bitmap getBitmapFromDrawable(Drawable drawable) {
         if (drawable == null) {
             return null;
@@ -708,18 +965,39 @@ public class SImageView extends View {
     /**
      * 对外提供直接通过url来加载图片的方法
      * @param imageUrls 需要加载的图片地址数组
+     * @return 本次请求的句柄, 可以通过{@link RequestHandle#cancel()}取消.
+     *         控件重新设置图片地址或者离开窗口时, 未完成的请求会被自动取消
      */
-    public void setImageUrls(final String... imageUrls) {
+    public RequestHandle setImageUrls(final String... imageUrls) {
+
+        // 重新绑定, 取消上一次还未完成的请求
+        if (mRequestHandle != null){
+            mRequestHandle.cancel();
+        }
+        mReloadOnAttach = false;
+
+        RequestHandle handle = new RequestHandle(ImageLoader.getInstance(mContext));
+        mRequestHandle = handle;
+        loadImageUrls(handle, imageUrls);
+
+        return handle;
+    }
+
+    private void loadImageUrls(final RequestHandle handle, final String... imageUrls){
 
         // 进行了控件未正确获得宽高属性的容错
         if ((mInfo.width == 0 || mInfo.height == 0) && mSafetyCurrent < MAX_SAFETY_NUM ){
             postDelayed(new Runnable() {
                 @Override
                 public void run() {
+                    // 等待期间请求已经被取消
+                    if (handle.isCancelled()){
+                        return;
+                    }
                     LogUtil._e(TAG, "run: 进行了一次没有正确的控件宽高属性的容错"  );
                     mSleepTime <<= 1;
                     mSafetyCurrent++;
-                    setImageUrls(imageUrls);
+                    loadImageUrls(handle, imageUrls);
                 }
             }, mSleepTime);
             return;
@@ -740,6 +1018,95 @@ public class SImageView extends View {
         }
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+
+        // 离开窗口时被取消的请求, 重新回到窗口后再次加载
+        if (mReloadOnAttach){
+            mReloadOnAttach = false;
+            if (!mUrlLoading.isEmpty()){
+                setImageUrls(mUrlLoading.toArray(new String[mUrlLoading.size()]));
+                return;
+            }
+        }
+
+        // 离开窗口期间, 加载器提供的图片没有登记, 被内存缓存淘汰之后可能已经被复用池拿去解码了其他图片,
+        // 所以重新通过加载器获取. 还在内存中时会同步完成并重新登记
+        if (!mInfo.urls.isEmpty()){
+            setImageUrls(mInfo.urls.toArray(new String[mInfo.urls.size()]));
+            return;
+        }
+        syncDisplayedBitmaps();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mAttached = false;
+        releaseDisplayedBitmaps();
+
+        // 控件离开窗口, 取消还未完成的请求, 避免无用的磁盘读取, 网络下载和解码
+        if (mRequestHandle != null && !mRequestHandle.isDone() && !mRequestHandle.isCancelled()){
+            mRequestHandle.cancel();
+            mReloadOnAttach = true;
+        }
+    }
+
+    /**
+     * 获得当前控件正在进行的图片请求句柄, 没有进行过网络加载时为null
+     */
+    public RequestHandle getRequestHandle() {
+        return mRequestHandle;
+    }
+
+    /**
+     * 获得控件请求的tag, 没有设置时为控件所在的Context
+     */
+    public Object getLoadTag() {
+        return mLoadTag != null ? mLoadTag : getContext();
+    }
+
+    /**
+     * 设置控件请求的tag, 可以通过{@link ImageLoader#pause(Object)}和{@link ImageLoader#resume(Object)}
+     * 暂停和恢复相同tag的请求. 默认为控件所在的Context
+     */
+    public SImageView setLoadTag(Object tag) {
+        this.mLoadTag = tag;
+        return this;
+    }
+
+    public int getLoadPriority() {
+        return mLoadPriority;
+    }
+
+    /**
+     * 设置控件网络图片请求的优先级, 下次设置图片地址时生效. 默认为{@link PriorityTask#PRIORITY_NORMAL}
+     * @param priority {@link PriorityTask#PRIORITY_LOW}, {@link PriorityTask#PRIORITY_NORMAL}, {@link PriorityTask#PRIORITY_HIGH}
+     */
+    public SImageView setLoadPriority(int priority) {
+        this.mLoadPriority = priority;
+        return this;
+    }
+
+    public int getDecodePolicy() {
+        return mDecodePolicy;
+    }
+
+    /**
+     * 设置控件图片的解码策略, 下次设置图片地址时生效. 默认为{@link ImageLoader#DECODE_POLICY_DEFAULT}跟随全局设置
+     * @param policy {@link ImageLoader#DECODE_POLICY_DEFAULT}, {@link ImageLoader#DECODE_POLICY_QUALITY}, {@link ImageLoader#DECODE_POLICY_MEMORY_SAVING}
+     */
+    public SImageView setDecodePolicy(int policy) {
+        if (policy != ImageLoader.DECODE_POLICY_DEFAULT && policy != ImageLoader.DECODE_POLICY_QUALITY
+                && policy != ImageLoader.DECODE_POLICY_MEMORY_SAVING){
+            throw new IllegalArgumentException("不支持的解码策略: " + policy);
+        }
+        this.mDecodePolicy = policy;
+        return this;
+    }
+
     @ScaleType
     public int getScaleType() {
         return mScaleType;
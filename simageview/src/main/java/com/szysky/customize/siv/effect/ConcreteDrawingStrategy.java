@@ -23,7 +23,7 @@ import com.szysky.customize.siv.util.GraphsTemplate;
  *                      实现效果: 圆形头像.  当控件需要展示多张图片为QQ群组元素样式
  */
 
-public class ConcreteDrawingStrategy implements IDrawingStrategy {
+public class ConcreteDrawingStrategy implements ICacheableStrategy {
 
     /**
      *  默认两张图片间隔距离系数
@@ -68,6 +68,15 @@ public class ConcreteDrawingStrategy implements IDrawingStrategy {
         mBorderPaint.setAntiAlias(true);
     }
 
+    /**
+     * 处理结果由显示类型, 描边, 间隔系数和是否重叠决定, 每个元素的位置由布局决定
+     */
+    @Override
+    public String getTransformationId(SImageView.ConfigInfo info) {
+        return "group:" + info.displayType + "," + info.borderWidth + "," + info.borderColor
+                + "," + mSpacing + "," + mIsPicRotate;
+    }
+
     @Override
     public void algorithm(Canvas canvas, int childTotal, int curChild, Bitmap opeBitmap, SImageView.ConfigInfo info) {
 
@@ -0,0 +1,26 @@
+package com.szysky.customize.siv.effect;
+
+import com.szysky.customize.siv.SImageView;
+
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-26  上午11:05
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 处理结果可以缓存的绘图策略.
+ *                    控件会把策略的绘制结果保存为一张图片, 以处理标识, 图片地址和控件大小作为key放入缓存,
+ *                    之后的重绘和重新绑定直接绘制这张图片, 形状的遮罩处理每张图片只需要进行一次.
+ */
+
+public interface ICacheableStrategy extends IDrawingStrategy {
+
+    /**
+     * 获得当前配置下处理结果的标识, 影响绘制结果的所有参数(显示类型, 描边, 圆角等)都需要包含在内.
+     * 相同的标识, 图片和控件大小必须得到相同的绘制结果
+     *
+     * @param info 控件的属性
+     * @return 返回null表示这次的结果不进行缓存
+     */
+    String getTransformationId(SImageView.ConfigInfo info);
+}
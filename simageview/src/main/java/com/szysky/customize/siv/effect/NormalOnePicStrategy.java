@@ -10,7 +10,6 @@ import android.graphics.RectF;
 import android.graphics.Shader;
 
 import com.szysky.customize.siv.SImageView;
-import com.szysky.customize.siv.ImageLoader;
 import com.szysky.customize.siv.util.GraphsTemplate;
 
 
@@ -22,7 +21,7 @@ import com.szysky.customize.siv.util.GraphsTemplate;
  * ClassDescription :  默认但图片处理策略
  */
 
-public class  NormalOnePicStrategy implements IDrawingStrategy {
+public class  NormalOnePicStrategy implements ICacheableStrategy {
 
     private static final String TAG = NormalOnePicStrategy.class.getName();
     private float mBorderWidth;
@@ -86,6 +85,31 @@ public class  NormalOnePicStrategy implements IDrawingStrategy {
         }
     }
 
+    /**
+     * 处理结果由显示类型, 缩放类型, 描边, 圆角系数和椭圆比例决定.
+     * 没有描边的矩形只是按照比例绘制, 除了需要裁剪的center_crop都不需要缓存
+     */
+    @Override
+    public String getTransformationId(SImageView.ConfigInfo info) {
+        if (info.displayType == SImageView.TYPE_RECT && info.borderWidth <= 0
+                && info.scaleType != SImageView.SCALE_TYPE_CENTER_CROP){
+            return null;
+        }
+        return "one:" + info.displayType + "," + info.scaleType
+                + "," + info.borderWidth + "," + info.borderColor
+                + "," + mRectRoundRadius + "," + mOvalWidthRatio + "," + mOvalHeightRatio;
+    }
+
+    /**
+     * 绘制结果是否就是原图本身: 没有描边的center_crop矩形, 并且图片已经是控件的大小.
+     * 这种情况下直接绘制原图, 保存处理结果只会在内存缓存中多一份相同的图片
+     */
+    public boolean drawsSourceAsIs(Bitmap opeBitmap, SImageView.ConfigInfo info) {
+        return info.displayType == SImageView.TYPE_RECT && info.borderWidth <= 0
+                && info.scaleType == SImageView.SCALE_TYPE_CENTER_CROP
+                && opeBitmap.getWidth() == info.width && opeBitmap.getHeight() == info.height;
+    }
+
     @Override
     public void algorithm(Canvas canvas, int childTotal, int curChild, Bitmap opeBitmap, SImageView.ConfigInfo info) {
         // 描边宽度
@@ -138,10 +162,7 @@ public class  NormalOnePicStrategy implements IDrawingStrategy {
                     if (opeBitmap.getHeight() == viewHeight && opeBitmap.getWidth() ==viewWidth){
                         canvas.drawBitmap(opeBitmap, 0, 0, null);
                     }else{
-                        Bitmap bitmap = GraphsTemplate.drawBitmap(canvas, opeBitmap, viewWidth, viewHeight, 0, 0, null, scaleType);
-                        if (info.urls.size() == 1){
-                            ImageLoader.getInstance(null).saveCommonlyUsedBitmap(info.urls.get(0),info.displayType, bitmap, info.width, info.height);
-                        }
+                        GraphsTemplate.drawBitmap(canvas, opeBitmap, viewWidth, viewHeight, 0, 0, null, scaleType);
                     }
 
                     return;
@@ -0,0 +1,148 @@
+package com.szysky.customize.siv.imgprocess;
+
+import android.graphics.Bitmap;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-25  下午3:20
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 正在被控件显示的bitmap(活动资源).
+ *
+ *                    正在显示的bitmap可能已经被内存缓存淘汰, 如果再次请求相同的图片就会解码出第二份,
+ *                    所以查询内存缓存之前先查询这里, 保证每个key同时只有一份解码后的图片.
+ *                    每个bitmap记录显示它的控件数量, 数量大于0时不能被放入复用池.
+ *                    全部使用弱引用, 控件没有注销就被回收时也不会影响bitmap的回收.
+ */
+
+public class ActiveResources {
+
+    /**
+     * 放入过内存缓存的bitmap对应的key, 控件登记时通过它找到key
+     */
+    private final WeakHashMap<Bitmap, MemoryKey> mKeys = new WeakHashMap<>();
+
+    /**
+     * 每个bitmap正在显示它的控件数量
+     */
+    private final WeakHashMap<Bitmap, Integer> mCounts = new WeakHashMap<>();
+
+    /**
+     * 每个key当前正在显示的bitmap
+     */
+    private final HashMap<MemoryKey, ResourceRef> mActive = new HashMap<>();
+
+    /**
+     * bitmap被回收之后, 对应的弱引用会进入这个队列, 用来清除失效的记录
+     */
+    private final ReferenceQueue<Bitmap> mQueue = new ReferenceQueue<>();
+
+    /**
+     * 记录bitmap对应的key, 在放入内存缓存时调用
+     */
+    public synchronized void register(MemoryKey key, Bitmap bitmap){
+        mKeys.put(bitmap, key);
+    }
+
+    /**
+     * 一个控件开始显示bitmap
+     */
+    public synchronized void acquire(Bitmap bitmap){
+        purge();
+        Integer count = mCounts.get(bitmap);
+        mCounts.put(bitmap, count == null ? 1 : count + 1);
+
+        MemoryKey key = mKeys.get(bitmap);
+        if (key != null){
+            ResourceRef ref = mActive.get(key);
+            if (ref == null || ref.get() != bitmap){
+                mActive.put(key, new ResourceRef(key, bitmap, mQueue));
+            }
+        }
+    }
+
+    /**
+     * 一个控件不再显示bitmap
+     *
+     * @return 已经没有控件显示时返回bitmap对应的key, 否则返回null
+     */
+    public synchronized MemoryKey release(Bitmap bitmap){
+        purge();
+        Integer count = mCounts.get(bitmap);
+        if (count != null && count > 1){
+            mCounts.put(bitmap, count - 1);
+            return null;
+        }
+        mCounts.remove(bitmap);
+
+        MemoryKey key = mKeys.get(bitmap);
+        if (key != null){
+            ResourceRef ref = mActive.get(key);
+            if (ref != null && ref.get() == bitmap){
+                mActive.remove(key);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * 获得key对应的正在显示的bitmap
+     *
+     * @return 没有时返回null
+     */
+    public synchronized Bitmap get(MemoryKey key){
+        ResourceRef ref = mActive.get(key);
+        if (ref == null){
+            return null;
+        }
+        Bitmap bitmap = ref.get();
+        if (bitmap == null || bitmap.isRecycled()){
+            mActive.remove(key);
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * bitmap是否正在被控件显示
+     */
+    public synchronized boolean isActive(Bitmap bitmap){
+        return mCounts.containsKey(bitmap);
+    }
+
+    /**
+     * 正在显示的不同key的数量
+     */
+    public synchronized int size(){
+        purge();
+        return mActive.size();
+    }
+
+    /**
+     * 清除bitmap已经被回收的记录
+     */
+    private void purge(){
+        ResourceRef ref;
+        while ((ref = (ResourceRef) mQueue.poll()) != null){
+            if (mActive.get(ref.key) == ref){
+                mActive.remove(ref.key);
+            }
+        }
+    }
+
+
+    private static class ResourceRef extends WeakReference<Bitmap> {
+
+        final MemoryKey key;
+
+        ResourceRef(MemoryKey key, Bitmap bitmap, ReferenceQueue<Bitmap> queue) {
+            super(bitmap, queue);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.szysky.customize.siv.imgprocess;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-27  下午2:40
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : {@link DiskLruCache}的二进制日志. 由一个快照文件和一个只追加的尾部文件组成,
+ *                    快照保存重建时所有条目的状态, 之后的操作追加到尾部, 打开时通过内存映射读取快照和尾部,
+ *                    不需要像文本日志那样逐行读取和分割字符串.
+ *
+ *                    两个文件的格式相同: 文件头(魔数, 版本, 应用版本, 值的数量, 代数)之后是连续的记录,
+ *                    每条记录为 操作(1字节) + key长度(1字节) + key + CLEAN时每个值的长度(long).
+ *                    重建时先写入新一代的快照再创建同一代的尾部, 代数不同的尾部已经包含在快照中, 直接忽略.
+ */
+
+final class BinaryJournal implements Closeable {
+
+    static final String SNAPSHOT_FILE = "journal.snap";
+    static final String SNAPSHOT_FILE_TMP = "journal.snap.tmp";
+    static final String TAIL_FILE = "journal.tail";
+
+    static final byte OP_CLEAN = 1;
+    static final byte OP_DIRTY = 2;
+    static final byte OP_REMOVE = 3;
+    static final byte OP_READ = 4;
+
+    private static final int MAGIC = 0x534a524e;
+    private static final int VERSION = 1;
+
+    /**
+     * 魔数, 版本, 应用版本, 值的数量各4字节, 代数8字节
+     */
+    private static final int HEADER_SIZE = 4 * 4 + 8;
+
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * 读取日志时, 每条记录的回调
+     */
+    interface Replay {
+        void record(byte op, String key, long[] lengths) throws IOException;
+    }
+
+    /**
+     * 写入快照时, 由缓存把所有条目的记录交给快照
+     */
+    interface Records {
+        void replayTo(Replay replay) throws IOException;
+    }
+
+    private final File mSnapshotFile;
+    private final File mSnapshotFileTmp;
+    private final File mTailFile;
+    private final int mAppVersion;
+    private final int mValueCount;
+
+    /**
+     * 当前快照的代数
+     */
+    private long mGeneration;
+
+    private DataOutputStream mTailOut;
+
+    BinaryJournal(File directory, int appVersion, int valueCount) {
+        mSnapshotFile = new File(directory, SNAPSHOT_FILE);
+        mSnapshotFileTmp = new File(directory, SNAPSHOT_FILE_TMP);
+        mTailFile = new File(directory, TAIL_FILE);
+        mAppVersion = appVersion;
+        mValueCount = valueCount;
+    }
+
+    /**
+     * 是否已经存在二进制日志
+     */
+    boolean exists() {
+        return mSnapshotFile.exists();
+    }
+
+    /**
+     * 依次读取快照和同一代的尾部, 之后尾部可以继续追加.
+     * 尾部末尾不完整或者无法识别的记录(写入过程中进程被杀)会被截掉, 只有截掉之前的记录交给replay,
+     * 内存中的状态和截掉之后的尾部一致
+     *
+     * @throws IOException 快照不存在或者已经损坏
+     */
+    void read(Replay replay) throws IOException {
+        MappedByteBuffer snapshot = map(mSnapshotFile);
+        mGeneration = readHeader(snapshot);
+        if (readRecords(snapshot, replay) != snapshot.limit()) {
+            throw new IOException("journal snapshot is truncated");
+        }
+
+        long tailLength = 0;
+        if (mTailFile.exists() && mTailFile.length() >= HEADER_SIZE) {
+            MappedByteBuffer tail = map(mTailFile);
+            boolean current;
+            try {
+                current = readHeader(tail) == mGeneration;
+            } catch (IOException staleTail) {
+                current = false;
+            }
+            // 不是这一代的尾部时, 记录已经在快照中. 这时还没有读取任何记录
+            if (current) {
+                tailLength = readRecords(tail, replay);
+            }
+        }
+        openTail(tailLength);
+    }
+
+    /**
+     * 写入新一代的快照, 并创建空的尾部
+     *
+     * @param records 重建之后所有条目的记录, 按照LRU顺序
+     */
+    void writeSnapshot(Records records) throws IOException {
+        closeTail();
+        long generation = mGeneration + 1;
+
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mSnapshotFileTmp), IO_BUFFER_SIZE));
+        try {
+            writeHeader(out, generation);
+            records.replayTo(new Replay() {
+                @Override
+                public void record(byte op, String key, long[] lengths) throws IOException {
+                    writeRecord(out, op, key, lengths);
+                }
+            });
+        } finally {
+            out.close();
+        }
+        if (!mSnapshotFileTmp.renameTo(mSnapshotFile)) {
+            throw new IOException("failed to rename " + mSnapshotFileTmp);
+        }
+        mGeneration = generation;
+        openTail(0);
+    }
+
+    /**
+     * 追加一条记录到尾部的缓冲区, 调用{@link #flush()}之后写入文件
+     */
+    void append(byte op, String key, long[] lengths) throws IOException {
+        writeRecord(mTailOut, op, key, lengths);
+    }
+
+    void flush() throws IOException {
+        mTailOut.flush();
+    }
+
+    /**
+     * 尾部是否已经打开, 关闭之后为false
+     */
+    boolean isOpen() {
+        return mTailOut != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeTail();
+    }
+
+    /**
+     * 删除二进制日志的所有文件, 迁移回文本日志时使用
+     */
+    void delete() {
+        mSnapshotFile.delete();
+        mSnapshotFileTmp.delete();
+        mTailFile.delete();
+    }
+
+    private void closeTail() throws IOException {
+        if (mTailOut != null) {
+            mTailOut.close();
+            mTailOut = null;
+        }
+    }
+
+    /**
+     * 打开尾部用于追加. 长度为0时创建只有文件头的新尾部, 否则截掉有效长度之后的内容
+     */
+    private void openTail(long validLength) throws IOException {
+        if (validLength == 0) {
+            mTailOut = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(mTailFile), IO_BUFFER_SIZE));
+            writeHeader(mTailOut, mGeneration);
+            mTailOut.flush();
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile(mTailFile, "rw");
+        try {
+            file.setLength(validLength);
+        } finally {
+            file.close();
+        }
+        mTailOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mTailFile, true), IO_BUFFER_SIZE));
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // 映射在关闭文件之后仍然有效
+            raf.close();
+        }
+    }
+
+    private void writeHeader(DataOutputStream out, long generation) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(mAppVersion);
+        out.writeInt(mValueCount);
+        out.writeLong(generation);
+    }
+
+    /**
+     * @return 文件的代数
+     */
+    private long readHeader(MappedByteBuffer buffer) throws IOException {
+        try {
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            int appVersion = buffer.getInt();
+            int valueCount = buffer.getInt();
+            if (magic != MAGIC || version != VERSION || appVersion != mAppVersion || valueCount != mValueCount) {
+                throw new IOException("unexpected journal header: ["
+                        + magic + ", " + version + ", " + appVersion + ", " + valueCount + "]");
+            }
+            return buffer.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("journal header is truncated");
+        }
+    }
+
+    private void writeRecord(DataOutputStream out, byte op, String key, long[] lengths) throws IOException {
+        byte[] keyBytes = key.getBytes(ASCII);
+        if (keyBytes.length > 0xff) {
+            throw new IllegalArgumentException("key is too long: " + key);
+        }
+        out.writeByte(op);
+        out.writeByte(keyBytes.length);
+        out.write(keyBytes);
+        if (op == OP_CLEAN) {
+            for (int i = 0; i < mValueCount; i++) {
+                out.writeLong(lengths[i]);
+            }
+        }
+    }
+
+    /**
+     * 读取文件头之后的所有完整记录. 每条记录完整读取并且确认有效之后才交给replay,
+     * 遇到不完整或者无法识别的记录时停止, 之后的内容都不交给replay
+     *
+     * @return 最后一条交给replay的记录的结束位置
+     */
+    private long readRecords(MappedByteBuffer buffer, Replay replay) throws IOException {
+        byte[] keyBytes = new byte[0xff];
+        int end = buffer.position();
+        try {
+            while (buffer.hasRemaining()) {
+                byte op = buffer.get();
+                if (op != OP_CLEAN && op != OP_DIRTY && op != OP_REMOVE && op != OP_READ) {
+                    // 写入过程中断留下的内容
+                    break;
+                }
+                int keyLength = buffer.get() & 0xff;
+                buffer.get(keyBytes, 0, keyLength);
+                long[] lengths = null;
+                if (op == OP_CLEAN) {
+                    lengths = new long[mValueCount];
+                    for (int i = 0; i < mValueCount; i++) {
+                        lengths[i] = buffer.getLong();
+                        if (lengths[i] < 0) {
+                            return end;
+                        }
+                    }
+                }
+                replay.record(op, new String(keyBytes, 0, keyLength, ASCII), lengths);
+                end = buffer.position();
+            }
+        } catch (BufferUnderflowException truncated) {
+            // 最后一条记录没有写完整
+        }
+        return end;
+    }
+}
@@ -0,0 +1,230 @@
+package com.szysky.customize.siv.imgprocess;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-24  下午2:30
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 可复用bitmap的缓存池. 内存缓存淘汰的bitmap放入这里, 解码时通过inBitmap复用它们的内存,
+ *                    减少滑动过程中频繁的内存分配和GC.
+ *
+ *                    4.4及以上只要占用的内存足够就可以复用, 所以按照占用字节数分组, 取不小于需要大小的最小一组.
+ *                    4.4以下要求宽高和格式完全一致, 并且采样率必须为1, 所以按照宽高和格式分组.
+ *                    池子的总大小有上限, 超出时丢弃最早放入的bitmap.
+ */
+
+public class BitmapPool {
+
+    /**
+     * 4.4及以上复用时, 允许使用的bitmap最多为需要大小的倍数, 避免小图占用大块内存
+     */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    /**
+     * 是否按照占用字节数进行复用
+     */
+    private static final boolean SIZE_STRATEGY = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    private final long mMaxSize;
+    private long mCurrentSize;
+
+    /**
+     * 分组后的bitmap, key的含义见{@link #SIZE_STRATEGY}
+     */
+    private final TreeMap<Long, LinkedList<Bitmap>> mBuckets = new TreeMap<>();
+
+    /**
+     * 放入的先后顺序, 超出容量时从头部淘汰
+     */
+    private final LinkedList<Bitmap> mOrder = new LinkedList<>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize 池子最多保存的字节数
+     */
+    public BitmapPool(long maxSize) {
+        if (maxSize <= 0){
+            throw new IllegalArgumentException("缓存池的大小必须大于0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 放入一个不再使用的bitmap
+     *
+     * @return 不可复用(不可变, 已回收或者太大)时返回false
+     */
+    public synchronized boolean put(Bitmap bitmap){
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null){
+            return false;
+        }
+        int size = getBitmapSize(bitmap);
+        if (size > mMaxSize / 2){
+            return false;
+        }
+
+        Long key = keyOf(bitmap);
+        LinkedList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null){
+            bucket = new LinkedList<>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mOrder.add(bitmap);
+        mCurrentSize += size;
+        mPutCount++;
+
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * 获得一个可以用来解码指定大小图片的bitmap, 获得之后从池子中移除
+     *
+     * @return 没有合适的返回null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config){
+        if (width <= 0 || height <= 0){
+            return null;
+        }
+        if (config == null){
+            config = Bitmap.Config.ARGB_8888;
+        }
+
+        Long key;
+        if (SIZE_STRATEGY){
+            long required = (long) width * height * getBytesPerPixel(config);
+            key = mBuckets.ceilingKey(required);
+            if (key != null && key > required * MAX_SIZE_MULTIPLE){
+                key = null;
+            }
+        }else{
+            key = exactKey(width, height, config);
+        }
+
+        LinkedList<Bitmap> bucket = key == null ? null : mBuckets.get(key);
+        if (bucket == null || bucket.isEmpty()){
+            mMissCount++;
+            return null;
+        }
+
+        Bitmap bitmap = bucket.removeLast();
+        if (bucket.isEmpty()){
+            mBuckets.remove(key);
+        }
+        mOrder.remove(bitmap);
+        mCurrentSize -= getBitmapSize(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * 丢弃最早放入的bitmap, 直到总大小不超过指定值
+     */
+    public synchronized void trimToSize(long maxSize){
+        while (mCurrentSize > maxSize && !mOrder.isEmpty()){
+            Bitmap eldest = mOrder.removeFirst();
+            Long key = keyOf(eldest);
+            LinkedList<Bitmap> bucket = mBuckets.get(key);
+            if (bucket != null){
+                bucket.remove(eldest);
+                if (bucket.isEmpty()){
+                    mBuckets.remove(key);
+                }
+            }
+            mCurrentSize -= getBitmapSize(eldest);
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * 清空池子
+     */
+    public void clear(){
+        trimToSize(0);
+    }
+
+    public synchronized long getSize() {
+        return mCurrentSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getPutCount() {
+        return mPutCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * 复用池的统计信息
+     */
+    public synchronized String getStatistics(){
+        int total = mHitCount + mMissCount;
+        return "BitmapPool >> 大小:" + mCurrentSize / 1024 + "/" + mMaxSize / 1024 + "KB"
+                + "  数量:" + mOrder.size()
+                + "  命中:" + mHitCount
+                + "  未命中:" + mMissCount
+                + "  命中率:" + (total == 0 ? 0 : mHitCount * 100 / total) + "%"
+                + "  放入:" + mPutCount
+                + "  淘汰:" + mEvictionCount;
+    }
+
+    private static Long keyOf(Bitmap bitmap){
+        if (SIZE_STRATEGY){
+            return (long) getBitmapSize(bitmap);
+        }
+        return exactKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+    }
+
+    /**
+     * 宽高和格式组合成的key, 宽高各占28位, 格式占低位
+     */
+    private static Long exactKey(int width, int height, Bitmap.Config config){
+        return (((long) width << 28 | height) << 4) | config.ordinal();
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getBitmapSize(Bitmap bitmap){
+        if (SIZE_STRATEGY){
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * 每个像素占用的字节数
+     */
+    public static int getBytesPerPixel(Bitmap.Config config){
+        if (config == Bitmap.Config.ALPHA_8){
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444){
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,216 @@
+package com.szysky.customize.siv.imgprocess;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-23  下午3:40
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 磁盘缓存条目的元数据, 保存响应的校验字段(ETag, Last-Modified)和过期时间.
+ *                    过期之后通过条件请求重新验证, 服务器返回304时只需要更新元数据, 不用重新下载图片.
+ */
+
+public class CacheMetadata {
+
+    /**
+     * 服务器没有给出任何缓存信息时的默认有效期
+     */
+    private static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    /**
+     * 根据Last-Modified推算有效期时的上限
+     */
+    private static final long MAX_HEURISTIC_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    /**
+     * 服务器返回的实体标签, 没有时为null
+     */
+    public final String etag;
+
+    /**
+     * 服务器返回的最后修改时间, 原样保存用于If-Modified-Since, 没有时为null
+     */
+    public final String lastModified;
+
+    /**
+     * 过期的时间点, 单位毫秒
+     */
+    public final long expires;
+
+    public CacheMetadata(String etag, String lastModified, long expires) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+    /**
+     * 根据一次成功的响应创建元数据
+     */
+    public static CacheMetadata fromResponse(FetchResponse response, long now){
+        String lastModified = response.getHeader("Last-Modified");
+        return new CacheMetadata(response.getHeader("ETag"), lastModified,
+                now + computeMaxAge(response, lastModified, now));
+    }
+
+    /**
+     * 没有响应信息时(比如直接写入bitmap), 使用默认的有效期
+     */
+    public static CacheMetadata withDefaultMaxAge(long now){
+        return new CacheMetadata(null, null, now + DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * 服务器返回304之后的新元数据. 304的响应可能带有新的校验字段和缓存时间, 没有的话沿用原来的校验字段
+     */
+    public CacheMetadata revalidate(FetchResponse notModified, long now){
+        String newEtag = notModified.getHeader("ETag");
+        String newLastModified = notModified.getHeader("Last-Modified");
+        String lastModified = newLastModified != null ? newLastModified : this.lastModified;
+        return new CacheMetadata(newEtag != null ? newEtag : etag, lastModified,
+                now + computeMaxAge(notModified, lastModified, now));
+    }
+
+    /**
+     * 是否已经过期需要重新验证
+     */
+    public boolean isStale(long now){
+        return now >= expires;
+    }
+
+    /**
+     * 是否有可以用来进行条件请求的校验字段
+     */
+    public boolean hasValidator(){
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * 图片内容的签名, 图片被替换之后签名随之改变. 优先使用ETag, 其次Last-Modified, 重新验证通过时保持不变.
+     * 两者都没有时无法进行条件请求, 图片只会被完整的响应替换, 每次替换都会得到新的过期时间, 用过期时间区分
+     *
+     * @param length 图片数据的长度
+     */
+    public String sourceSignature(long length){
+        if (etag != null){
+            return "etag:" + etag + ":" + length;
+        }
+        if (lastModified != null){
+            return "modified:" + lastModified + ":" + length;
+        }
+        return "expires:" + expires + ":" + length;
+    }
+
+    /**
+     * 重新验证时需要附带的请求头
+     */
+    public Map<String, String> conditionalHeaders(){
+        HashMap<String, String> headers = new HashMap<>();
+        if (etag != null){
+            headers.put("If-None-Match", etag);
+        }
+        if (lastModified != null){
+            headers.put("If-Modified-Since", lastModified);
+        }
+        return headers;
+    }
+
+    /**
+     * 转换成保存到磁盘的文本, 每个字段一行
+     */
+    public String encode(){
+        return (etag == null ? "" : etag) + "\n"
+                + (lastModified == null ? "" : lastModified) + "\n"
+                + expires;
+    }
+
+    /**
+     * 解析磁盘中保存的文本
+     *
+     * @return 格式不正确时返回null
+     */
+    public static CacheMetadata decode(String text){
+        if (text == null){
+            return null;
+        }
+        String[] lines = text.split("\n", -1);
+        if (lines.length != 3){
+            return null;
+        }
+        try {
+            return new CacheMetadata(lines[0].isEmpty() ? null : lines[0],
+                    lines[1].isEmpty() ? null : lines[1],
+                    Long.parseLong(lines[2].trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 按照Cache-Control, Expires, Last-Modified的顺序计算有效期, 都没有的话使用默认值
+     */
+    private static long computeMaxAge(FetchResponse response, String lastModified, long now){
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null){
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                // 要求每次使用前都要验证
+                if (directive.startsWith("no-cache") || directive.equals("no-store")){
+                    return 0;
+                }
+            }
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.startsWith("max-age=")){
+                    try {
+                        return Math.max(0, Long.parseLong(directive.substring("max-age=".length()).trim()) * 1000);
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        long expires = parseHttpDate(response.getHeader("Expires"));
+        if (expires > 0){
+            long serverDate = parseHttpDate(response.getHeader("Date"));
+            return Math.max(0, expires - (serverDate > 0 ? serverDate : now));
+        }
+
+        // 启发式的有效期, 取距离最后修改时间的10%
+        long modified = parseHttpDate(lastModified);
+        if (modified > 0 && modified < now){
+            return Math.min((now - modified) / 10, MAX_HEURISTIC_AGE);
+        }
+
+        return DEFAULT_MAX_AGE;
+    }
+
+    /**
+     * 解析HTTP的日期格式
+     *
+     * @return 解析失败返回-1
+     */
+    private static long parseHttpDate(String date){
+        if (date == null){
+            return -1;
+        }
+        // SimpleDateFormat不是线程安全的, 每次创建
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date parsed = format.parse(date.trim());
+            return parsed.getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -2,11 +2,18 @@ package com.szysky.customize.siv.imgprocess;
 
 import android.Manifest;
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Looper;
 import android.os.StatFs;
 import android.util.Log;
 import android.util.LruCache;
@@ -19,14 +26,27 @@ import com.szysky.customize.siv.util.LogUtil;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -41,7 +61,44 @@ public class DefaultImageCache implements IImageCache {
 
     private static final String TAG = DefaultImageCache.class.getName();
     private final Context mContext;
-    private final LruCache<String, Bitmap> mMemoryCache;
+    private final LruCache<MemoryKey, Bitmap> mMemoryCache;
+
+    /**
+     * 内存缓存淘汰的bitmap放入复用池, 解码时复用它们的内存
+     */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * 正在被控件显示的bitmap. 查询内存缓存之前先查询这里, 被内存缓存淘汰时仍在显示的bitmap也不能放入复用池
+     */
+    private final ActiveResources mActiveResources = new ActiveResources();
+
+    /**
+     * 每个url在内存缓存中已有的原始解码尺寸, 用于找到可以缩小使用的其他尺寸
+     */
+    private final HashMap<String, ArrayList<MemoryKey>> mSizeIndex = new HashMap<>();
+
+    /**
+     * 内存缓存中绘图策略的处理结果和它们的大小(KB), 按照访问顺序排列.
+     * 处理结果和原图放在同一个内存缓存中, 总大小超过{@link #mProcessedMaxSize}时先淘汰最久没有使用的处理结果,
+     * 避免和原图一样大的处理结果把原图挤出内存缓存
+     */
+    private final LinkedHashMap<MemoryKey, Integer> mProcessedSizes = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 处理结果的总大小, 单位KB, 和mProcessedSizes一起被锁定
+     */
+    private int mProcessedSize;
+
+    /**
+     * 处理结果最多占用的内存缓存大小, 单位KB
+     */
+    private final int mProcessedMaxSize;
+
+    /**
+     * 已有尺寸不超过需要尺寸的这个倍数时直接使用, 不进行缩小
+     */
+    private static final int MAX_DIRECT_USE_MULTIPLE = 2;
 
     /**
      * 默认磁盘缓存的大小值
@@ -49,15 +106,105 @@ public class DefaultImageCache implements IImageCache {
     private static final long DISK_CACHE_SIZE = 1024 * 1024 * 50;
     private static final int DISK_CACHE_IDEX = 0;
 
+    /**
+     * 每个磁盘缓存条目保存两个值, 第二个值为{@link CacheMetadata}, 用于过期之后的重新验证.
+     * 条目格式改变时需要升级版本号, 旧的缓存会被清除
+     */
+    private static final int DISK_CACHE_APP_VERSION = 2;
+    private static final int DISK_CACHE_VALUE_COUNT = 2;
+    private static final int DISK_META_INDEX = 1;
+
+    /**
+     * 磁盘缓存使用二进制日志, 打开时通过内存映射读取, 条目很多时比逐行解析文本日志快得多.
+     * 已有的文本日志会在打开时自动迁移
+     */
+    private static final boolean USE_BINARY_JOURNAL = true;
+
+    /**
+     * 磁盘缓存的分片数量, 每个分片有独立的锁和日志, 不同分片的读写可以同时进行.
+     * 修改之后已有的缓存会失效并在后台删除
+     */
+    private static final int DISK_CACHE_SHARD_COUNT = 4;
+
     /**
      * 设置字节流一次缓冲的数据流大小
      */
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * 缩小或者处理之后的图片(变体)单独保存在这个子目录, 有自己的大小上限和LRU, 不会挤掉原图.
+     * 每个条目保存两个值, 第二个值用来判断变体是否还有效
+     */
+    private static final String VARIANT_DIR_NAME = "variant";
+    private static final long VARIANT_DISK_CACHE_SIZE = 1024 * 1024 * 20;
+    private static final int VARIANT_DISK_CACHE_APP_VERSION = 1;
+    private static final int VARIANT_DISK_CACHE_VALUE_COUNT = 2;
+    private static final int VARIANT_SIGNATURE_INDEX = 1;
+
+    /**
+     * 不超过{@link #PACK_MAX_ENTRY_SIZE}的原图(一般是头像)追加保存到打包缓存的段文件中,
+     * 读取时在已经打开的文件上定位读取, 不需要每个条目打开一次文件. 值的顺序和原图磁盘缓存相同
+     */
+    private static final boolean USE_PACK_FOR_SMALL_ENTRIES = true;
+    private static final int PACK_MAX_ENTRY_SIZE = 32 * 1024;
+    private static final String PACK_DIR_NAME = "pack";
+    private static final long PACK_CACHE_SIZE = 1024 * 1024 * 10;
+
+    /**
+     * 不透明的变体使用JPEG保存时的压缩质量
+     */
+    private static final int VARIANT_JPEG_QUALITY = 90;
     private final ImageLoader mImageLoader;
 
 
-    private boolean mIsDiskLruCacheCreated;
-    private DiskLruCache mDiskLruCache;
+    private volatile boolean mIsDiskLruCacheCreated;
+    private volatile ShardedDiskLruCache mDiskLruCache;
+
+    /**
+     * 磁盘缓存在后台线程打开, 打开结束(无论成功与否)之后计数归零. 打开期间只有内存缓存生效,
+     * 子线程中的磁盘操作等待打开结束之后再进行
+     */
+    private final CountDownLatch mDiskCacheReady = new CountDownLatch(1);
+
+    /**
+     * 变体的磁盘缓存, 创建失败时为null, 只使用原图缓存
+     */
+    private volatile ShardedDiskLruCache mVariantDiskCache;
+
+    /**
+     * 小尺寸原图的打包缓存, 没有开启或者创建失败时为null, 全部使用原图磁盘缓存
+     */
+    private volatile PackFileCache mPackCache;
+
+    /**
+     * 断点续传的临时文件目录, 下载完整之后才会提交到磁盘缓存
+     */
+    private static final String PARTIAL_DIR_NAME = "partial";
+    private static final String PARTIAL_DATA_SUFFIX = ".part";
+    private static final String PARTIAL_ETAG_SUFFIX = ".etag";
+
+    /**
+     * 超过这个时间没有继续的临时文件会在初始化时清除
+     */
+    private static final long PARTIAL_MAX_AGE = 3 * 24 * 60 * 60 * 1000L;
+
+    private volatile File mPartialDir;
+
+    /**
+     * 已经下载完成, 正在后台写入磁盘的数据. 写入完成之前读取磁盘缓存时直接返回这里的数据
+     */
+    private final ConcurrentHashMap<String, SourceBytes> mPendingWrites = new ConcurrentHashMap<>();
+
+    /**
+     * 正在从磁盘读取和解码的图片, 同时请求相同url, 大小和格式的其他请求等待这里的结果,
+     * 同一张图片只经过一次磁盘读取和解码
+     */
+    private final HashMap<String, SharedDiskLoad> mDiskLoads = new HashMap<>();
+
+    /**
+     * 正在写入的临时文件, 同一个url同时只允许一个下载写入
+     */
+    private final HashSet<String> mPartialWriters = new HashSet<>();
 
 
     public DefaultImageCache(Context context, ImageLoader imageLoader){
@@ -68,13 +215,34 @@ public class DefaultImageCache implements IImageCache {
         int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
         int cacheSize = maxMemory / 8;
 
+        // 复用池的大小为内存缓存的一半
+        mBitmapPool = new BitmapPool(cacheSize * 1024L / 2);
+
+        // 处理结果最多占用内存缓存的四分之一
+        mProcessedMaxSize = cacheSize / 4;
+
         // 创建内存缓存的LruCache对象
-        mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+        mMemoryCache = new LruCache<MemoryKey, Bitmap>(cacheSize) {
             @Override
-            protected int sizeOf(String key, Bitmap value) {
+            protected int sizeOf(MemoryKey key, Bitmap value) {
                 // 返回缓存的bitmap大小
                 return value.getRowBytes() * value.getHeight() / 1024;
             }
+
+            @Override
+            protected void entryRemoved(boolean evicted, MemoryKey key, Bitmap oldValue, Bitmap newValue) {
+                // 被淘汰或者替换的bitmap, 没有在显示的话放入复用池.
+                // 刚解码的bitmap在交给控件之前处于最近使用的位置, 一般不会在这个间隙被淘汰
+                if (oldValue != newValue && !mActiveResources.isActive(oldValue)){
+                    mBitmapPool.put(oldValue);
+                }
+                if (newValue == null){
+                    removeFromSizeIndex(key);
+                    if (key.getTransformation() == MemoryKey.TRANSFORM_PROCESSED){
+                        untrackProcessed(key);
+                    }
+                }
+            }
         };
         LogUtil._i(TAG, "设置内存缓存成功--> 大小为:"+cacheSize/1024+"MB");
 
@@ -83,8 +251,22 @@ public class DefaultImageCache implements IImageCache {
 
         if (!writeOrReadPermission){
             Log.w(TAG, "DefaultImageCache: \r\n\r\n     没有写外部存储的权限, 请先授权\r\n\r\n    否则将只有内存缓存会生效 ");
+            mDiskCacheReady.countDown();
         }else{
-            initDiskCache();
+            // 创建目录, 检查可用空间和读取日志都是磁盘IO, 不在调用线程(一般是主线程)进行
+            Thread initThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    try {
+                        initDiskCache();
+                    } finally {
+                        mDiskCacheReady.countDown();
+                    }
+                    LogUtil._i(TAG, "磁盘缓存打开耗时: " + (System.currentTimeMillis() - start) + "ms");
+                }
+            }, "SImageView-disk-init");
+            initThread.start();
         }
 
 
@@ -125,7 +307,13 @@ public class DefaultImageCache implements IImageCache {
         if (getUsableSpace(diskCacheDir) > DISK_CACHE_SIZE) {
             // 利用open函数来构建磁盘缓存对象
             try {
-                mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, DISK_CACHE_SIZE);
+                ShardedDiskLruCache diskLruCache = ShardedDiskLruCache.open(diskCacheDir, DISK_CACHE_APP_VERSION, DISK_CACHE_VALUE_COUNT,
+                        DISK_CACHE_SIZE, DISK_CACHE_SHARD_COUNT, USE_BINARY_JOURNAL);
+                initPartialDir(diskCacheDir);
+                initVariantDiskCache(diskCacheDir);
+                initPackCache(diskCacheDir);
+                // 其他缓存都准备好之后再发布
+                mDiskLruCache = diskLruCache;
                 mIsDiskLruCacheCreated = true;
                 LogUtil._i(TAG, "设置磁盘缓存成功--> 路径为:"+diskCacheDir.getPath());
             } catch (IOException e) {
@@ -135,16 +323,44 @@ public class DefaultImageCache implements IImageCache {
     }
 
 
+    /**
+     * 等待磁盘缓存打开结束. 在主线程调用时不等待, 直接返回当前的状态
+     *
+     * @return 磁盘缓存是否可用
+     */
+    private boolean waitForDiskCache(){
+        if (mDiskCacheReady.getCount() > 0 && Looper.myLooper() != Looper.getMainLooper()){
+            try {
+                mDiskCacheReady.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return mDiskLruCache != null;
+    }
+
+    /**
+     * 磁盘缓存是否已经打开结束. 结束之前的磁盘操作在子线程中等待, 在主线程中按照没有磁盘缓存处理
+     */
+    public boolean isDiskCacheReady(){
+        return mDiskCacheReady.getCount() == 0;
+    }
+
     @Override
     public Bitmap get(final String url, final int reqWidth, final int reqHeight, final ImageView imageView, boolean isDiskCacheGet, final RequestBean bean) {
-        final long entry = System.currentTimeMillis();
         // 从内存缓存获取
         if (!isDiskCacheGet) {
-            // 1.从内存中读取
-            String key = keyFormUrlAndWH(url , reqWidth, reqHeight);
-            Bitmap bitmap = getBitmapFromMemoryCache(key);
+            // 1.从内存中读取, 在主线程调用, 不产生额外的对象
+            Bitmap.Config config = bean != null ? bean.decodeConfig : Bitmap.Config.ARGB_8888;
+            Bitmap bitmap = getDecodedFromMemory(url, reqWidth, reqHeight, config);
+            if (bitmap == null) {
+                // 没有相同尺寸时, 使用大小相近的其他尺寸. 主线程中不进行缩小
+                bitmap = getNearestFromMemory(url, reqWidth, reqHeight, config, false);
+            }
             if (bitmap != null) {
-                LogUtil._d(TAG, "loadBitmap --> 图片从内存中加载成功 uri=" + url + "\r\n消耗时间=" + (System.currentTimeMillis() - entry) + "ms");
+                if (LogUtil.GlobalLogPrint){
+                    LogUtil._d(TAG, "loadBitmap --> 图片从内存中加载成功 uri=" + url);
+                }
                 return bitmap;
             }
         }else{
@@ -152,38 +368,133 @@ public class DefaultImageCache implements IImageCache {
             // 首先判断是否是多张图片加载
             if ((bean != null) &&(bean.loadTotal > 0)){
 
-                // 读取硬盘属于耗时操作, 使用子线程
-                Runnable loadBitmapTask = new Runnable(){
+                // 读取硬盘属于耗时操作, 使用子线程. 磁盘线程池只负责读取数据, 解码交给解码线程池,
+                // 这样磁盘命中不会排在网络下载的后面, 也不会被解码占住磁盘线程
+                Runnable loadBitmapTask = new PriorityTask(bean.priority){
                     @Override
                     public void run() {
-                        int processNum = 0;
+                        bean.pendingTask = null;
+                        // 请求在排队期间已经被取消, 不再读取磁盘
+                        if (bean.isCancelled()){
+                            return;
+                        }
+                        // 请求所在的tag已经暂停, 等待恢复之后再读取
+                        if (mImageLoader.parkIfPaused(bean)){
+                            return;
+                        }
+
+                        // 图片的处理结果在磁盘中时直接使用, 不需要再读取和处理每一张图片
+                        if (bean.processedKey != null){
+                            Bitmap processed = loadProcessedFromDisk(bean.processedKey);
+                            if (processed != null){
+                                LogUtil._i(TAG, "图片的处理结果从磁盘获取成功 >>>> " + bean.urls.toString());
+                                bean.processed = processed;
+                                mImageLoader.mMainHandler.obtainMessage(ImageLoader.MESSAGE_MULTI_DISK_GET_OK, bean).sendToTarget();
+                                return;
+                            }
+                        }
 
                         // 对url对应value值为null的元素进行磁盘获取
+                        final DiskStage stage = new DiskStage(bean);
+                        final ArrayList<String> hitUrls = new ArrayList<>();
+                        final ArrayList<SourceBytes> hitData = new ArrayList<>();
+                        final ArrayList<SharedDiskLoad> hitLoads = new ArrayList<>();
+                        final HashSet<String> variantUrls = new HashSet<>();
                         for (String url : bean.checkNoLoadUrl()) {
-                            Bitmap checkBitmap  = loadBitmapFromDiskCache(url, bean.reqWidth, bean.reqHeight);
-                            // 如果不等于空进行有效添加
-                            if (null != checkBitmap){
-                               bean.addBitmap(url, checkBitmap);
-                                processNum++;
+                            if (bean.isCancelled()){
+                                abandonDiskLoads(hitLoads);
+                                return;
+                            }
+                            // 排队期间其他控件已经加载了相同的图片, 或者内存中有更大的尺寸时缩小之后使用,
+                            // 不需要读取磁盘和解码, 保证同一个key只有一份解码后的图片
+                            if (!bean.diskOnly){
+                                Bitmap nearest = getDecodedFromMemory(url, bean.reqWidth, bean.reqHeight, bean.decodeConfig);
+                                if (nearest == null){
+                                    nearest = getNearestFromMemory(url, bean.reqWidth, bean.reqHeight, bean.decodeConfig, true);
+                                }
+                                if (nearest != null){
+                                    bean.addBitmap(url, nearest);
+                                    stage.processed.incrementAndGet();
+                                    continue;
+                                }
+                            }
+                            // 只需要保存到磁盘的请求, 存在即可, 不需要读取和解码
+                            if (bean.diskOnly){
+                                if (isDiskFresh(url)){
+                                    bean.addBitmap(url, null);
+                                }
+                                continue;
+                            }
+                            // 其他请求正在读取和解码相同的图片, 等待它的结果
+                            SharedDiskLoad load = attachDiskLoad(
+                                    InFlightRequests.keyOf(url, bean.reqWidth, bean.reqHeight, bean.decodeConfig), stage);
+                            if (load == null){
+                                continue;
+                            }
+                            // 优先读取缩小之后的变体, 解码小文件而不是完整的原图
+                            SourceBytes data;
+                            byte[] variant = readVariantBytes(url, bean.reqWidth, bean.reqHeight, bean.decodeConfig);
+                            if (null != variant){
+                                variantUrls.add(url);
+                                data = new SourceBytes(variant, null);
+                            }else{
+                                data = readSourceFromDiskCache(url);
+                            }
+                            if (null != data){
+                                hitUrls.add(url);
+                                hitData.add(data);
+                                hitLoads.add(load);
+                            }else{
+                                // 磁盘中没有, 等待的请求和自己一样进入网络阶段
+                                completeDiskLoad(load, url, null);
                             }
                         }
 
-                        // 判断磁盘获取结束后是否全部完毕
-                        if (!bean.isLoadSuccessful()){
-                            // 通知Handler多张图片从磁盘获取为完成, 但是还未全部完成
-                            mImageLoader.mMainHandler.obtainMessage(ImageLoader.MESSAGE_MULTI_DISK_GET_ERR, bean).sendToTarget();
-                            LogUtil._i(TAG, "info>>>>磁盘缓存获取的图片数量: "+processNum +" 张, 还剩 "+bean.checkNoLoadUrl().length+" 张图片需要网络下载");
-                        }else {
-                            // 通知成功并处理
-                            mImageLoader.mMainHandler.obtainMessage(ImageLoader.MESSAGE_MULTI_DISK_GET_OK, bean).sendToTarget();
-                            LogUtil._i(TAG, "info>>>>磁盘缓存获取的图片数量: "+processNum +"    图片全部处理完毕 ");
+                        // 磁盘中一张都没有, 无需经过解码线程池
+                        if (hitUrls.isEmpty()){
+                            finishDiskStage(stage);
+                            return;
                         }
 
+                        Runnable decodeTask = new PriorityTask(bean.priority) {
+                            @Override
+                            public void run() {
+                                bean.pendingTask = null;
+                                if (bean.isCancelled()){
+                                    abandonDiskLoads(hitLoads);
+                                    return;
+                                }
+
+                                int i = 0;
+                                try {
+                                    for (; i < hitUrls.size(); i++) {
+                                        String hitUrl = hitUrls.get(i);
+                                        SourceBytes hit = hitData.get(i);
+                                        Bitmap checkBitmap = variantUrls.contains(hitUrl)
+                                                ? decodeVariantFromBytes(hitUrl, hit.data, bean.reqWidth, bean.reqHeight, bean.decodeConfig)
+                                                : decodeBitmapFromBytes(hitUrl, hit.data, bean.reqWidth, bean.reqHeight, bean.decodeConfig, hit.signature);
+                                        // 如果不等于空进行有效添加
+                                        if (null != checkBitmap){
+                                            bean.addBitmap(hitUrl, checkBitmap);
+                                            stage.processed.incrementAndGet();
+                                        }
+                                        completeDiskLoad(hitLoads.get(i), hitUrl, checkBitmap);
+                                    }
+                                } finally {
+                                    // 解码异常时, 剩下的等待者不能一直等下去
+                                    abandonDiskLoads(hitLoads.subList(i, hitLoads.size()));
+                                }
+                                finishDiskStage(stage);
+                            }
+                        };
+                        bean.pendingTask = decodeTask;
+                        ImageLoader.DECODE_EXECUTOR.execute(decodeTask);
                     }
                 };
 
                 // 添加任务到线程池
-                ImageLoader.THREAD_POOL_EXECUTOR.execute(loadBitmapTask);
+                bean.pendingTask = loadBitmapTask;
+                ImageLoader.DISK_EXECUTOR.execute(loadBitmapTask);
                 return null;
             }
         }
@@ -193,6 +504,123 @@ public class DefaultImageCache implements IImageCache {
 
 
 
+    /**
+     * 一个请求的磁盘阶段. 自己读取和解码的部分, 以及每一张挂载在其他请求上等待的图片, 都结束之后才通知结果
+     */
+    private static final class DiskStage {
+        final RequestBean bean;
+        final AtomicInteger outstanding = new AtomicInteger(1);
+        /**
+         * 从内存和磁盘得到的图片数量, 只用于日志
+         */
+        final AtomicInteger processed = new AtomicInteger();
+
+        DiskStage(RequestBean bean) {
+            this.bean = bean;
+        }
+    }
+
+    /**
+     * 原图数据, 以及读取时由元数据得到的签名, 见{@link CacheMetadata#sourceSignature(long)}
+     */
+    private static final class SourceBytes {
+        final byte[] data;
+        /**
+         * 变体数据或者签名未知时为null
+         */
+        final String signature;
+
+        SourceBytes(byte[] data, String signature) {
+            this.data = data;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * 一张正在从磁盘读取和解码的图片, 以及等待这个结果的其他请求
+     */
+    private static final class SharedDiskLoad {
+        final String key;
+        final ArrayList<DiskStage> waiters = new ArrayList<>();
+
+        SharedDiskLoad(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * 挂载到正在读取相同图片的请求上
+     *
+     * @param key 通过{@link InFlightRequests#keyOf(String, int, int, Bitmap.Config)}生成
+     * @return 已经有请求在读取时返回null, stage等待这个结果. 否则返回新创建的读取, 由调用者读取和解码之后结束
+     */
+    private SharedDiskLoad attachDiskLoad(String key, DiskStage stage){
+        synchronized (mDiskLoads){
+            SharedDiskLoad load = mDiskLoads.get(key);
+            if (load != null){
+                stage.outstanding.incrementAndGet();
+                load.waiters.add(stage);
+                return null;
+            }
+            load = new SharedDiskLoad(key);
+            mDiskLoads.put(key, load);
+            return load;
+        }
+    }
+
+    /**
+     * 结束一次读取, 把结果分发给所有等待者
+     *
+     * @param bitmap 为null时等待者按照磁盘中没有这张图片处理, 在网络阶段重新检查磁盘
+     */
+    private void completeDiskLoad(SharedDiskLoad load, String url, Bitmap bitmap){
+        ArrayList<DiskStage> waiters;
+        synchronized (mDiskLoads){
+            mDiskLoads.remove(load.key);
+            waiters = new ArrayList<>(load.waiters);
+            load.waiters.clear();
+        }
+        for (DiskStage waiter : waiters) {
+            if (bitmap != null){
+                waiter.bean.addBitmap(url, bitmap);
+                waiter.processed.incrementAndGet();
+            }
+            finishDiskStage(waiter);
+        }
+    }
+
+    /**
+     * 读取的请求被取消, 还没有结束的读取交给等待者在网络阶段处理
+     */
+    private void abandonDiskLoads(List<SharedDiskLoad> loads){
+        for (SharedDiskLoad load : loads) {
+            completeDiskLoad(load, null, null);
+        }
+    }
+
+    private void finishDiskStage(DiskStage stage){
+        if (stage.outstanding.decrementAndGet() == 0){
+            notifyDiskResult(stage.bean, stage.processed.get());
+        }
+    }
+
+    /**
+     * 磁盘阶段结束, 通知Handler是否还有需要网络下载的图片
+     */
+    private void notifyDiskResult(RequestBean bean, int processNum){
+        // 判断磁盘获取结束后是否全部完毕
+        if (!bean.isLoadSuccessful()){
+            // 通知Handler多张图片从磁盘获取为完成, 但是还未全部完成
+            mImageLoader.mMainHandler.obtainMessage(ImageLoader.MESSAGE_MULTI_DISK_GET_ERR, bean).sendToTarget();
+            LogUtil._i(TAG, "info>>>>磁盘缓存获取的图片数量: "+processNum +" 张, 还剩 "+bean.checkNoLoadUrl().length+" 张图片需要网络下载");
+        }else {
+            // 通知成功并处理
+            mImageLoader.mMainHandler.obtainMessage(ImageLoader.MESSAGE_MULTI_DISK_GET_OK, bean).sendToTarget();
+            LogUtil._i(TAG, "info>>>>磁盘缓存获取的图片数量: "+processNum +"    图片全部处理完毕 ");
+        }
+    }
+
+
     @Override
     public void put(String url, Bitmap bmp , int reqWidth, int reqHeight, boolean isNeedDoubleCache) {
 
@@ -217,10 +645,74 @@ public class DefaultImageCache implements IImageCache {
 
     @Override
     public boolean putRawStream(String url, InputStream in) {
+        return putRawStream(url, in, CacheMetadata.withDefaultMaxAge(System.currentTimeMillis()));
+    }
+
+    /**
+     * 在磁盘线程池中以低优先级把已经下载到内存的数据写入磁盘缓存, 不阻塞当前线程.
+     * 写入完成之前, 对这个url的磁盘读取直接使用内存中的数据
+     *
+     * @return 磁盘缓存不可用(只使用内存缓存)时返回false, 数据不会被保存, 调用者需要自己处理这份数据
+     */
+    public boolean putRawBytesAsync(final String url, final byte[] data, final CacheMetadata metadata){
+        if (!waitForDiskCache()) {
+            return false;
+        }
+        final SourceBytes pending = new SourceBytes(data, metadata.sourceSignature(data.length));
+        mPendingWrites.put(url, pending);
+        ImageLoader.DISK_EXECUTOR.execute(new PriorityTask(PriorityTask.PRIORITY_LOW) {
+            @Override
+            public void run() {
+                try {
+                    putRawBytes(url, data, metadata);
+                } finally {
+                    mPendingWrites.remove(url, pending);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 获得正在后台写入磁盘的数据
+     *
+     * @return 没有正在写入的数据时返回null
+     */
+    public byte[] getPendingDiskWrite(String url){
+        SourceBytes pending = mPendingWrites.get(url);
+        return pending != null ? pending.data : null;
+    }
+
+    /**
+     * 把已经下载到内存的原始图片数据和元数据写入磁盘缓存, 小尺寸的数据写入打包缓存
+     */
+    public boolean putRawBytes(String url, byte[] data, CacheMetadata metadata){
+        if (!waitForDiskCache()) {
+            return false;
+        }
+        if (mPackCache != null && data.length <= PACK_MAX_ENTRY_SIZE){
+            String key = keyFormUrl(url);
+            try {
+                mPackCache.put(key, new byte[][]{data, metadata.encode().getBytes("UTF-8")});
+                // 之前较大的版本保存在原图磁盘缓存中
+                mDiskLruCache.remove(key);
+                LogUtil._i(TAG, "putRawBytes: ==> "+"原始图片数据写入打包缓存成功");
+                return true;
+            } catch (IOException e) {
+                LogUtil._w(TAG, "putRawBytes: ==> "+"原始图片数据写入打包缓存失败, 改为写入磁盘缓存", e);
+            }
+        }
+        return putRawStream(url, new ByteArrayInputStream(data), metadata);
+    }
+
+    /**
+     * 把网络下载的原始图片流和响应的元数据一起写入磁盘缓存
+     */
+    public boolean putRawStream(String url, InputStream in, CacheMetadata metadata) {
 
         boolean result = false;
         // 因为本实例 是先下载先保存在磁盘, 然后从磁盘获取 所以如果磁盘无效那么就停止.
-        if (mDiskLruCache == null) {
+        if (!waitForDiskCache()) {
             return false;
         }
 
@@ -247,9 +739,12 @@ public class DefaultImageCache implements IImageCache {
                 while((point = ins.read(b)) != -1){
                     out.write(b,0,point);
                 }
+                out.flush();
+                editor.set(DISK_META_INDEX, metadata.encode());
 
                 //加载成功进行 提交操作
                 editor.commit();
+                removePacked(key);
 
 
                 result = true;
@@ -272,11 +767,6 @@ public class DefaultImageCache implements IImageCache {
             if (out != null){
                 CloseUtil.close(out);
             }
-            try {
-                mDiskLruCache.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
         return result;
     }
@@ -284,7 +774,7 @@ public class DefaultImageCache implements IImageCache {
 
     public void putBitmap(String url, Bitmap bitmap) {
         // 因为本实例 是先下载先保存在磁盘, 然后从磁盘获取 所以如果磁盘无效那么就停止.
-        if (mDiskLruCache == null) {
+        if (!waitForDiskCache()) {
             return ;
         }
 
@@ -305,12 +795,13 @@ public class DefaultImageCache implements IImageCache {
                 out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
 
                 bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                out.flush();
+                editor.set(DISK_META_INDEX, CacheMetadata.withDefaultMaxAge(System.currentTimeMillis()).encode());
 
 
-                //加载成功进行 提交操作
+                //加载成功进行 提交操作, 日志由磁盘缓存批量写入文件
                 editor.commit();
-
-                mDiskLruCache.flush();
+                removePacked(key);
 
             }
 
@@ -329,21 +820,37 @@ public class DefaultImageCache implements IImageCache {
 
 
     public  Bitmap loadBitmapFromDiskCache(String url, int reqWidth, int reqHeight)  {
-        if (mDiskLruCache == null) {
+        return loadBitmapFromDiskCache(url, reqWidth, reqHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * 从磁盘缓存解码图片并添加到内存缓存
+     *
+     * @param config 解码时优先使用的格式, 见{@link ImageCompression#chooseConfig}
+     */
+    public  Bitmap loadBitmapFromDiskCache(String url, int reqWidth, int reqHeight, Bitmap.Config config)  {
+        if (!waitForDiskCache()) {
             return null;
         }
 
         Bitmap bitmap ;
         String key = keyFormUrl(url);
 
-        DiskLruCache.Snapshot snapshot ;
+        byte[][] packed = readPacked(key);
+        if (packed != null){
+            return decodeBitmapFromBytes(url, packed[DISK_CACHE_IDEX], reqWidth, reqHeight, config,
+                    packedSignature(packed));
+        }
+
+        DiskLruCache.Snapshot snapshot = null;
         try {
             snapshot = mDiskLruCache.get(key);
             if (null != snapshot) {
                 FileInputStream fileInputStream = (FileInputStream) snapshot.getInputStream(DISK_CACHE_IDEX);
                 // 由于文件流属于一种有序的文件流, 所以无法进行两次decode. 这里通过获得文件描述符的方法解决
                 FileDescriptor fd = fileInputStream.getFD();
-                bitmap = ImageCompression.decodeFixedSizeForFileDescription(fd, reqWidth, reqHeight);
+                BitmapFactory.Options bounds = new BitmapFactory.Options();
+                bitmap = ImageCompression.decodeFixedSizeForFileDescription(fd, reqWidth, reqHeight, mBitmapPool, config, bounds);
 
                 if (bitmap != null) {
 
@@ -351,118 +858,1269 @@ public class DefaultImageCache implements IImageCache {
                             +"\r\n     加载到内存的图片大小  --> 宽:"+bitmap.getWidth() +"   高:"+bitmap.getHeight()
                             +"\r\n     目标需要的大小图大小  --> 宽:"+reqWidth +"   高:"+reqHeight);
                     addBitmapToMemoryCache(url, reqWidth, reqHeight, bitmap);
+                    CacheMetadata metadata = CacheMetadata.decode(snapshot.getString(DISK_META_INDEX));
+                    if (metadata != null){
+                        putVariantIfSampled(url, reqWidth, reqHeight, bitmap, bounds,
+                                metadata.sourceSignature(fileInputStream.getChannel().size()));
+                    }
 
                 }
                 return bitmap;
             }
         } catch (IOException e) {
             LogUtil._e(TAG, "从磁盘获取IO失败", e);
+        } finally {
+            if (snapshot != null){
+                snapshot.close();
+            }
         }
 
 
         return null;
     }
 
-    /**********************给内存缓存添加操作方法**********************/
     /**
-     * 添加bitmap对象到内存缓存中
-     *
-     * @param url    图片的url
-     * @param bitmap 需要缓存的bitmap对象
+     * 判断磁盘缓存中是否存在url对应的图片
      */
-    private void addBitmapToMemoryCache(String url, int reqWidth, int reqHeight, Bitmap bitmap) {
-        String key = keyFormUrlAndWH(url, reqWidth, reqHeight);
-        // 如果内存缓存中不存在, 那么才进行添加的动作
-        if (null == getBitmapFromMemoryCache(key)) {
-            mMemoryCache.put(key, bitmap);
+    public boolean isDiskCached(String url){
+        if (mPendingWrites.containsKey(url)){
+            return true;
+        }
+        if (!waitForDiskCache()) {
+            return false;
+        }
+        if (mPackCache != null && mPackCache.contains(keyFormUrl(url))){
+            return true;
+        }
 
-            LogUtil.print_i(TAG, "addBitmapToMemoryCache(): ==> "+"图片添加内存缓存成功, \r\n   地址:"+url
-                    +"\r\n     添加内存缓存的图片大小  --> 宽:"+bitmap.getWidth() +"   高:"+bitmap.getHeight()
-                    +"\r\n     目标需要的大小图大小    --> 宽:"+reqWidth +"   高:"+reqHeight
-                    +"\r\n     占用内存大小:"+(bitmap.getRowBytes() * bitmap.getHeight() / 1024f /1024f) + "MB");
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mDiskLruCache.get(keyFormUrl(url));
+            return snapshot != null;
+        } catch (IOException e) {
+            LogUtil._e(TAG, "从磁盘获取IO失败", e);
+            return false;
+        } finally {
+            if (snapshot != null){
+                snapshot.close();
+            }
         }
     }
 
-
     /**
-     * 根据key值获取在内存缓存中保存的bitmap
-     *
-     * @param key 根据图片的url生成的32md5值
-     * @return 如果内存缓存中有对应的值, 那么就返回bitmap, 没有返回值就为null
+     * 判断磁盘缓存中是否存在url对应的图片, 并且没有过期
      */
-    private Bitmap getBitmapFromMemoryCache(String key) {
-        return mMemoryCache.get(key);
+    public boolean isDiskFresh(String url){
+        if (mPendingWrites.containsKey(url)){
+            return true;
+        }
+        CacheMetadata metadata = getDiskMetadata(url);
+        return metadata != null && !metadata.isStale(System.currentTimeMillis());
     }
 
     /**
-     * 获得一个指定的文件夹路径的File对象
+     * 获得磁盘缓存中url对应条目的元数据
      *
-     * @param context 应用上下文
-     * @param dirName 想要在SD卡的缓存路径下的哪一个子文件夹的对应名称
-     * @return 返回一个路径对应的File对象
+     * @return 条目不存在或者元数据无法解析时返回null
      */
-    public File getDiskCacheDir(Context context, String dirName) {
-        // 判断SD卡是否被挂起
-        boolean externalIsAlive = Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED);
-
-        final String cachePath;
+    public CacheMetadata getDiskMetadata(String url){
+        if (!waitForDiskCache()) {
+            return null;
+        }
 
-        if (externalIsAlive) {
-            File externalCacheDir = context.getExternalCacheDir();
-            if (externalCacheDir == null){
-                cachePath = Environment.getExternalStorageDirectory().getPath();
-            }else {cachePath =  externalCacheDir.getPath();
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            byte[] packedMetadata = readPackedMetadata(keyFormUrl(url), null);
+            if (packedMetadata != null){
+                return decodePackedMetadata(packedMetadata);
+            }
+            snapshot = mDiskLruCache.get(keyFormUrl(url));
+            if (null == snapshot){
+                return null;
+            }
+            return CacheMetadata.decode(snapshot.getString(DISK_META_INDEX));
+        } catch (IOException e) {
+            LogUtil._e(TAG, "从磁盘获取IO失败", e);
+            return null;
+        } finally {
+            if (snapshot != null){
+                snapshot.close();
             }
-        } else {
-            cachePath = context.getCacheDir().getPath();
         }
-
-        // 对想要的相对路径下的具体文件名进行创建并返回
-        return new File(cachePath + File.separator + dirName);
     }
 
-
-    // 指定文件对象可用的空间
-    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
-    private long getUsableSpace(File path) {
-        // 大于等于android版本9
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
-            return path.getFreeSpace();
+    /**
+     * 重新验证通过之后只更新条目的元数据, 图片数据保持不变
+     *
+     * @return 条目正在被编辑或者写入失败时返回false
+     */
+    public boolean updateDiskMetadata(String url, CacheMetadata metadata){
+        if (!waitForDiskCache()) {
+            return false;
         }
 
-        StatFs statFs = new StatFs(path.getPath());
-        return (long) statFs.getBlockSize() * (long) statFs.getAvailableBlocks();
+        DiskLruCache.Editor editor = null;
+        try {
+            String key = keyFormUrl(url);
+            byte[][] packed = readPacked(key);
+            if (packed != null){
+                packed[DISK_META_INDEX] = metadata.encode().getBytes("UTF-8");
+                mPackCache.put(key, packed);
+                return true;
+            }
+            editor = mDiskLruCache.edit(key);
+            if (editor == null){
+                return false;
+            }
+            editor.set(DISK_META_INDEX, metadata.encode());
+            editor.commit();
+            return true;
+        } catch (IOException e) {
+            LogUtil._w(TAG, "更新磁盘缓存元数据失败, 地址:" + url, e);
+            if (editor != null){
+                try {
+                    editor.abort();
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 从磁盘缓存中读取url对应的原始图片数据, 不进行解码. 已经过期的条目返回null
+     *
+     * @return 不存在或者读取失败返回null
+     */
+    public byte[] readBytesFromDiskCache(String url){
+        SourceBytes source = readSourceFromDiskCache(url);
+        return source != null ? source.data : null;
+    }
+
+    /**
+     * 同{@link #readBytesFromDiskCache(String)}, 同时返回原图的签名
+     */
+    private SourceBytes readSourceFromDiskCache(String url){
+        if (!waitForDiskCache()) {
+            return null;
+        }
+
+        // 刚下载完成还没有写入磁盘的数据
+        SourceBytes pending = mPendingWrites.get(url);
+        if (pending != null){
+            return pending;
+        }
+
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            byte[][] packed = readPacked(keyFormUrl(url));
+            if (packed != null){
+                CacheMetadata metadata = decodePackedMetadata(packed);
+                if (metadata == null || metadata.isStale(System.currentTimeMillis())){
+                    LogUtil._i(TAG, "磁盘缓存已过期, 需要重新验证 >>>> 地址:" + url);
+                    return null;
+                }
+                return new SourceBytes(packed[DISK_CACHE_IDEX], metadata.sourceSignature(packed[DISK_CACHE_IDEX].length));
+            }
+
+            snapshot = mDiskLruCache.get(keyFormUrl(url));
+            if (null == snapshot){
+                return null;
+            }
+
+            // 已经过期的条目交给网络阶段进行条件请求
+            CacheMetadata metadata = CacheMetadata.decode(snapshot.getString(DISK_META_INDEX));
+            if (metadata == null || metadata.isStale(System.currentTimeMillis())){
+                LogUtil._i(TAG, "磁盘缓存已过期, 需要重新验证 >>>> 地址:" + url);
+                return null;
+            }
+
+            byte[] data = readFully(snapshot.getInputStream(DISK_CACHE_IDEX));
+            return new SourceBytes(data, metadata.sourceSignature(data.length));
+        } catch (IOException e) {
+            LogUtil._e(TAG, "从磁盘获取IO失败", e);
+        } finally {
+            if (snapshot != null){
+                snapshot.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 对从磁盘读取的原始图片数据进行解码, 并添加到内存缓存
+     */
+    public Bitmap decodeBitmapFromBytes(String url, byte[] data, int reqWidth, int reqHeight){
+        return decodeBitmapFromBytes(url, data, reqWidth, reqHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * 同{@link #decodeBitmapFromBytes(String, byte[], int, int)}, 并指定解码时优先使用的格式.
+     * 只有正在后台写入磁盘的数据知道原图的签名, 其他来源的数据不保存变体
+     */
+    public Bitmap decodeBitmapFromBytes(String url, byte[] data, int reqWidth, int reqHeight, Bitmap.Config config){
+        SourceBytes pending = mPendingWrites.get(url);
+        String signature = pending != null && pending.data == data ? pending.signature : null;
+        return decodeBitmapFromBytes(url, data, reqWidth, reqHeight, config, signature);
+    }
+
+    /**
+     * @param signature 原图的签名, 采样缩小时用来保存变体. 为null时不保存变体
+     */
+    private Bitmap decodeBitmapFromBytes(String url, byte[] data, int reqWidth, int reqHeight, Bitmap.Config config,
+                                         String signature){
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        Bitmap bitmap = ImageCompression.decodeFixedSizeForByteArray(data, reqWidth, reqHeight, mBitmapPool, config, bounds);
+        if (bitmap != null) {
+            LogUtil.print_i(TAG, "decodeBitmapFromBytes(): ==> "+"从磁盘加载图片成功, \r\n   地址:"+url
+                    +"\r\n     加载到内存的图片大小  --> 宽:"+bitmap.getWidth() +"   高:"+bitmap.getHeight()
+                    +"\r\n     目标需要的大小图大小  --> 宽:"+reqWidth +"   高:"+reqHeight);
+            addBitmapToMemoryCache(url, reqWidth, reqHeight, bitmap);
+            putVariantIfSampled(url, reqWidth, reqHeight, bitmap, bounds, signature);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 对从变体缓存读取的数据进行解码, 并添加到内存缓存. 变体已经是需要的尺寸, 解码之后不再写回变体缓存
+     */
+    public Bitmap decodeVariantFromBytes(String url, byte[] data, int reqWidth, int reqHeight, Bitmap.Config config){
+        Bitmap bitmap = ImageCompression.decodeFixedSizeForByteArray(data, reqWidth, reqHeight, mBitmapPool, config);
+        if (bitmap != null) {
+            LogUtil._i(TAG, "从变体缓存加载图片成功 >>>> 地址:" + url + "  宽:" + bitmap.getWidth() + "  高:" + bitmap.getHeight());
+            addBitmapToMemoryCache(url, reqWidth, reqHeight, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 读取输入流中的全部数据
+     */
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(in.available() > 0 ? in.available() : IO_BUFFER_SIZE);
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buffer)) != -1){
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    /**********************断点续传的临时文件**********************/
+
+    /**
+     * 创建临时文件目录, 并清除长时间没有继续的临时文件
+     */
+    private void initPartialDir(File diskCacheDir){
+        mPartialDir = new File(diskCacheDir, PARTIAL_DIR_NAME);
+        if (!mPartialDir.exists()) {
+            mPartialDir.mkdirs();
+            return;
+        }
+        File[] files = mPartialDir.listFiles();
+        if (files == null){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > PARTIAL_MAX_AGE){
+                file.delete();
+            }
+        }
+    }
+
+    private File getPartialDataFile(String url){
+        return new File(mPartialDir, keyFormUrl(url) + PARTIAL_DATA_SUFFIX);
+    }
+
+    private File getPartialEtagFile(String url){
+        return new File(mPartialDir, keyFormUrl(url) + PARTIAL_ETAG_SUFFIX);
+    }
+
+    /**
+     * 获得url对应临时文件的写入权, 同一时间只有一个下载可以写入
+     *
+     * @return 磁盘缓存不可用或者其他下载正在写入时返回false
+     */
+    public boolean lockPartial(String url){
+        if (!waitForDiskCache() || mPartialDir == null) {
+            return false;
+        }
+        synchronized (mPartialWriters){
+            return mPartialWriters.add(url);
+        }
+    }
+
+    /**
+     * 释放{@link #lockPartial(String)}获得的写入权
+     */
+    public void unlockPartial(String url){
+        synchronized (mPartialWriters){
+            mPartialWriters.remove(url);
+        }
+    }
+
+    /**
+     * 获得已经下载的部分数据对应的ETag
+     *
+     * @return 没有可以继续的临时文件时返回null
+     */
+    public String getPartialEtag(String url){
+        if (!waitForDiskCache() || mPartialDir == null) {
+            return null;
+        }
+        File data = getPartialDataFile(url);
+        File etagFile = getPartialEtagFile(url);
+        if (!data.exists() || data.length() == 0 || !etagFile.exists()){
+            discardPartial(url);
+            return null;
+        }
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(etagFile);
+            byte[] buffer = new byte[(int) etagFile.length()];
+            int offset = 0;
+            int len;
+            while (offset < buffer.length && (len = in.read(buffer, offset, buffer.length - offset)) != -1){
+                offset += len;
+            }
+            String etag = new String(buffer, 0, offset, "UTF-8");
+            return etag.isEmpty() ? null : etag;
+        } catch (IOException e) {
+            LogUtil._w(TAG, "读取临时文件的ETag失败, 地址:" + url, e);
+            return null;
+        } finally {
+            CloseUtil.close(in);
+        }
+    }
+
+    /**
+     * 已经下载的部分数据的长度
+     */
+    public long getPartialLength(String url){
+        if (!waitForDiskCache() || mPartialDir == null) {
+            return 0;
+        }
+        return getPartialDataFile(url).length();
+    }
+
+    /**
+     * 把响应体写入临时文件. 读取出现异常的时候, 已经写入的数据会保留下来用于下次继续下载
+     *
+     * @param etag 响应的ETag, 继续下载时用于If-Range校验
+     * @param restart true表示丢弃之前的数据从头写入, false表示追加到已有数据之后
+     * @return 是否已经读取到响应体的末尾
+     */
+    public boolean appendPartial(String url, String etag, InputStream in, boolean restart){
+        if (!waitForDiskCache() || mPartialDir == null) {
+            return false;
+        }
+
+        File data = getPartialDataFile(url);
+        BufferedOutputStream out = null;
+        try {
+            if (restart){
+                discardPartial(url);
+                FileOutputStream etagOut = new FileOutputStream(getPartialEtagFile(url));
+                try {
+                    etagOut.write(etag.getBytes("UTF-8"));
+                } finally {
+                    CloseUtil.close(etagOut);
+                }
+            }
+
+            out = new BufferedOutputStream(new FileOutputStream(data, !restart), IO_BUFFER_SIZE);
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) != -1){
+                out.write(buffer, 0, len);
+            }
+            return true;
+        } catch (IOException e) {
+            LogUtil._w(TAG, "下载中断, 已保存" + data.length() + "字节, 下次继续下载 >>>> 地址:" + url);
+            return false;
+        } finally {
+            // 关闭时会把缓冲区中已经读取的数据写入文件
+            CloseUtil.close(out);
+        }
+    }
+
+    /**
+     * 把完整的临时文件提交到磁盘缓存, 无论成功与否都会删除临时文件
+     */
+    public boolean commitPartial(String url, CacheMetadata metadata){
+        if (!waitForDiskCache() || mPartialDir == null) {
+            return false;
+        }
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(getPartialDataFile(url));
+            return putRawStream(url, in, metadata);
+        } catch (IOException e) {
+            LogUtil._w(TAG, "临时文件提交到磁盘缓存失败, 地址:" + url, e);
+            return false;
+        } finally {
+            CloseUtil.close(in);
+            discardPartial(url);
+        }
+    }
+
+    /**
+     * 删除url对应的临时文件
+     */
+    public void discardPartial(String url){
+        if (!waitForDiskCache() || mPartialDir == null) {
+            return;
+        }
+        getPartialDataFile(url).delete();
+        getPartialEtagFile(url).delete();
+    }
+
+    /**********************小尺寸原图的打包缓存**********************/
+
+    /**
+     * 在磁盘缓存目录下创建打包缓存, 失败时小尺寸的原图也保存在原图磁盘缓存
+     */
+    private void initPackCache(File diskCacheDir){
+        if (!USE_PACK_FOR_SMALL_ENTRIES){
+            return;
+        }
+        File packDir = new File(diskCacheDir, PACK_DIR_NAME);
+        try {
+            mPackCache = PackFileCache.open(packDir, DISK_CACHE_VALUE_COUNT, PACK_CACHE_SIZE);
+            LogUtil._i(TAG, "设置打包缓存成功--> 路径为:" + packDir.getPath());
+        } catch (IOException e) {
+            LogUtil._w(TAG, "打包缓存创建失败, 只使用原图磁盘缓存", e);
+        }
+    }
+
+    /**
+     * 从打包缓存读取条目的所有值
+     *
+     * @return 没有打包缓存, 条目不存在或者读取失败时返回null
+     */
+    private byte[][] readPacked(String key){
+        if (mPackCache == null){
+            return null;
+        }
+        try {
+            return mPackCache.get(key);
+        } catch (IOException e) {
+            LogUtil._e(TAG, "从打包缓存获取IO失败", e);
+            return null;
+        }
+    }
+
+    /**
+     * 从打包缓存只读取条目的元数据, 不读取图片数据
+     *
+     * @param lengths 不为null时填入每个值的长度
+     * @return 没有打包缓存, 条目不存在或者读取失败时返回null
+     */
+    private byte[] readPackedMetadata(String key, int[] lengths){
+        if (mPackCache == null){
+            return null;
+        }
+        try {
+            return mPackCache.get(key, DISK_META_INDEX, lengths);
+        } catch (IOException e) {
+            LogUtil._e(TAG, "从打包缓存获取IO失败", e);
+            return null;
+        }
+    }
+
+    /**
+     * 原图写入原图磁盘缓存之后, 删除打包缓存中较小的旧版本
+     */
+    private void removePacked(String key){
+        if (mPackCache == null){
+            return;
+        }
+        try {
+            mPackCache.remove(key);
+        } catch (IOException e) {
+            LogUtil._w(TAG, "从打包缓存删除失败", e);
+        }
+    }
+
+    private static CacheMetadata decodePackedMetadata(byte[][] packed) throws IOException {
+        return decodePackedMetadata(packed[DISK_META_INDEX]);
+    }
+
+    private static CacheMetadata decodePackedMetadata(byte[] metadata) throws IOException {
+        return CacheMetadata.decode(new String(metadata, "UTF-8"));
+    }
+
+    /**
+     * 打包缓存中原图的签名, 元数据无法解析时返回null
+     */
+    private static String packedSignature(byte[][] packed){
+        try {
+            CacheMetadata metadata = decodePackedMetadata(packed);
+            return metadata != null ? metadata.sourceSignature(packed[DISK_CACHE_IDEX].length) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**********************缩小和处理之后的图片(变体)的磁盘缓存**********************/
+
+    /**
+     * 在磁盘缓存目录下创建变体的磁盘缓存, 失败时只使用原图缓存
+     */
+    private void initVariantDiskCache(File diskCacheDir){
+        File variantDir = new File(diskCacheDir, VARIANT_DIR_NAME);
+        if (!variantDir.exists()) {
+            variantDir.mkdirs();
+        }
+        try {
+            mVariantDiskCache = ShardedDiskLruCache.open(variantDir, VARIANT_DISK_CACHE_APP_VERSION, VARIANT_DISK_CACHE_VALUE_COUNT,
+                    VARIANT_DISK_CACHE_SIZE, DISK_CACHE_SHARD_COUNT, USE_BINARY_JOURNAL);
+            LogUtil._i(TAG, "设置变体磁盘缓存成功--> 路径为:" + variantDir.getPath());
+        } catch (IOException e) {
+            LogUtil._w(TAG, "变体磁盘缓存创建失败, 只使用原图缓存", e);
+        }
+    }
+
+    /**
+     * 变体在磁盘缓存中的文件名, 和内存缓存使用相同的key内容
+     */
+    private String variantKeyOf(String url, int reqWidth, int reqHeight, int transformation, Bitmap.Config config){
+        return keyFormUrl(new MemoryKey(url, reqWidth, reqHeight, transformation, config).toString());
+    }
+
+    /**
+     * 原图的签名, 由原图的元数据和长度得到, 见{@link CacheMetadata#sourceSignature(long)}.
+     * 变体保存生成时原图的签名, 原图被新的内容替换之后变体随之失效
+     *
+     * @return 原图不存在, 已经过期或者正在写入时返回null
+     */
+    private String getSourceSignature(String url){
+        if (mDiskLruCache == null || mPendingWrites.containsKey(url)) {
+            return null;
+        }
+
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            int[] lengths = new int[DISK_CACHE_VALUE_COUNT];
+            byte[] packedMetadata = readPackedMetadata(keyFormUrl(url), lengths);
+            if (packedMetadata != null){
+                CacheMetadata metadata = decodePackedMetadata(packedMetadata);
+                if (metadata == null || metadata.isStale(System.currentTimeMillis())){
+                    return null;
+                }
+                return metadata.sourceSignature(lengths[DISK_CACHE_IDEX]);
+            }
+            snapshot = mDiskLruCache.get(keyFormUrl(url));
+            if (null == snapshot){
+                return null;
+            }
+            // 已经过期的原图交给网络阶段进行条件请求, 变体也不能使用
+            CacheMetadata metadata = CacheMetadata.decode(snapshot.getString(DISK_META_INDEX));
+            if (metadata == null || metadata.isStale(System.currentTimeMillis())){
+                return null;
+            }
+            FileInputStream in = (FileInputStream) snapshot.getInputStream(DISK_CACHE_IDEX);
+            return metadata.sourceSignature(in.getChannel().size());
+        } catch (IOException e) {
+            LogUtil._e(TAG, "从磁盘获取IO失败", e);
+            return null;
+        } finally {
+            if (snapshot != null){
+                snapshot.close();
+            }
+        }
+    }
+
+    /**
+     * 读取url在需要尺寸下的变体数据, 省内存的请求优先使用RGB_565的变体. 需要在子线程调用
+     *
+     * @return 没有变体, 或者原图已经改变时返回null
+     */
+    public byte[] readVariantBytes(String url, int reqWidth, int reqHeight, Bitmap.Config config){
+        if (reqWidth == 0 || reqHeight == 0 || !waitForDiskCache() || mVariantDiskCache == null) {
+            return null;
+        }
+        String signature = getSourceSignature(url);
+        if (signature == null){
+            return null;
+        }
+        byte[] data = null;
+        if (config == Bitmap.Config.RGB_565){
+            data = readVariant(variantKeyOf(url, reqWidth, reqHeight, MemoryKey.TRANSFORM_NONE, Bitmap.Config.RGB_565), signature);
+        }
+        if (data == null){
+            data = readVariant(variantKeyOf(url, reqWidth, reqHeight, MemoryKey.TRANSFORM_NONE, Bitmap.Config.ARGB_8888), signature);
+        }
+        return data;
+    }
+
+    /**
+     * 读取变体数据, 已经失效的变体会被删除
+     *
+     * @param signature 生成变体时原图的签名. 为null时表示没有原图, 第二个值保存的是{@link CacheMetadata}, 按照有效期判断
+     */
+    private byte[] readVariant(String diskKey, String signature){
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mVariantDiskCache.get(diskKey);
+            if (null == snapshot){
+                return null;
+            }
+            if (!isVariantValid(snapshot.getString(VARIANT_SIGNATURE_INDEX), signature)){
+                snapshot.close();
+                snapshot = null;
+                mVariantDiskCache.remove(diskKey);
+                return null;
+            }
+            return readFully(snapshot.getInputStream(DISK_CACHE_IDEX));
+        } catch (IOException e) {
+            LogUtil._e(TAG, "从变体缓存获取IO失败", e);
+            return null;
+        } finally {
+            if (snapshot != null){
+                snapshot.close();
+            }
+        }
+    }
+
+    private static boolean isVariantValid(String stored, String signature){
+        if (signature != null){
+            return signature.equals(stored);
+        }
+        CacheMetadata metadata = CacheMetadata.decode(stored);
+        return metadata != null && !metadata.isStale(System.currentTimeMillis());
+    }
+
+    /**
+     * 从原图采样解码出的图片比原图小时, 在后台保存为变体, 以后直接解码变体
+     *
+     * @param bounds 原图的边界信息
+     * @param sourceSignature 解码的原图的签名, 见{@link #getSourceSignature(String)}. 为null时不保存
+     */
+    private void putVariantIfSampled(String url, int reqWidth, int reqHeight, Bitmap bitmap, BitmapFactory.Options bounds,
+                                     String sourceSignature){
+        if (reqWidth == 0 || reqHeight == 0 || sourceSignature == null){
+            return;
+        }
+        if (bitmap.getWidth() >= bounds.outWidth && bitmap.getHeight() >= bounds.outHeight){
+            return;
+        }
+        putVariantAsync(url, reqWidth, reqHeight, MemoryKey.TRANSFORM_NONE, bitmap, sourceSignature);
+    }
+
+    /**
+     * 在磁盘线程池中以低优先级把变体写入变体缓存, 已经存在有效的变体时不重复写入
+     *
+     * @param signature 原图的签名, 为null时使用默认的有效期
+     */
+    private void putVariantAsync(final String url, final int reqWidth, final int reqHeight, final int transformation,
+                                 final Bitmap bitmap, final String signature){
+        // 在主线程调用时磁盘缓存可能还在打开, 只有确定不可用时才放弃
+        if (isDiskCacheReady() && mVariantDiskCache == null){
+            return;
+        }
+        // 写入完成之前登记为显示状态, 避免被淘汰之后放入复用池, 在压缩过程中被其他解码覆盖
+        markDisplayed(bitmap);
+        ImageLoader.DISK_EXECUTOR.execute(new PriorityTask(PriorityTask.PRIORITY_LOW) {
+            @Override
+            public void run() {
+                try {
+                    if (!bitmap.isRecycled()){
+                        putVariant(url, reqWidth, reqHeight, transformation, bitmap, signature);
+                    }
+                } finally {
+                    markHidden(bitmap);
+                }
+            }
+        });
+    }
+
+    private void putVariant(String url, int reqWidth, int reqHeight, int transformation, Bitmap bitmap, String signature){
+        if (!waitForDiskCache() || mVariantDiskCache == null){
+            return;
+        }
+        String diskKey = variantKeyOf(url, reqWidth, reqHeight, transformation, keyConfigOf(bitmap));
+        if (hasValidVariant(diskKey, signature)){
+            return;
+        }
+
+        BufferedOutputStream out = null;
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = mVariantDiskCache.edit(diskKey);
+            if (editor == null){
+                // 正在被其他线程写入
+                return;
+            }
+            out = new BufferedOutputStream(editor.newOutputStream(DISK_CACHE_IDEX), IO_BUFFER_SIZE);
+            // 有透明像素的使用PNG保存, 否则使用体积更小的JPEG
+            if (bitmap.hasAlpha()){
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            }else{
+                bitmap.compress(Bitmap.CompressFormat.JPEG, VARIANT_JPEG_QUALITY, out);
+            }
+            out.flush();
+            editor.set(VARIANT_SIGNATURE_INDEX, signature != null ? signature
+                    : CacheMetadata.withDefaultMaxAge(System.currentTimeMillis()).encode());
+            editor.commit();
+            LogUtil._i(TAG, "变体写入磁盘缓存成功 >>>> 地址:" + url + "  宽:" + bitmap.getWidth() + "  高:" + bitmap.getHeight());
+        } catch (IOException e) {
+            LogUtil._w(TAG, "变体写入磁盘缓存失败, 地址:" + url, e);
+            if (null != editor){
+                try {
+                    editor.abort();
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+        } finally {
+            CloseUtil.close(out);
+        }
+    }
+
+    /**
+     * 变体缓存中是否已经有有效的条目
+     */
+    private boolean hasValidVariant(String diskKey, String signature){
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mVariantDiskCache.get(diskKey);
+            return snapshot != null && isVariantValid(snapshot.getString(VARIANT_SIGNATURE_INDEX), signature);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (snapshot != null){
+                snapshot.close();
+            }
+        }
     }
 
+    /**********************给内存缓存添加操作方法**********************/
+    /**
+     * 添加bitmap对象到内存缓存中
+     *
+     * @param url    图片的url
+     * @param bitmap 需要缓存的bitmap对象
+     */
+    private void addBitmapToMemoryCache(String url, int reqWidth, int reqHeight, Bitmap bitmap) {
+        putToMemory(url, reqWidth, reqHeight, MemoryKey.TRANSFORM_NONE, bitmap);
+    }
 
     /**
-     * 接收一个url地址, 对其转换成md5值并返回
-     * 转成一个32md5值
+     * 添加经过处理的bitmap到内存缓存中, 已经存在时不进行替换. key中的解码格式使用bitmap实际的格式
+     *
+     * @param transformation 图片的处理类型, 没有处理时为{@link MemoryKey#TRANSFORM_NONE}
      */
-    public String keyFormUrl(String url) {
-        String cacheKey;
+    public void putToMemory(String url, int reqWidth, int reqHeight, int transformation, Bitmap bitmap) {
+        if (url == null || bitmap == null){
+            return;
+        }
+        Bitmap.Config config = keyConfigOf(bitmap);
+        // 如果内存缓存中不存在, 那么才进行添加的动作
+        if (null == getFromMemory(url, reqWidth, reqHeight, transformation, config)) {
+            MemoryKey key = new MemoryKey(url, reqWidth, reqHeight, transformation, config);
+            mActiveResources.register(key, bitmap);
+            mMemoryCache.put(key, bitmap);
+            if (transformation == MemoryKey.TRANSFORM_NONE){
+                addToSizeIndex(key);
+            }
+
+            LogUtil.print_i(TAG, "addBitmapToMemoryCache(): ==> "+"图片添加内存缓存成功, \r\n   地址:"+url
+                    +"\r\n     添加内存缓存的图片大小  --> 宽:"+bitmap.getWidth() +"   高:"+bitmap.getHeight()
+                    +"\r\n     目标需要的大小图大小    --> 宽:"+reqWidth +"   高:"+reqHeight
+                    +"\r\n     占用内存大小:"+(bitmap.getRowBytes() * bitmap.getHeight() / 1024f /1024f) + "MB");
+        }
+    }
+
+
+    /**
+     * 在内存缓存中查找同一个url的其他尺寸, 选择宽高都不小于需要尺寸的最小的一个.
+     * 不超过需要尺寸{@link #MAX_DIRECT_USE_MULTIPLE}倍时直接使用, 否则缩小到需要的尺寸并加入内存缓存
+     *
+     * @param allowScale 是否允许进行缩小, 主线程中调用时应该为false
+     * @return 没有合适的尺寸返回null
+     */
+    public Bitmap getNearestFromMemory(String url, int reqWidth, int reqHeight, boolean allowScale){
+        return getNearestFromMemory(url, reqWidth, reqHeight, Bitmap.Config.ARGB_8888, allowScale);
+    }
+
+    /**
+     * 同{@link #getNearestFromMemory(String, int, int, boolean)}, 需要ARGB_8888的请求不使用RGB_565的图片
+     *
+     * @param config 请求解码时优先使用的格式
+     */
+    public Bitmap getNearestFromMemory(String url, int reqWidth, int reqHeight, Bitmap.Config config, boolean allowScale){
+        // 需要原图的请求只能使用原图
+        if (url == null || reqWidth <= 0 || reqHeight <= 0){
+            return null;
+        }
+
+        Bitmap nearest = null;
+        synchronized (mSizeIndex){
+            ArrayList<MemoryKey> keys = mSizeIndex.get(url);
+            if (keys == null){
+                return null;
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                Bitmap candidate = mMemoryCache.get(keys.get(i));
+                if (candidate == null || candidate.isRecycled()
+                        || candidate.getWidth() < reqWidth || candidate.getHeight() < reqHeight){
+                    continue;
+                }
+                if (config != Bitmap.Config.RGB_565 && keys.get(i).getConfig() == Bitmap.Config.RGB_565){
+                    continue;
+                }
+                if (nearest == null || candidate.getWidth() * candidate.getHeight() < nearest.getWidth() * nearest.getHeight()){
+                    nearest = candidate;
+                }
+            }
+        }
+        if (nearest == null){
+            return null;
+        }
+
+        if (nearest.getWidth() <= reqWidth * MAX_DIRECT_USE_MULTIPLE && nearest.getHeight() <= reqHeight * MAX_DIRECT_USE_MULTIPLE){
+            return nearest;
+        }
+        if (!allowScale){
+            return null;
+        }
+
+        Bitmap scaled = scaleDown(nearest, reqWidth, reqHeight);
+        if (scaled != null){
+            LogUtil._i(TAG, "使用内存中更大的尺寸缩小得到图片 " + nearest.getWidth() + "x" + nearest.getHeight()
+                    + " -> " + scaled.getWidth() + "x" + scaled.getHeight() + " >>>> 地址:" + url);
+            putToMemory(url, reqWidth, reqHeight, MemoryKey.TRANSFORM_NONE, scaled);
+        }
+        return scaled;
+    }
+
+    /**
+     * 保持宽高比缩小bitmap, 结果的宽高都不小于需要的尺寸. 优先使用复用池中的bitmap
+     */
+    private Bitmap scaleDown(Bitmap source, int reqWidth, int reqHeight){
+        float scale = Math.max(reqWidth / (float) source.getWidth(), reqHeight / (float) source.getHeight());
+        int width = Math.max(reqWidth, Math.round(source.getWidth() * scale));
+        int height = Math.max(reqHeight, Math.round(source.getHeight() * scale));
+        Bitmap.Config config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+
+        Bitmap target = mBitmapPool.get(width, height, config);
         try {
-            MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(url.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(url.hashCode());
+            if (target != null){
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
+                    target.reconfigure(width, height, config);
+                }
+                target.eraseColor(Color.TRANSPARENT);
+            }else{
+                target = Bitmap.createBitmap(width, height, config);
+            }
+        } catch (IllegalArgumentException e) {
+            target = Bitmap.createBitmap(width, height, config);
+        } catch (OutOfMemoryError e) {
+            LogUtil._w(TAG, "缩小图片时内存不足");
+            return null;
+        }
+
+        Canvas canvas = new Canvas(target);
+        canvas.drawBitmap(source, null, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+        return target;
+    }
+
+    private void addToSizeIndex(MemoryKey key){
+        synchronized (mSizeIndex){
+            ArrayList<MemoryKey> keys = mSizeIndex.get(key.getUrl());
+            if (keys == null){
+                keys = new ArrayList<>(2);
+                mSizeIndex.put(key.getUrl(), keys);
+            }
+            if (!keys.contains(key)){
+                keys.add(key);
+            }
+        }
+    }
+
+    private void removeFromSizeIndex(MemoryKey key){
+        if (key.getTransformation() != MemoryKey.TRANSFORM_NONE){
+            return;
+        }
+        synchronized (mSizeIndex){
+            ArrayList<MemoryKey> keys = mSizeIndex.get(key.getUrl());
+            if (keys != null){
+                keys.remove(key);
+                if (keys.isEmpty()){
+                    mSizeIndex.remove(key.getUrl());
+                }
+            }
+        }
+    }
+
+    /**
+     * 记录一个bitmap开始被控件显示
+     */
+    public void markDisplayed(Bitmap bitmap){
+        if (bitmap == null){
+            return;
+        }
+        mActiveResources.acquire(bitmap);
+    }
+
+    /**
+     * 记录一个bitmap不再被某个控件显示. 已经没有控件显示, 并且在显示期间被内存缓存淘汰时, 重新放回内存缓存
+     */
+    public void markHidden(Bitmap bitmap){
+        if (bitmap == null){
+            return;
+        }
+        MemoryKey key = mActiveResources.release(bitmap);
+        if (key != null && !bitmap.isRecycled() && mMemoryCache.get(key) == null){
+            mMemoryCache.put(key, bitmap);
+            if (key.getTransformation() == MemoryKey.TRANSFORM_NONE){
+                addToSizeIndex(key);
+            }else if (key.getTransformation() == MemoryKey.TRANSFORM_PROCESSED){
+                trackProcessed(key, bitmap);
+            }
+        }
+    }
+
+    /**
+     * 获得正在被控件显示的bitmap记录
+     */
+    public ActiveResources getActiveResources(){
+        return mActiveResources;
+    }
+
+    /**
+     * 获得内存中图片的处理结果
+     *
+     * @param processedKey 由控件生成, 包含了绘图策略的处理标识, 布局, 控件大小和图片地址
+     * @return 没有时返回null
+     */
+    public Bitmap getProcessed(ProcessedKey processedKey){
+        if (processedKey == null){
+            return null;
+        }
+        MemoryKey probe = MemoryKey.probe(processedKey);
+        Bitmap bitmap = mActiveResources.get(probe);
+        if (bitmap != null){
+            return bitmap;
+        }
+        bitmap = mMemoryCache.get(probe);
+        if (bitmap != null){
+            synchronized (mProcessedSizes){
+                // 更新访问顺序
+                mProcessedSizes.get(probe);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * 保存图片的处理结果到内存缓存, 可选同时在后台写入磁盘缓存
+     *
+     * @param toDisk 是否写入磁盘缓存
+     */
+    public void putProcessed(ProcessedKey processedKey, Bitmap processed, boolean toDisk){
+        if (processedKey == null || processed == null){
+            return;
+        }
+        putProcessedToMemory(processedKey, processed);
+        if (!toDisk){
+            return;
+        }
+        // 处理结果没有对应的原图, 和原图一样使用默认的有效期
+        putVariantAsync(processedKey.toString(), 0, 0, MemoryKey.TRANSFORM_PROCESSED, processed, null);
+    }
+
+    /**
+     * 添加处理结果到内存缓存, 已经存在时不进行替换
+     */
+    private void putProcessedToMemory(ProcessedKey processedKey, Bitmap processed){
+        if (getProcessed(processedKey) != null){
+            return;
+        }
+        MemoryKey key = new MemoryKey(processedKey);
+        mActiveResources.register(key, processed);
+        mMemoryCache.put(key, processed);
+        trackProcessed(key, processed);
+    }
+
+    /**
+     * 记录放入内存缓存的处理结果, 超过处理结果的容量时淘汰最久没有使用的处理结果. 正在显示的不会放入复用池
+     */
+    private void trackProcessed(MemoryKey key, Bitmap processed){
+        ArrayList<MemoryKey> evicted = null;
+        synchronized (mProcessedSizes){
+            int size = processed.getRowBytes() * processed.getHeight() / 1024;
+            Integer old = mProcessedSizes.put(key, size);
+            mProcessedSize += size - (old == null ? 0 : old);
+
+            Iterator<Map.Entry<MemoryKey, Integer>> iterator = mProcessedSizes.entrySet().iterator();
+            while (mProcessedSize > mProcessedMaxSize && iterator.hasNext()){
+                Map.Entry<MemoryKey, Integer> eldest = iterator.next();
+                if (eldest.getKey().equals(key)){
+                    // 刚放入的结果保留
+                    continue;
+                }
+                iterator.remove();
+                mProcessedSize -= eldest.getValue();
+                if (evicted == null){
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(eldest.getKey());
+            }
+        }
+        // 在锁外面移除, 移除的回调会再次进入untrackProcessed()
+        if (evicted != null){
+            for (MemoryKey eldest : evicted) {
+                mMemoryCache.remove(eldest);
+            }
         }
-        return cacheKey;
+    }
+
+    /**
+     * 处理结果离开内存缓存时调用
+     */
+    private void untrackProcessed(MemoryKey key){
+        synchronized (mProcessedSizes){
+            Integer size = mProcessedSizes.remove(key);
+            if (size != null){
+                mProcessedSize -= size;
+            }
+        }
+    }
+
+    /**
+     * 从磁盘缓存读取图片的处理结果, 读取成功之后加入内存缓存. 需要在子线程调用
+     *
+     * @return 没有时返回null
+     */
+    public Bitmap loadProcessedFromDisk(ProcessedKey processedKey){
+        if (processedKey == null || !waitForDiskCache() || mVariantDiskCache == null){
+            return null;
+        }
+        byte[] data = readVariant(variantKeyOf(processedKey.toString(), 0, 0, MemoryKey.TRANSFORM_PROCESSED, Bitmap.Config.ARGB_8888), null);
+        if (data == null){
+            return null;
+        }
+        // 处理结果保存的就是控件的大小, 不需要采样
+        Bitmap processed = ImageCompression.decodeFixedSizeForByteArray(data, 0, 0, mBitmapPool);
+        if (processed != null){
+            putProcessedToMemory(processedKey, processed);
+        }
+        return processed;
+    }
+
+    /**
+     * 获得bitmap复用池, 可以通过它获取复用的统计信息
+     */
+    public BitmapPool getBitmapPool(){
+        return mBitmapPool;
+    }
+
+    /**
+     * 按照系统回调的内存等级, 缩小或者清空内存缓存和复用池. 正在显示的bitmap不受影响
+     *
+     * @param level {@link ComponentCallbacks2}中的TRIM_MEMORY_*等级
+     * @return 释放的字节数
+     */
+    public long trimMemory(int level){
+        int retainPercent = getRetainPercent(level);
+        if (retainPercent >= 100){
+            return 0;
+        }
+        if (retainPercent == 0){
+            return clearMemory();
+        }
+        return trimToSize(mMemoryCache.maxSize() * 1024L * retainPercent / 100);
+    }
+
+    /**
+     * 把内存缓存缩小到指定大小, 复用池最多保留这个大小的一半. 缓存之后还会按照原来的上限继续增长
+     *
+     * @param maxBytes 内存缓存最多保留的字节数
+     * @return 释放的字节数
+     */
+    public long trimToSize(long maxBytes){
+        if (maxBytes < 0){
+            throw new IllegalArgumentException("缓存大小不能小于0");
+        }
+        long before = getMemoryUsage();
+        trimMemoryCache((int) Math.min(Integer.MAX_VALUE, maxBytes / 1024));
+        // 内存缓存淘汰的bitmap会先进入复用池, 所以最后再缩小复用池
+        mBitmapPool.trimToSize(maxBytes / 2);
+        long reclaimed = Math.max(0, before - getMemoryUsage());
+        LogUtil._i(TAG, "释放内存缓存 " + reclaimed / 1024 + "KB, 剩余:" + getMemoryUsage() / 1024 + "KB");
+        return reclaimed;
+    }
+
+    /**
+     * 清空内存缓存和复用池
+     *
+     * @return 释放的字节数
+     */
+    public long clearMemory(){
+        return trimToSize(0);
+    }
+
+    /**
+     * 内存缓存和复用池当前占用的字节数
+     */
+    public long getMemoryUsage(){
+        return mMemoryCache.size() * 1024L + mBitmapPool.getSize();
+    }
+
+    /**
+     * 不同内存等级下内存缓存保留的百分比
+     */
+    private static int getRetainPercent(int level){
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE){
+            // 进程在后台列表中靠后的位置, 随时可能被杀死
+            return 0;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND){
+            return 25;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN){
+            // 界面不可见, 缓存暂时用不到
+            return 50;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL){
+            return 25;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW){
+            return 50;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE){
+            return 75;
+        }
+        return 100;
+    }
+
+    /**
+     * 淘汰最近最少使用的内存缓存, 直到不超过指定大小
+     *
+     * @param maxSize 单位为KB, 与{@link LruCache#sizeOf(Object, Object)}一致
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private void trimMemoryCache(int maxSize){
+        if (maxSize == 0){
+            mMemoryCache.evictAll();
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1){
+            mMemoryCache.trimToSize(maxSize);
+            return;
+        }
+        // 4.2以下没有trimToSize, 按照访问顺序从最早的开始移除
+        for (MemoryKey key : mMemoryCache.snapshot().keySet()) {
+            if (mMemoryCache.size() <= maxSize){
+                break;
+            }
+            mMemoryCache.remove(key);
+        }
+    }
+
+    /**
+     * 获取在内存中保存的bitmap, 先查询正在显示的bitmap, 再查询内存缓存. 使用线程内复用的key进行查询
+     *
+     * @param transformation 图片的处理类型, 没有处理时为{@link MemoryKey#TRANSFORM_NONE}
+     * @return 如果内存缓存中有对应的值, 那么就返回bitmap, 没有返回值就为null
+     */
+    public Bitmap getFromMemory(String url, int reqWidth, int reqHeight, int transformation) {
+        return getFromMemory(url, reqWidth, reqHeight, transformation, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * 同{@link #getFromMemory(String, int, int, int)}, 并指定key中的解码格式
+     */
+    public Bitmap getFromMemory(String url, int reqWidth, int reqHeight, int transformation, Bitmap.Config config) {
+        if (url == null){
+            return null;
+        }
+        MemoryKey probe = MemoryKey.probe(url, reqWidth, reqHeight, transformation, config);
+        Bitmap bitmap = mActiveResources.get(probe);
+        if (bitmap != null){
+            return bitmap;
+        }
+        return mMemoryCache.get(probe);
+    }
+
+    /**
+     * 获取没有经过处理的解码图片. 省内存的请求优先使用RGB_565的图片, 没有的话也可以使用ARGB_8888的图片,
+     * 反之则不行
+     *
+     * @param config 请求解码时优先使用的格式
+     */
+    public Bitmap getDecodedFromMemory(String url, int reqWidth, int reqHeight, Bitmap.Config config){
+        Bitmap bitmap = null;
+        if (config == Bitmap.Config.RGB_565){
+            bitmap = getFromMemory(url, reqWidth, reqHeight, MemoryKey.TRANSFORM_NONE, Bitmap.Config.RGB_565);
+        }
+        if (bitmap == null){
+            bitmap = getFromMemory(url, reqWidth, reqHeight, MemoryKey.TRANSFORM_NONE, Bitmap.Config.ARGB_8888);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 内存缓存key中使用的解码格式, 只区分RGB_565和其他格式
+     */
+    private static Bitmap.Config keyConfigOf(Bitmap bitmap){
+        return bitmap.getConfig() == Bitmap.Config.RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * 获得一个指定的文件夹路径的File对象
+     *
+     * @param context 应用上下文
+     * @param dirName 想要在SD卡的缓存路径下的哪一个子文件夹的对应名称
+     * @return 返回一个路径对应的File对象
+     */
+    public File getDiskCacheDir(Context context, String dirName) {
+        // 判断SD卡是否被挂起
+        boolean externalIsAlive = Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED);
+
+        final String cachePath;
+
+        if (externalIsAlive) {
+            File externalCacheDir = context.getExternalCacheDir();
+            if (externalCacheDir == null){
+                cachePath = Environment.getExternalStorageDirectory().getPath();
+            }else {cachePath =  externalCacheDir.getPath();
+            }
+        } else {
+            cachePath = context.getCacheDir().getPath();
+        }
+
+        // 对想要的相对路径下的具体文件名进行创建并返回
+        return new File(cachePath + File.separator + dirName);
+    }
+
+
+    // 指定文件对象可用的空间
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private long getUsableSpace(File path) {
+        // 大于等于android版本9
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            return path.getFreeSpace();
+        }
+
+        StatFs statFs = new StatFs(path.getPath());
+        return (long) statFs.getBlockSize() * (long) statFs.getAvailableBlocks();
     }
 
 
     /**
-     * 接收一个url地址,和宽高属性,  对其组合转换成md5值并返回, 使用与内存缓存中
+     * 接收一个url地址, 对其转换成md5值并返回, 只用于磁盘缓存的文件名
      * 转成一个32md5值
      */
-    public String keyFormUrlAndWH(String url, int reqWidth, int reqHeight) {
+    public String keyFormUrl(String url) {
         String cacheKey;
         try {
-            if (!(reqHeight == 0 || reqWidth ==0)){
-                int marker = reqWidth * 17 + reqHeight * 31;
-                url += marker;
-            }
             MessageDigest mDigest = MessageDigest.getInstance("MD5");
             mDigest.update(url.getBytes());
             cacheKey = bytesToHexString(mDigest.digest());
@@ -472,6 +2130,7 @@ public class DefaultImageCache implements IImageCache {
         return cacheKey;
     }
 
+
     private String bytesToHexString(byte[] bytes) {
         StringBuilder stringBuilder = new StringBuilder();
         for (int i = 0; i < bytes.length; i++) {
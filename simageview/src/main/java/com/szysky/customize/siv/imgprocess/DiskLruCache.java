@@ -44,6 +44,8 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -111,6 +113,25 @@ public final class DiskLruCache implements Closeable {
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    /*
+     * Journal records are group committed: they are appended to the buffered
+     * writer and written out together once GROUP_COMMIT_MAX_RECORDS records are
+     * pending, or GROUP_COMMIT_WINDOW_MS after the first pending record.
+     *
+     * A CLEAN record is appended after the renames it describes and a REMOVE
+     * after the deletes. For a new entry that is enough: records still pending
+     * at a crash only leave files the journal doesn't know about, and they are
+     * swept in the background after the next open.
+     *
+     * Overwriting a readable entry is different, because the journal already
+     * has a CLEAN record for the files that are about to be replaced. Its
+     * DIRTY record is written out before the first rename, so a crash before
+     * the new CLEAN record is committed drops the entry on the next open
+     * instead of pairing the old lengths with new or mixed files.
+     */
+    static final int GROUP_COMMIT_MAX_RECORDS = 64;
+    static final long GROUP_COMMIT_WINDOW_MS = 200;
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -154,6 +175,14 @@ public final class DiskLruCache implements Closeable {
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+
+    /**
+     * When true the journal is kept by {@link BinaryJournal} instead of the
+     * text journal file; an existing journal of the other format is migrated
+     * when the cache is opened.
+     */
+    private final boolean useBinaryJournal;
+    private final BinaryJournal binaryJournal;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
@@ -163,6 +192,11 @@ public final class DiskLruCache implements Closeable {
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
 
+    /** Number of journal records appended, and how many of them were written out. */
+    private long journalRecordCount;
+    private long journalCommittedCount;
+    private boolean groupCommitScheduled;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -273,7 +307,7 @@ public final class DiskLruCache implements Closeable {
         @Override
         public Void call() throws Exception {
             synchronized (DiskLruCache.this) {
-                if (journalWriter == null) {
+                if (isClosed()) {
                     return null; // closed
                 }
                 trimToSize();
@@ -286,13 +320,46 @@ public final class DiskLruCache implements Closeable {
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    /** Shared by all caches to write out pending journal records at the end of a window. */
+    private static final ScheduledThreadPoolExecutor groupCommitExecutor = createGroupCommitExecutor();
+    private final Callable<Void> groupCommitCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                groupCommitScheduled = false;
+                if (isClosed()) {
+                    return null; // closed
+                }
+                commitJournal();
+            }
+            return null;
+        }
+    };
+
+    private static ScheduledThreadPoolExecutor createGroupCommitExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DiskLruCache-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            boolean useBinaryJournal) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.useBinaryJournal = useBinaryJournal;
+        this.binaryJournal = new BinaryJournal(directory, appVersion, valueCount);
     }
 
     /**
@@ -307,6 +374,20 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, false);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param useBinaryJournal keep the journal as a binary snapshot plus an
+     *     append-only tail, read through memory-mapped files. Opening doesn't
+     *     have to split text lines, which matters for caches with many entries.
+     *     A journal of the other format is migrated automatically.
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            boolean useBinaryJournal) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -315,13 +396,23 @@ public final class DiskLruCache implements Closeable {
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize,
+                useBinaryJournal);
+        boolean binaryExists = cache.binaryJournal.exists();
+        if (binaryExists || cache.journalFile.exists()) {
             try {
-                cache.readJournal();
+                if (binaryExists) {
+                    cache.readBinaryJournal();
+                } else {
+                    cache.readJournal();
+                }
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (binaryExists != useBinaryJournal) {
+                    cache.migrateJournal();
+                } else if (!useBinaryJournal) {
+                    cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
+                            IO_BUFFER_SIZE);
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -332,11 +423,61 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, useBinaryJournal);
         cache.rebuildJournal();
         return cache;
     }
 
+    /**
+     * Reads the binary snapshot and its tail. The tail stays open for appending.
+     */
+    private void readBinaryJournal() throws IOException {
+        binaryJournal.read(new BinaryJournal.Replay() {
+            @Override
+            public void record(byte op, String key, long[] lengths) throws IOException {
+                readBinaryRecord(op, key, lengths);
+            }
+        });
+    }
+
+    private void readBinaryRecord(byte op, String key, long[] lengths) throws IOException {
+        if (op == BinaryJournal.OP_REMOVE) {
+            lruEntries.remove(key);
+            return;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+
+        if (op == BinaryJournal.OP_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+        } else if (op == BinaryJournal.OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        }
+        // READ: this work was already done by calling lruEntries.get()
+    }
+
+    /**
+     * Rewrites the journal that was just read in the configured format and
+     * deletes the old one. The new journal is complete before the old one is
+     * deleted, so an interrupted migration is simply done again.
+     */
+    private void migrateJournal() throws IOException {
+        if (useBinaryJournal) {
+            rebuildJournal();
+            deleteIfExists(journalFile);
+        } else {
+            binaryJournal.close();
+            rebuildJournal();
+            binaryJournal.delete();
+        }
+    }
+
     private void readJournal() throws IOException {
         InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
         try {
@@ -403,6 +544,7 @@ public final class DiskLruCache implements Closeable {
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        deleteIfExists(new File(directory, BinaryJournal.SNAPSHOT_FILE_TMP));
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
@@ -418,6 +560,49 @@ public final class DiskLruCache implements Closeable {
                 i.remove();
             }
         }
+        // listing a large directory costs more than reading the journal, so
+        // unknown files are swept in the background after the cache is open
+        executorService.submit(sweepCallable);
+    }
+
+    private final Callable<Void> sweepCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            deleteUnknownFiles();
+            return null;
+        }
+    };
+
+    /**
+     * Deletes entry files of keys the journal doesn't know about: dirty files
+     * of edits that never completed, and files published just before a crash
+     * whose records weren't written out. Files are matched by name only ("key.index"
+     * and "key.index.tmp"), so subdirectories and the journal files, which have
+     * no such names, are left alone without a stat per file.
+     */
+    private void deleteUnknownFiles() throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            int dot = name.indexOf('.');
+            if (dot <= 0 || name.startsWith(JOURNAL_FILE)) {
+                continue;
+            }
+            synchronized (this) {
+                if (isClosed()) {
+                    return;
+                }
+                // files are created, renamed and deleted under this lock together
+                // with their entries, so an unknown key is garbage. A leftover
+                // dirty file of a known key is replaced by the key's next edit.
+                // containsKey doesn't touch the access order
+                if (!lruEntries.containsKey(name.substring(0, dot))) {
+                    deleteIfExists(new File(directory, name));
+                }
+            }
+        }
     }
 
     /**
@@ -425,6 +610,23 @@ public final class DiskLruCache implements Closeable {
      * current journal if it exists.
      */
     private synchronized void rebuildJournal() throws IOException {
+        if (useBinaryJournal) {
+            binaryJournal.writeSnapshot(new BinaryJournal.Records() {
+                @Override
+                public void replayTo(BinaryJournal.Replay replay) throws IOException {
+                    for (Entry entry : lruEntries.values()) {
+                        if (entry.currentEditor != null) {
+                            replay.record(BinaryJournal.OP_DIRTY, entry.key, null);
+                        } else {
+                            replay.record(BinaryJournal.OP_CLEAN, entry.key, entry.lengths);
+                        }
+                    }
+                }
+            });
+            journalCommittedCount = journalRecordCount;
+            return;
+        }
+
         if (journalWriter != null) {
             journalWriter.close();
         }
@@ -451,6 +653,54 @@ public final class DiskLruCache implements Closeable {
         writer.close();
         journalFileTmp.renameTo(journalFile);
         journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        // the rebuilt journal already holds every record appended so far
+        journalCommittedCount = journalRecordCount;
+    }
+
+    /**
+     * Appends a record to the journal. It is written out with the next group
+     * commit, at the latest GROUP_COMMIT_WINDOW_MS from now.
+     */
+    private void appendJournal(String state, Entry entry) throws IOException {
+        if (useBinaryJournal) {
+            binaryJournal.append(binaryOpOf(state), entry.key, entry.lengths);
+        } else if (CLEAN.equals(state)) {
+            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+        } else {
+            journalWriter.write(state + ' ' + entry.key + '\n');
+        }
+        journalRecordCount++;
+        if (journalRecordCount - journalCommittedCount >= GROUP_COMMIT_MAX_RECORDS) {
+            commitJournal();
+        } else if (!groupCommitScheduled) {
+            groupCommitScheduled = true;
+            groupCommitExecutor.schedule(groupCommitCallable, GROUP_COMMIT_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes out all pending journal records.
+     */
+    private void commitJournal() throws IOException {
+        if (journalCommittedCount < journalRecordCount) {
+            if (useBinaryJournal) {
+                binaryJournal.flush();
+            } else {
+                journalWriter.flush();
+            }
+            journalCommittedCount = journalRecordCount;
+        }
+    }
+
+    private static byte binaryOpOf(String state) {
+        if (CLEAN.equals(state)) {
+            return BinaryJournal.OP_CLEAN;
+        } else if (DIRTY.equals(state)) {
+            return BinaryJournal.OP_DIRTY;
+        } else if (REMOVE.equals(state)) {
+            return BinaryJournal.OP_REMOVE;
+        }
+        return BinaryJournal.OP_READ;
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -499,7 +749,7 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
+        appendJournal(READ, entry);
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
@@ -533,9 +783,7 @@ public final class DiskLruCache implements Closeable {
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        appendJournal(DIRTY, entry);
         return editor;
     }
 
@@ -579,6 +827,12 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        // the journal still describes the old files as CLEAN; make sure it says
+        // DIRTY before any of them is replaced
+        if (success && entry.readable) {
+            commitJournal();
+        }
+
         for (int i = 0; i < valueCount; i++) {
             File dirty = entry.getDirtyFile(i);
             if (success) {
@@ -599,13 +853,13 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            appendJournal(CLEAN, entry);
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            appendJournal(REMOVE, entry);
         }
 
         if (size > maxSize || journalRebuildRequired()) {
@@ -647,7 +901,7 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        appendJournal(REMOVE, entry);
         lruEntries.remove(key);
 
         if (journalRebuildRequired()) {
@@ -661,29 +915,30 @@ public final class DiskLruCache implements Closeable {
      * Returns true if this cache has been closed.
      */
     public boolean isClosed() {
-        return journalWriter == null;
+        return useBinaryJournal ? !binaryJournal.isOpen() : journalWriter == null;
     }
 
     private void checkNotClosed() {
-        if (journalWriter == null) {
+        if (isClosed()) {
             throw new IllegalStateException("cache is closed");
         }
     }
 
     /**
-     * Force buffered operations to the filesystem.
+     * Force buffered operations to the filesystem. Callers don't need this for
+     * each edit; pending journal records are group committed.
      */
     public synchronized void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        commitJournal();
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
     public synchronized void close() throws IOException {
-        if (journalWriter == null) {
+        if (isClosed()) {
             return; // already closed
         }
         for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
@@ -692,8 +947,12 @@ public final class DiskLruCache implements Closeable {
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        if (useBinaryJournal) {
+            binaryJournal.close();
+        } else {
+            journalWriter.close();
+            journalWriter = null;
+        }
     }
 
     private void trimToSize() throws IOException {
@@ -0,0 +1,147 @@
+package com.szysky.customize.siv.imgprocess;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-24  上午10:12
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 加载失败的url记录(负缓存).
+ *                    每次失败后按照指数退避加随机抖动计算下次允许请求的时间, 在这之前的请求直接返回失败,
+ *                    不再占用网络线程等待连接超时. 服务器明确返回资源不存在的url使用更长的冷却时间.
+ *                    记录的数量有上限, 超出时淘汰最早的记录.
+ */
+
+public class FailureCache {
+
+    /**
+     * 最多记录的url数量
+     */
+    private static final int MAX_ENTRIES = 128;
+
+    /**
+     * 第一次失败后的冷却时间, 之后每次失败翻倍
+     */
+    private static final long BASE_BACKOFF = 2 * 1000L;
+
+    /**
+     * 冷却时间的上限
+     */
+    private static final long MAX_BACKOFF = 5 * 60 * 1000L;
+
+    /**
+     * 服务器明确拒绝(如404)的url的冷却时间
+     */
+    private static final long PERMANENT_BACKOFF = 10 * 60 * 1000L;
+
+    /**
+     * 网络异常的情况下, 一次加载中自动重试的最大次数
+     */
+    private static final int MAX_RETRIES = 2;
+
+    private final LinkedHashMap<String, Failure> mFailures = new LinkedHashMap<String, Failure>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final Random mRandom = new Random();
+
+    /**
+     * 因为处于冷却中而被直接拒绝的请求数量
+     */
+    private final AtomicInteger mSuppressedCount = new AtomicInteger();
+
+    /**
+     * 记录一次失败
+     *
+     * @param permanent 是否为服务器明确拒绝的失败, 重试也不会成功
+     */
+    public synchronized void recordFailure(String url, boolean permanent){
+        long now = System.currentTimeMillis();
+        Failure failure = mFailures.get(url);
+        // 上一次的冷却已经过去很久, 重新开始计算
+        if (failure == null || now - failure.retryAt > MAX_BACKOFF){
+            failure = new Failure();
+            mFailures.put(url, failure);
+        }
+        failure.count++;
+        failure.permanent = permanent;
+        failure.retryAt = now + (permanent ? PERMANENT_BACKOFF : computeBackoff(failure.count));
+    }
+
+    /**
+     * 加载成功之后清除失败记录
+     */
+    public synchronized void recordSuccess(String url){
+        mFailures.remove(url);
+    }
+
+    /**
+     * url是否处于冷却中, 是的话计入被拒绝的请求数量
+     */
+    public synchronized boolean isSuppressed(String url){
+        Failure failure = mFailures.get(url);
+        if (failure == null || System.currentTimeMillis() >= failure.retryAt){
+            return false;
+        }
+        mSuppressedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 获得自动重试需要等待的时间
+     *
+     * @return 不需要重试(服务器明确拒绝或者已经达到重试次数)时返回-1
+     */
+    public synchronized long getRetryDelay(String url){
+        Failure failure = mFailures.get(url);
+        if (failure == null || failure.permanent || failure.count > MAX_RETRIES){
+            return -1;
+        }
+        return Math.max(0, failure.retryAt - System.currentTimeMillis());
+    }
+
+    /**
+     * 清除所有的失败记录, 比如网络恢复的时候
+     */
+    public synchronized void clear(){
+        mFailures.clear();
+    }
+
+    /**
+     * 当前记录的失败url数量
+     */
+    public synchronized int getFailedCount(){
+        return mFailures.size();
+    }
+
+    /**
+     * 因为处于冷却中而被直接拒绝的请求数量
+     */
+    public int getSuppressedCount(){
+        return mSuppressedCount.get();
+    }
+
+    /**
+     * 指数退避, 并取一半的随机抖动, 避免大量失败的请求在同一时间重试
+     */
+    private long computeBackoff(int count){
+        long backoff = BASE_BACKOFF << Math.min(count - 1, 16);
+        backoff = Math.min(backoff, MAX_BACKOFF);
+        long half = backoff / 2;
+        return half + (long) (mRandom.nextDouble() * half);
+    }
+
+
+    private static class Failure {
+        int count;
+        boolean permanent;
+        long retryAt;
+    }
+}
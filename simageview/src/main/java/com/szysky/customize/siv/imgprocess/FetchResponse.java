@@ -0,0 +1,153 @@
+package com.szysky.customize.siv.imgprocess;
+
+import com.szysky.customize.siv.util.CloseUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-23  上午11:05
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 一次网络请求的响应, 包括状态码, 响应头和响应体.
+ *                    使用完毕之后必须调用{@link #close()}, 连接才能被复用.
+ */
+
+public class FetchResponse implements Closeable {
+
+    private final int mCode;
+    private final Map<String, List<String>> mHeaders;
+    private final InputStream mBody;
+
+    /**
+     * 从发起请求到收到响应头的耗时, 单位毫秒
+     */
+    private final long mHeaderTime;
+
+    public FetchResponse(int code, Map<String, List<String>> headers, InputStream body, long headerTime) {
+        mCode = code;
+        mHeaders = headers == null ? Collections.<String, List<String>>emptyMap() : headers;
+        mBody = body == null ? new ByteArrayInputStream(new byte[0]) : body;
+        mHeaderTime = headerTime;
+    }
+
+    /**
+     * 响应的状态码
+     */
+    public int getCode() {
+        return mCode;
+    }
+
+    /**
+     * 状态码是否为2xx
+     */
+    public boolean isSuccessful(){
+        return mCode >= 200 && mCode < 300;
+    }
+
+    /**
+     * 获得响应头的值, 名称不区分大小写, 有多个值时返回第一个
+     *
+     * @return 不存在返回null
+     */
+    public String getHeader(String name){
+        for (Map.Entry<String, List<String>> entry : mHeaders.entrySet()) {
+            if (entry.getKey() != null && entry.getKey().equalsIgnoreCase(name)){
+                List<String> values = entry.getValue();
+                return (values == null || values.isEmpty()) ? null : values.get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 响应体的长度, 服务器没有返回时为-1
+     */
+    public long getContentLength(){
+        String length = getHeader("Content-Length");
+        if (length != null){
+            try {
+                return Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 响应是否支持断点续传: 需要强校验的ETag, 支持字节范围请求, 并且知道数据长度
+     */
+    public boolean isResumable(){
+        String etag = getHeader("ETag");
+        return etag != null && !etag.startsWith("W/")
+                && "bytes".equalsIgnoreCase(getHeader("Accept-Ranges"))
+                && getContentLength() > 0;
+    }
+
+    /**
+     * 解析206响应Content-Range中的起始位置, 格式为 bytes start-end/total
+     *
+     * @return 解析失败返回-1
+     */
+    public long getRangeStart(){
+        String range = getHeader("Content-Range");
+        if (range == null || !range.startsWith("bytes ")){
+            return -1;
+        }
+        int dash = range.indexOf('-');
+        if (dash < 0){
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 解析206响应Content-Range中的完整长度
+     *
+     * @return 未知或者解析失败返回-1
+     */
+    public long getRangeTotal(){
+        String range = getHeader("Content-Range");
+        if (range == null){
+            return -1;
+        }
+        int slash = range.lastIndexOf('/');
+        if (slash < 0){
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 响应体的输入流
+     */
+    public InputStream getBody() {
+        return mBody;
+    }
+
+    /**
+     * 从发起请求到收到响应头的耗时, 单位毫秒
+     */
+    public long getHeaderTime() {
+        return mHeaderTime;
+    }
+
+    @Override
+    public void close() {
+        CloseUtil.close(mBody);
+    }
+}
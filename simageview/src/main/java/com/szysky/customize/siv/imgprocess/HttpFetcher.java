@@ -0,0 +1,252 @@
+package com.szysky.customize.siv.imgprocess;
+
+import com.szysky.customize.siv.ImageLoader;
+import com.szysky.customize.siv.util.LogUtil;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-23  上午11:20
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 默认的网络请求实现, 基于HttpURLConnection并保持长连接.
+ *
+ *                    HttpURLConnection内部会按照host缓存空闲的连接, 但是只有在响应体被完整读取并关闭输入流,
+ *                    而且没有调用disconnect()的时候, socket才会被放回连接池. 所以这里在关闭响应时先把剩余的数据读完,
+ *                    并且限制每个host同时进行的请求数量不超过连接池的容量, 保证每个连接都能被复用,
+ *                    省去每张图片一次的TCP和TLS握手.
+ */
+
+public class HttpFetcher implements ImageLoader.Fetcher {
+
+    private static final String TAG = HttpFetcher.class.getName();
+
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private static final int READ_TIMEOUT = 15 * 1000;
+
+    /**
+     * 每个host同时进行的请求数量, 和HttpURLConnection默认每个host保存的空闲连接数(http.maxConnections)保持一致
+     */
+    private static final int MAX_CONNECTIONS_PER_HOST = 5;
+
+    /**
+     * 关闭响应时最多读取的剩余数据, 超过这个大小直接断开连接更划算
+     */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * 每个host对应的请求许可
+     */
+    private final HashMap<String, Semaphore> mHostPermits = new HashMap<>();
+
+    /**
+     * 请求的统计信息
+     */
+    private final AtomicLong mFetchCount = new AtomicLong();
+    private final AtomicLong mTotalHeaderTime = new AtomicLong();
+    private final AtomicLong mTotalFetchTime = new AtomicLong();
+    private final AtomicLong mTotalBytes = new AtomicLong();
+
+    @Override
+    public FetchResponse fetch(String url, Map<String, String> headers) throws IOException {
+        URL requestUrl = new URL(url);
+        Semaphore permits = getHostPermits(requestUrl);
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("等待连接时被中断");
+        }
+
+        long startTime = System.currentTimeMillis();
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) requestUrl.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestProperty("Connection", "keep-alive");
+            if (headers != null){
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+
+            int code = connection.getResponseCode();
+            long headerTime = System.currentTimeMillis() - startTime;
+            InputStream raw = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+
+            InputStream body = new KeepAliveStream(raw, connection, permits, url, startTime, headerTime);
+            return new FetchResponse(code, connection.getHeaderFields(), body, headerTime);
+        } catch (IOException e) {
+            // 连接出现异常, 不再复用
+            if (connection != null){
+                connection.disconnect();
+            }
+            permits.release();
+            throw e;
+        }
+    }
+
+    private Semaphore getHostPermits(URL url){
+        String host = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+        synchronized (mHostPermits){
+            Semaphore permits = mHostPermits.get(host);
+            if (permits == null){
+                permits = new Semaphore(MAX_CONNECTIONS_PER_HOST);
+                mHostPermits.put(host, permits);
+            }
+            return permits;
+        }
+    }
+
+    /**
+     * 已经完成的请求数量
+     */
+    public long getFetchCount(){
+        return mFetchCount.get();
+    }
+
+    /**
+     * 平均从发起请求到收到响应头的耗时, 单位毫秒
+     */
+    public long getAverageHeaderTime(){
+        long count = mFetchCount.get();
+        return count == 0 ? 0 : mTotalHeaderTime.get() / count;
+    }
+
+    /**
+     * 平均从发起请求到响应体读取完毕的耗时, 单位毫秒
+     */
+    public long getAverageFetchTime(){
+        long count = mFetchCount.get();
+        return count == 0 ? 0 : mTotalFetchTime.get() / count;
+    }
+
+    /**
+     * 已经读取的响应体总字节数
+     */
+    public long getTotalBytes(){
+        return mTotalBytes.get();
+    }
+
+    /**
+     * 网络请求的统计信息
+     */
+    public String getStatistics(){
+        return "请求数:" + getFetchCount()
+                + "  平均首包:" + getAverageHeaderTime() + "ms"
+                + "  平均耗时:" + getAverageFetchTime() + "ms"
+                + "  总流量:" + getTotalBytes() / 1024 + "KB";
+    }
+
+
+    /**
+     * 对响应体的包装, 关闭时读完剩余数据使连接可以被复用, 并记录这次请求的耗时
+     */
+    private class KeepAliveStream extends FilterInputStream {
+
+        private final HttpURLConnection mConnection;
+        private final Semaphore mPermits;
+        private final String mUrl;
+        private final long mStartTime;
+        private final long mHeaderTime;
+        private long mBytes;
+        private boolean mClosed;
+
+        KeepAliveStream(InputStream in, HttpURLConnection connection, Semaphore permits, String url, long startTime, long headerTime) {
+            super(in);
+            mConnection = connection;
+            mPermits = permits;
+            mUrl = url;
+            mStartTime = startTime;
+            mHeaderTime = headerTime;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (in == null){
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1){
+                mBytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (in == null){
+                return -1;
+            }
+            int len = in.read(buffer, offset, count);
+            if (len > 0){
+                mBytes += len;
+            }
+            return len;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in == null ? 0 : in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed){
+                return;
+            }
+            mClosed = true;
+
+            try {
+                if (in != null){
+                    // 读完剩余的数据, 连接才会被放回连接池
+                    if (drain()){
+                        in.close();
+                    }else{
+                        mConnection.disconnect();
+                    }
+                }
+            } catch (IOException e) {
+                mConnection.disconnect();
+            } finally {
+                mPermits.release();
+
+                long totalTime = System.currentTimeMillis() - mStartTime;
+                mFetchCount.incrementAndGet();
+                mTotalHeaderTime.addAndGet(mHeaderTime);
+                mTotalFetchTime.addAndGet(totalTime);
+                mTotalBytes.addAndGet(mBytes);
+                LogUtil._i(TAG, "网络请求完成 >>>> 首包:" + mHeaderTime + "ms  总耗时:" + totalTime
+                        + "ms  大小:" + mBytes / 1024f + "KB  地址:" + mUrl);
+            }
+        }
+
+        /**
+         * @return 剩余的数据是否全部读完
+         */
+        private boolean drain() throws IOException {
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int drained = 0;
+            int len;
+            while ((len = in.read(buffer)) != -1){
+                drained += len;
+                if (drained > MAX_DRAIN_BYTES){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -26,6 +26,7 @@ public interface IImageCache {
      *
      * @param url 图片的链接地址
      * @param isDiskCacheGet
+     * @param bean 请求的信息, 内存查询时可以为null; 不为null时按照其中的{@link RequestBean#decodeConfig}查找对应格式的图片
      * @return  对应的bitmap
      */
     Bitmap get(String url, int reqWidth, int reqHeight, ImageView imageView, boolean isDiskCacheGet, RequestBean bean);
@@ -4,6 +4,7 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Rect;
+import android.os.Build;
 import android.util.Log;
 
 import com.szysky.customize.siv.util.LogUtil;
@@ -56,22 +57,189 @@ public class ImageCompression {
      * @return 返回采样之后的bitmap对象
      */
     public static Bitmap decodeFixedSizeForFileDescription(FileDescriptor fd, int reqWidth, int reqHeight){
+        return decodeFixedSizeForFileDescription(fd, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * 同{@link #decodeFixedSizeForFileDescription(FileDescriptor, int, int)}, 并尝试复用池中bitmap的内存
+     *
+     * @param pool 复用池, 为null时不进行复用
+     */
+    public static Bitmap decodeFixedSizeForFileDescription(FileDescriptor fd, int reqWidth, int reqHeight, BitmapPool pool){
+        return decodeFixedSizeForFileDescription(fd, reqWidth, reqHeight, pool, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * 同{@link #decodeFixedSizeForFileDescription(FileDescriptor, int, int, BitmapPool)}, 并指定优先使用的格式
+     *
+     * @param preferredConfig 优先使用的格式, 为{@link Bitmap.Config#RGB_565}时只对不透明的图片格式生效
+     */
+    public static Bitmap decodeFixedSizeForFileDescription(FileDescriptor fd, int reqWidth, int reqHeight, BitmapPool pool, Bitmap.Config preferredConfig){
+        return decodeFixedSizeForFileDescription(fd, reqWidth, reqHeight, pool, preferredConfig, null);
+    }
+
+    /**
+     * 同{@link #decodeFixedSizeForFileDescription(FileDescriptor, int, int, BitmapPool, Bitmap.Config)},
+     * 并把解码前得到的原图边界交给调用者, 不需要再单独解析一次
+     *
+     * @param sourceBounds 不为null时填入原图的宽高和格式
+     */
+    public static Bitmap decodeFixedSizeForFileDescription(FileDescriptor fd, int reqWidth, int reqHeight, BitmapPool pool,
+                                                           Bitmap.Config preferredConfig, BitmapFactory.Options sourceBounds){
         // 首先先指定加载的模式 为只是获取资源文件的大小
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFileDescriptor(fd, null, options);
+        copyBounds(options, sourceBounds);
 
 
 
         //Calculate Size  计算要设置的采样率 并把值设置到option上
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
 
-//        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        // 根据文件头得到的图片格式, 决定是否可以使用更省内存的格式
+        options.inPreferredConfig = chooseConfig(options, preferredConfig);
 
         // 关闭只加载属性模式, 并重新加载的时候传入自定义的options对象
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFileDescriptor(fd, new Rect(50,50,50,50), options);
+        applyReuse(options, pool);
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeFileDescriptor(fd, new Rect(50,50,50,50), options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null){
+                throw e;
+            }
+        }
+        if (bitmap == null && options.inBitmap != null){
+            // 复用失败, 使用新的内存重新解码
+            LogUtil._w(TAG, "复用bitmap解码失败, 重新解码");
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFileDescriptor(fd, new Rect(50,50,50,50), options);
+        }
+        return bitmap;
+
+    }
+
+    /**
+     * 对一段内存中的图片数据进行指定长宽来加载进内存, 并把这个bitmap对象返回
+     *
+     * @param data  图片的原始数据
+     * @param reqWidth 最终想要得到bitmap的宽度
+     * @param reqHeight 最终想要得到bitmap的高度
+     * @return 返回采样之后的bitmap对象
+     */
+    public static Bitmap decodeFixedSizeForByteArray(byte[] data, int reqWidth, int reqHeight){
+        return decodeFixedSizeForByteArray(data, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * 同{@link #decodeFixedSizeForByteArray(byte[], int, int)}, 并尝试复用池中bitmap的内存
+     *
+     * @param pool 复用池, 为null时不进行复用
+     */
+    public static Bitmap decodeFixedSizeForByteArray(byte[] data, int reqWidth, int reqHeight, BitmapPool pool){
+        return decodeFixedSizeForByteArray(data, reqWidth, reqHeight, pool, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * 同{@link #decodeFixedSizeForByteArray(byte[], int, int, BitmapPool)}, 并指定优先使用的格式
+     *
+     * @param preferredConfig 优先使用的格式, 为{@link Bitmap.Config#RGB_565}时只对不透明的图片格式生效
+     */
+    public static Bitmap decodeFixedSizeForByteArray(byte[] data, int reqWidth, int reqHeight, BitmapPool pool, Bitmap.Config preferredConfig){
+        return decodeFixedSizeForByteArray(data, reqWidth, reqHeight, pool, preferredConfig, null);
+    }
 
+    /**
+     * 同{@link #decodeFixedSizeForByteArray(byte[], int, int, BitmapPool, Bitmap.Config)},
+     * 并把解码前得到的原图边界交给调用者, 不需要再单独解析一次
+     *
+     * @param sourceBounds 不为null时填入原图的宽高和格式
+     */
+    public static Bitmap decodeFixedSizeForByteArray(byte[] data, int reqWidth, int reqHeight, BitmapPool pool,
+                                                     Bitmap.Config preferredConfig, BitmapFactory.Options sourceBounds){
+        // 首先先指定加载的模式 为只是获取资源文件的大小
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        copyBounds(options, sourceBounds);
+
+        //Calculate Size  计算要设置的采样率 并把值设置到option上
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+
+        // 根据文件头得到的图片格式, 决定是否可以使用更省内存的格式
+        options.inPreferredConfig = chooseConfig(options, preferredConfig);
+
+        // 关闭只加载属性模式, 并重新加载的时候传入自定义的options对象
+        options.inJustDecodeBounds = false;
+        applyReuse(options, pool);
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null){
+                throw e;
+            }
+        }
+        if (bitmap == null && options.inBitmap != null){
+            // 复用失败, 使用新的内存重新解码
+            LogUtil._w(TAG, "复用bitmap解码失败, 重新解码");
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 把只解析边界时得到的宽高和格式复制给调用者
+     */
+    private static void copyBounds(BitmapFactory.Options bounds, BitmapFactory.Options sourceBounds){
+        if (sourceBounds != null){
+            sourceBounds.outWidth = bounds.outWidth;
+            sourceBounds.outHeight = bounds.outHeight;
+            sourceBounds.outMimeType = bounds.outMimeType;
+        }
+    }
+
+    /**
+     * 根据只解析边界时得到的图片格式选择解码格式. RGB_565没有透明通道, 只用于不透明的格式(JPEG),
+     * 其他格式(PNG, WEBP, GIF)可能包含透明像素, 始终使用ARGB_8888
+     *
+     * @param bounds 已经通过inJustDecodeBounds解析过的options
+     * @param preferredConfig 优先使用的格式
+     */
+    public static Bitmap.Config chooseConfig(BitmapFactory.Options bounds, Bitmap.Config preferredConfig){
+        if (preferredConfig == Bitmap.Config.RGB_565 && isOpaqueFormat(bounds.outMimeType)){
+            return Bitmap.Config.RGB_565;
+        }
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * 图片格式是否一定不包含透明通道
+     */
+    public static boolean isOpaqueFormat(String mimeType){
+        return "image/jpeg".equalsIgnoreCase(mimeType) || "image/jpg".equalsIgnoreCase(mimeType);
+    }
+
+    /**
+     * 根据已经计算好的采样率, 从复用池中取出可以承载解码结果的bitmap设置到inBitmap.
+     * 解码出的bitmap都设置为可变的, 这样以后被内存缓存淘汰时才能放入复用池
+     */
+    private static void applyReuse(BitmapFactory.Options options, BitmapPool pool){
+        options.inMutable = true;
+        if (pool == null){
+            return;
+        }
+        int sampleSize = Math.max(1, options.inSampleSize);
+        // 4.4以下只能复用采样率为1的解码
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && sampleSize != 1){
+            return;
+        }
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        options.inBitmap = pool.get(width, height, options.inPreferredConfig);
     }
 
     /**
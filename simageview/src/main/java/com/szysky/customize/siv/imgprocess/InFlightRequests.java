@@ -0,0 +1,184 @@
+package com.szysky.customize.siv.imgprocess;
+
+import android.graphics.Bitmap;
+
+import com.szysky.customize.siv.imgprocess.db.RequestBean;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-20  下午3:12
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 正在进行中的图片请求表.
+ *                    相同url和目标大小的请求只会真正执行一次, 后到的请求挂载到已经存在的请求上,
+ *                    等待第一次请求的结果统一分发, 避免同一张图片被重复下载, 重复写入磁盘和重复解码.
+ */
+
+public class InFlightRequests {
+
+    /**
+     * 一次真正执行的加载, 以及所有等待这个结果的请求
+     */
+    public static class Call {
+        private final String key;
+        private final ArrayList<RequestBean> waiters = new ArrayList<>();
+
+        /**
+         * 执行这次加载的任务, 所有等待者都取消的时候用来从线程池队列中移除
+         */
+        private volatile Runnable task;
+
+        /**
+         * 所有等待者都已经取消, 任务如果已经开始执行, 应该尽快结束
+         */
+        private volatile boolean cancelled;
+
+        private Call(String key) {
+            this.key = key;
+        }
+
+        public void setTask(Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * key: url和目标大小的组合   value: 正在执行的加载
+     */
+    private final HashMap<String, Call> mCalls = new HashMap<>();
+
+    /**
+     * 进入请求表的请求总数
+     */
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    /**
+     * 被合并到已有请求上的数量
+     */
+    private final AtomicInteger mMergedCount = new AtomicInteger();
+
+
+    /**
+     * 生成请求表中使用的key, 由url和目标宽高组成
+     */
+    public static String keyOf(String url, int reqWidth, int reqHeight){
+        return url + "#" + reqWidth + "x" + reqHeight;
+    }
+
+    /**
+     * 同{@link #keyOf(String, int, int)}, 解码格式不同的请求不能合并
+     */
+    public static String keyOf(String url, int reqWidth, int reqHeight, Bitmap.Config config){
+        return keyOf(url, reqWidth, reqHeight) + "#" + config;
+    }
+
+    /**
+     * 挂载一个请求到请求表中
+     *
+     * @param key  通过{@link #keyOf(String, int, int, Bitmap.Config)}生成
+     * @param bean 等待结果的请求
+     * @return 当前没有相同的请求时, 返回新创建的Call, 调用者需要真正发起加载.
+     *         已经合并到进行中的请求上时返回null, 无需再发起
+     */
+    public synchronized Call attach(String key, RequestBean bean){
+        mRequestCount.incrementAndGet();
+
+        Call call = mCalls.get(key);
+        if (call != null){
+            call.waiters.add(bean);
+            mMergedCount.incrementAndGet();
+            return null;
+        }
+
+        call = new Call(key);
+        call.waiters.add(bean);
+        mCalls.put(key, call);
+        return call;
+    }
+
+    /**
+     * 获得一个进行中的加载对应的任务, 不存在返回null
+     */
+    public synchronized Runnable getTask(String key){
+        Call call = mCalls.get(key);
+        return call == null ? null : call.task;
+    }
+
+    /**
+     * 如果所有等待者都只需要保存到磁盘, 那么结束这次加载并返回所有等待者.
+     * 判断和移除是原子操作, 保证之后挂载上来需要解码的请求会重新发起加载
+     *
+     * @return 还有需要解码的等待者时返回null
+     */
+    public synchronized List<RequestBean> detachIfDiskOnly(Call call){
+        for (RequestBean waiter : call.waiters) {
+            if (!waiter.diskOnly){
+                return null;
+            }
+        }
+        return detach(call);
+    }
+
+    /**
+     * 加载执行结束, 从请求表中移除并返回所有等待这个结果的请求
+     */
+    public synchronized List<RequestBean> detach(Call call){
+        if (mCalls.get(call.key) == call){
+            mCalls.remove(call.key);
+        }
+        ArrayList<RequestBean> waiters = new ArrayList<>(call.waiters);
+        call.waiters.clear();
+        return waiters;
+    }
+
+    /**
+     * 取消一个请求在请求表中的所有等待. 如果某次加载已经没有任何等待者, 那么这次加载也会被标记为取消
+     *
+     * @return 已经没有等待者的加载任务, 调用者可以把它们从线程池队列中移除
+     */
+    public synchronized List<Runnable> cancel(RequestBean bean){
+        ArrayList<Runnable> orphans = new ArrayList<>();
+
+        Iterator<Call> iterator = mCalls.values().iterator();
+        while (iterator.hasNext()){
+            Call call = iterator.next();
+            // 一个请求中可能包含重复的url, 需要全部移除
+            while (call.waiters.remove(bean)){
+                // empty
+            }
+
+            if (call.waiters.isEmpty()){
+                call.cancelled = true;
+                iterator.remove();
+                if (call.task != null){
+                    orphans.add(call.task);
+                }
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * 获得进入请求表的请求总数
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * 获得被合并的请求数量, 也就是节省下来的网络请求和解码次数
+     */
+    public int getMergedCount() {
+        return mMergedCount.get();
+    }
+}
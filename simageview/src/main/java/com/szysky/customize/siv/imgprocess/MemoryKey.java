@@ -0,0 +1,184 @@
+package com.szysky.customize.siv.imgprocess;
+
+import android.graphics.Bitmap;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-25  上午10:40
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 内存缓存的key, 由图片地址, 需要的宽高, 处理类型和解码格式组成, 创建时计算好hash值.
+ *                    内存查询在主线程进行, 相比每次计算MD5和拼接字符串, 这里没有额外的计算和内存分配.
+ *                    查询时使用{@link #probe(String, int, int, int)}获得线程内复用的key, 不会产生新的对象.
+ *                    绘图策略的处理结果使用{@link ProcessedKey}代替图片地址, 同样不需要拼接字符串.
+ */
+
+public final class MemoryKey {
+
+    /**
+     * 没有经过处理的原始解码图片
+     */
+    public static final int TRANSFORM_NONE = 0;
+
+    /**
+     * 绘图策略处理之后的整张图片(单张图片的形状处理, 多张图片的合成), 通过{@link #MemoryKey(ProcessedKey)}创建
+     */
+    public static final int TRANSFORM_PROCESSED = 1;
+
+    /**
+     * 每个线程用于查询的key
+     */
+    private static final ThreadLocal<MemoryKey> sProbe = new ThreadLocal<MemoryKey>() {
+        @Override
+        protected MemoryKey initialValue() {
+            return new MemoryKey();
+        }
+    };
+
+    private String mUrl;
+    private ProcessedKey mProcessed;
+    private int mWidth;
+    private int mHeight;
+    private int mTransformation;
+    private Bitmap.Config mConfig;
+    private int mHash;
+
+    private MemoryKey() {
+    }
+
+    /**
+     * @param url 图片地址
+     * @param width 需要的宽度, 宽高有一个为0时表示原图
+     * @param height 需要的高度
+     * @param transformation 图片的处理类型, 没有处理时为{@link #TRANSFORM_NONE}
+     */
+    public MemoryKey(String url, int width, int height, int transformation) {
+        this(url, width, height, transformation, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @param config 解码时优先使用的格式, 为null时表示ARGB_8888
+     */
+    public MemoryKey(String url, int width, int height, int transformation, Bitmap.Config config) {
+        set(url, width, height, transformation, config);
+    }
+
+    /**
+     * 绘图策略处理结果的key, 处理类型为{@link #TRANSFORM_PROCESSED}
+     */
+    public MemoryKey(ProcessedKey processed) {
+        set(processed);
+    }
+
+    /**
+     * 获得当前线程用于查询的key, 只能用于查询, 不能保存或者作为key放入缓存
+     */
+    public static MemoryKey probe(String url, int width, int height, int transformation){
+        return probe(url, width, height, transformation, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * 同{@link #probe(String, int, int, int)}, 并指定解码时优先使用的格式
+     */
+    public static MemoryKey probe(String url, int width, int height, int transformation, Bitmap.Config config){
+        MemoryKey probe = sProbe.get();
+        probe.set(url, width, height, transformation, config);
+        return probe;
+    }
+
+    /**
+     * 同{@link #probe(String, int, int, int)}, 用于查询绘图策略的处理结果
+     */
+    public static MemoryKey probe(ProcessedKey processed){
+        MemoryKey probe = sProbe.get();
+        probe.set(processed);
+        return probe;
+    }
+
+    private void set(ProcessedKey processed){
+        if (processed == null){
+            throw new IllegalArgumentException("处理结果的key不能为null");
+        }
+        mUrl = null;
+        mProcessed = processed;
+        mWidth = 0;
+        mHeight = 0;
+        mTransformation = TRANSFORM_PROCESSED;
+        mConfig = Bitmap.Config.ARGB_8888;
+        mHash = 31 * processed.hashCode() + TRANSFORM_PROCESSED;
+    }
+
+    private void set(String url, int width, int height, int transformation, Bitmap.Config config){
+        if (url == null){
+            throw new IllegalArgumentException("图片地址不能为null");
+        }
+        // 宽高有一个为0都表示原图
+        if (width == 0 || height == 0){
+            width = 0;
+            height = 0;
+        }
+        mUrl = url;
+        mProcessed = null;
+        mWidth = width;
+        mHeight = height;
+        mTransformation = transformation;
+        mConfig = config == null ? Bitmap.Config.ARGB_8888 : config;
+
+        int hash = url.hashCode();
+        hash = 31 * hash + width;
+        hash = 31 * hash + height;
+        hash = 31 * hash + transformation;
+        hash = 31 * hash + mConfig.ordinal();
+        mHash = hash;
+    }
+
+    /**
+     * @return 绘图策略的处理结果返回null
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getTransformation() {
+        return mTransformation;
+    }
+
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o){
+            return true;
+        }
+        if (!(o instanceof MemoryKey)){
+            return false;
+        }
+        MemoryKey other = (MemoryKey) o;
+        return mHash == other.mHash
+                && mWidth == other.mWidth
+                && mHeight == other.mHeight
+                && mTransformation == other.mTransformation
+                && mConfig == other.mConfig
+                && (mUrl != null ? mUrl.equals(other.mUrl) : mProcessed.equals(other.mProcessed));
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return (mUrl != null ? mUrl : mProcessed.toString()) + "#" + mWidth + "x" + mHeight + "#" + mTransformation + "#" + mConfig;
+    }
+}
@@ -0,0 +1,709 @@
+package com.szysky.customize.siv.imgprocess;
+
+import com.szysky.customize.siv.util.LogUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-28  下午3:20
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 小条目的打包磁盘缓存. {@link DiskLruCache}每个条目一个文件, 每次编辑还有一个临时文件,
+ *                    对于几KB到几十KB的头像, 打开文件, 重命名和创建文件节点的开销比读写数据本身还大.
+ *                    这里把条目依次追加到较大的段文件中, 内存中保存每个key所在的段和偏移量,
+ *                    读取时在已经打开的{@link FileChannel}上进行一次定位读取, 不需要每次都打开文件.
+ *
+ *                    段文件由连续的记录组成, 每条记录为:
+ *                    魔数(4字节) + 操作(1字节) + key长度(1字节) + key + 值的数量(4字节) + 每个值的长度(4字节)
+ *                    + 值的内容 + 之前所有内容的CRC32(4字节). 删除时追加一条没有值的删除记录.
+ *                    打开时按照段的顺序读取所有记录重建索引, 末尾不完整的记录会被截掉.
+ *
+ *                    被替换或者删除的记录成为垃圾, 垃圾较多时在后台从最旧的段开始整理:
+ *                    有效的记录原样追加到当前段之后删除旧段. 只整理最旧的段, 所以其中的删除记录可以直接丢弃.
+ *                    LRU顺序只保存在内存中, 重新打开之后按照写入顺序淘汰.
+ */
+
+public final class PackFileCache implements Closeable {
+
+    private static final String TAG = PackFileCache.class.getName();
+
+    static final String SEGMENT_FILE_PREFIX = "segment.";
+
+    /**
+     * 段文件超过这个大小之后, 新的记录写入新的段
+     */
+    private static final long SEGMENT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 已经写满的段中垃圾至少有这么多, 并且占一半以上时才进行整理
+     */
+    private static final long COMPACT_MIN_GARBAGE_BYTES = 1024 * 1024;
+
+    private static final int RECORD_MAGIC = 0x5041434b;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * 记录中除了key和值之外的固定长度: 魔数, 操作, key长度, 值的数量, CRC32
+     */
+    private static final int RECORD_OVERHEAD = 4 + 1 + 1 + 4 + 4;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * 一个段文件, 所有读取共享同一个文件通道
+     */
+    private static final class Segment {
+        final int id;
+        final File file;
+        FileChannel channel;
+        /** 已经写入的长度 */
+        long length;
+        /** 其中仍然有效的记录的长度 */
+        long liveBytes;
+        boolean deleted;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        void openChannel() throws IOException {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+    }
+
+    /**
+     * 条目当前的记录所在的位置, 整理时直接修改, 不改变条目的LRU顺序
+     */
+    private static final class Location {
+        Segment segment;
+        long offset;
+        final int length;
+        /** 被替换或者删除之后为false */
+        boolean live = true;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mValueCount;
+    private final long mMaxSize;
+
+    /**
+     * 按照访问顺序排列的索引, 最久没有使用的在最前面
+     */
+    private final LinkedHashMap<String, Location> mIndex = new LinkedHashMap<>(0, 0.75f, true);
+
+    /**
+     * 按照编号排列的所有段, 最后一个是当前写入的段
+     */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<>();
+
+    /**
+     * 所有有效记录的总长度
+     */
+    private long mSize;
+
+    private boolean mClosed;
+    private boolean mCompactScheduled;
+
+    /** 整理使用一个后台线程 */
+    private final ExecutorService mExecutorService = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final Callable<Void> mCompactCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            try {
+                compact();
+            } catch (IOException e) {
+                LogUtil._w(TAG, "整理段文件失败", e);
+            } finally {
+                synchronized (PackFileCache.this) {
+                    mCompactScheduled = false;
+                }
+            }
+            return null;
+        }
+    };
+
+    private PackFileCache(File directory, int valueCount, long maxSize) {
+        mDirectory = directory;
+        mValueCount = valueCount;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 打开或者创建打包缓存
+     *
+     * @param directory  缓存独占的目录
+     * @param valueCount 每个条目值的数量
+     * @param maxSize    所有有效记录的最大总长度
+     * @throws IOException 读取段文件失败
+     */
+    public static PackFileCache open(File directory, int valueCount, long maxSize) throws IOException {
+        if (valueCount <= 0) {
+            throw new IllegalArgumentException("值的数量必须大于0");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("最大容量必须大于0");
+        }
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+
+        PackFileCache cache = new PackFileCache(directory, valueCount, maxSize);
+        try {
+            cache.readSegments();
+            synchronized (cache) {
+                cache.trimToSize();
+            }
+        } catch (IOException e) {
+            cache.close();
+            throw e;
+        }
+        return cache;
+    }
+
+    /**
+     * 读取key对应的所有值, 一次定位读取得到整条记录
+     *
+     * @return 不存在时返回null
+     */
+    public byte[][] get(String key) throws IOException {
+        return read(key, -1, null);
+    }
+
+    /**
+     * 只读取key对应的一个值, 不读取其他值的内容. 比如只需要元数据时, 不用把图片数据也读出来.
+     * 只读取了记录的一部分, 无法进行CRC32校验, 只检查记录头和记录的长度是否一致
+     *
+     * @param index 值的序号
+     * @param lengths 不为null时填入每个值的长度, 数组长度和值的数量一致
+     * @return 不存在时返回null
+     */
+    public byte[] get(String key, int index, int[] lengths) throws IOException {
+        if (index < 0 || index >= mValueCount) {
+            throw new IllegalArgumentException("值的序号应该在0到" + (mValueCount - 1) + "之间, 实际为" + index);
+        }
+        byte[][] values = read(key, index, lengths);
+        return values == null ? null : values[0];
+    }
+
+    /**
+     * @param index 小于0时读取整条记录并返回所有值, 否则只返回这一个值
+     */
+    private byte[][] read(String key, int index, int[] lengths) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Segment segment;
+            FileChannel channel;
+            long offset;
+            int length;
+            synchronized (this) {
+                checkNotClosed();
+                Location location = mIndex.get(key);
+                if (location == null) {
+                    return null;
+                }
+                segment = location.segment;
+                channel = segment.channel;
+                offset = location.offset;
+                length = location.length;
+            }
+            try {
+                if (index < 0) {
+                    return parseValues(readRecord(channel, offset, length), key);
+                }
+                return new byte[][]{readValue(channel, offset, length, key, index, lengths)};
+            } catch (ClosedChannelException e) {
+                // 线程被中断时通道会被关闭, 重新打开给其他线程使用. 段被整理删除时重新查找位置
+                reopenIfNeeded(segment);
+                if (e instanceof ClosedByInterruptException || attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public synchronized boolean contains(String key) {
+        return !mClosed && mIndex.containsKey(key);
+    }
+
+    /**
+     * 追加一条记录, 替换key原有的值
+     *
+     * @param values 数量必须和打开时指定的一致
+     */
+    public synchronized void put(String key, byte[][] values) throws IOException {
+        checkNotClosed();
+        if (values.length != mValueCount) {
+            throw new IllegalArgumentException("值的数量应该为" + mValueCount + ", 实际为" + values.length);
+        }
+        byte[] record = encodeRecord(OP_PUT, key, values);
+        Location location = append(record);
+        location.segment.liveBytes += record.length;
+        mSize += record.length;
+        discard(mIndex.put(key, location));
+
+        trimToSize();
+        scheduleCompactIfNeeded();
+    }
+
+    /**
+     * 删除key对应的条目
+     *
+     * @return 条目存在时返回true
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        if (!removeInternal(key)) {
+            return false;
+        }
+        scheduleCompactIfNeeded();
+        return true;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mExecutorService.shutdown();
+        for (Segment segment : mSegments.values()) {
+            DiskLruCache.closeQuietly(segment.channel);
+        }
+    }
+
+    /**
+     * 关闭并删除所有段文件
+     */
+    public void delete() throws IOException {
+        close();
+        DiskLruCache.deleteContents(mDirectory);
+    }
+
+    /**
+     * 后台整理是否已经提交还没有结束, 测试使用
+     */
+    synchronized boolean isCompacting() {
+        return mCompactScheduled;
+    }
+
+    private void checkNotClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    private boolean removeInternal(String key) throws IOException {
+        Location location = mIndex.get(key);
+        if (location == null) {
+            return false;
+        }
+        // 先写入删除记录, 失败时条目仍然有效
+        append(encodeRecord(OP_REMOVE, key, null));
+        mIndex.remove(key);
+        discard(location);
+        return true;
+    }
+
+    /**
+     * 被替换或者删除的记录成为垃圾
+     */
+    private void discard(Location location) {
+        if (location != null) {
+            location.live = false;
+            location.segment.liveBytes -= location.length;
+            mSize -= location.length;
+        }
+    }
+
+    private void trimToSize() throws IOException {
+        while (mSize > mMaxSize) {
+            Iterator<String> eldest = mIndex.keySet().iterator();
+            removeInternal(eldest.next());
+        }
+    }
+
+    /**
+     * 把完整的记录追加到当前段的末尾, 当前段已满时先创建新的段
+     */
+    private Location append(byte[] record) throws IOException {
+        Segment segment = mSegments.isEmpty() ? null : mSegments.lastEntry().getValue();
+        if (segment == null || (segment.length > 0 && segment.length + record.length > SEGMENT_MAX_BYTES)) {
+            segment = newSegment(segment == null ? 0 : segment.id + 1);
+        }
+
+        long offset = segment.length;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                segment.channel.write(buffer, offset + buffer.position());
+            }
+        } catch (IOException e) {
+            // 去掉写了一半的记录
+            reopenIfNeeded(segment);
+            segment.channel.truncate(offset);
+            throw e;
+        }
+        segment.length += record.length;
+        return new Location(segment, offset, record.length);
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(mDirectory, SEGMENT_FILE_PREFIX + id));
+        segment.openChannel();
+        segment.channel.truncate(0);
+        mSegments.put(id, segment);
+        return segment;
+    }
+
+    private synchronized void reopenIfNeeded(Segment segment) throws IOException {
+        if (!mClosed && !segment.deleted && !segment.channel.isOpen()) {
+            segment.openChannel();
+        }
+    }
+
+    /**********************打开时重建索引**********************/
+
+    private void readSegments() throws IOException {
+        String[] names = mDirectory.list();
+        if (names == null) {
+            throw new IOException("not a directory: " + mDirectory);
+        }
+        for (String name : names) {
+            if (!name.startsWith(SEGMENT_FILE_PREFIX)) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(name.substring(SEGMENT_FILE_PREFIX.length()));
+                mSegments.put(id, new Segment(id, new File(mDirectory, name)));
+            } catch (NumberFormatException e) {
+                // 不是段文件
+            }
+        }
+        for (Segment segment : mSegments.values()) {
+            segment.openChannel();
+            readSegment(segment);
+        }
+    }
+
+    /**
+     * 读取一个段中所有完整的记录, 遇到不完整或者校验失败的记录时截掉之后的内容
+     */
+    private void readSegment(Segment segment) throws IOException {
+        long fileLength = segment.channel.size();
+        MappedByteBuffer buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+        byte[] keyBytes = new byte[0xff];
+        CRC32 crc = new CRC32();
+        int end = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                if (buffer.getInt() != RECORD_MAGIC) {
+                    break;
+                }
+                byte op = buffer.get();
+                int keyLength = buffer.get() & 0xff;
+                buffer.get(keyBytes, 0, keyLength);
+                int valueCount = buffer.getInt();
+                if (valueCount < 0 || valueCount > buffer.remaining() / 4) {
+                    break;
+                }
+                long payload = 0;
+                for (int i = 0; i < valueCount; i++) {
+                    int valueLength = buffer.getInt();
+                    payload += valueLength < 0 ? Integer.MAX_VALUE : valueLength;
+                }
+                if (payload + 4 > buffer.remaining()) {
+                    break;
+                }
+                buffer.position((int) (buffer.position() + payload));
+                int recordLength = buffer.position() - start + 4;
+
+                byte[] bytes = new byte[recordLength - 4];
+                ByteBuffer body = buffer.duplicate();
+                body.position(start);
+                body.get(bytes);
+                crc.reset();
+                crc.update(bytes, 0, bytes.length);
+                if (buffer.getInt() != (int) crc.getValue()) {
+                    break;
+                }
+
+                String key = new String(keyBytes, 0, keyLength, ASCII);
+                if (op == OP_PUT && valueCount == mValueCount) {
+                    Location location = new Location(segment, start, recordLength);
+                    segment.liveBytes += recordLength;
+                    mSize += recordLength;
+                    discard(mIndex.put(key, location));
+                } else {
+                    discard(mIndex.remove(key));
+                }
+                end = buffer.position();
+            }
+        } catch (BufferUnderflowException truncated) {
+            // 最后一条记录没有写完整
+        }
+        if (end != fileLength) {
+            LogUtil._w(TAG, "段文件" + segment.file.getName() + "末尾的记录不完整, 截掉" + (fileLength - end) + "字节");
+            segment.channel.truncate(end);
+        }
+        segment.length = end;
+    }
+
+    /**********************记录的编码和读取**********************/
+
+    private static byte[] encodeRecord(byte op, String key, byte[][] values) {
+        byte[] keyBytes = key.getBytes(ASCII);
+        if (keyBytes.length > 0xff) {
+            throw new IllegalArgumentException("key is too long: " + key);
+        }
+        int valueCount = values == null ? 0 : values.length;
+        int length = RECORD_OVERHEAD + keyBytes.length + valueCount * 4;
+        for (int i = 0; i < valueCount; i++) {
+            length += values[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.put(op);
+        buffer.put((byte) keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.putInt(valueCount);
+        for (int i = 0; i < valueCount; i++) {
+            buffer.putInt(values[i].length);
+        }
+        for (int i = 0; i < valueCount; i++) {
+            buffer.put(values[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, length - 4);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    private static byte[] readRecord(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("unexpected end of segment");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 先读取记录头得到每个值的长度, 再只读取需要的值
+     */
+    private byte[] readValue(FileChannel channel, long offset, int length, String key, int index, int[] lengths)
+            throws IOException {
+        byte[] keyBytes = key.getBytes(ASCII);
+        int headerLength = 4 + 1 + 1 + keyBytes.length + 4 + mValueCount * 4;
+        ByteBuffer header = ByteBuffer.wrap(readRecord(channel, offset, headerLength));
+        boolean valid = header.getInt() == RECORD_MAGIC
+                && header.get() == OP_PUT
+                && (header.get() & 0xff) == keyBytes.length;
+        if (valid) {
+            byte[] recordKey = new byte[keyBytes.length];
+            header.get(recordKey);
+            valid = Arrays.equals(recordKey, keyBytes) && header.getInt() == mValueCount;
+        }
+        if (!valid) {
+            throw new IOException("corrupt record for key: " + key);
+        }
+
+        long valueOffset = headerLength;
+        long total = headerLength + 4;
+        int[] valueLengths = lengths != null ? lengths : new int[mValueCount];
+        for (int i = 0; i < mValueCount; i++) {
+            valueLengths[i] = header.getInt();
+            if (valueLengths[i] < 0) {
+                throw new IOException("corrupt record for key: " + key);
+            }
+            if (i < index) {
+                valueOffset += valueLengths[i];
+            }
+            total += valueLengths[i];
+        }
+        if (total != length) {
+            throw new IOException("corrupt record for key: " + key);
+        }
+        return readRecord(channel, offset + valueOffset, valueLengths[index]);
+    }
+
+    private byte[][] parseValues(byte[] record, String key) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length - 4);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        if (buffer.getInt() != RECORD_MAGIC || buffer.getInt(record.length - 4) != (int) crc.getValue()) {
+            throw new IOException("corrupt record for key: " + key);
+        }
+        buffer.get();
+        int keyLength = buffer.get() & 0xff;
+        buffer.position(buffer.position() + keyLength);
+        int valueCount = buffer.getInt();
+        int[] lengths = new int[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            lengths[i] = buffer.getInt();
+        }
+        byte[][] values = new byte[valueCount][];
+        for (int i = 0; i < valueCount; i++) {
+            values[i] = new byte[lengths[i]];
+            buffer.get(values[i]);
+        }
+        return values;
+    }
+
+    /**********************后台整理**********************/
+
+    private void scheduleCompactIfNeeded() {
+        if (!mCompactScheduled && needsCompact()) {
+            mCompactScheduled = true;
+            mExecutorService.submit(mCompactCallable);
+        }
+    }
+
+    /**
+     * 已经写满的段中的垃圾是否足够多
+     */
+    private boolean needsCompact() {
+        if (mSegments.size() < 2) {
+            return false;
+        }
+        long total = 0;
+        long live = 0;
+        for (Segment segment : mSegments.headMap(mSegments.lastKey()).values()) {
+            total += segment.length;
+            live += segment.liveBytes;
+        }
+        long garbage = total - live;
+        return garbage >= COMPACT_MIN_GARBAGE_BYTES && garbage * 2 >= total;
+    }
+
+    /**
+     * key当前的记录是否仍然是整理开始时保存的位置, 并且还在要整理的段中.
+     * 位置被替换或者删除时{@link Location#live}同时变为false, 这里不使用mIndex.get(), 避免改变条目的LRU顺序
+     */
+    private boolean isCurrent(String key, Location location, Segment oldest) {
+        return location.live && location.segment == oldest && mIndex.containsKey(key);
+    }
+
+    /**
+     * 从最旧的段开始整理, 直到垃圾的比例降下来
+     */
+    private void compact() throws IOException {
+        while (true) {
+            Segment oldest;
+            // 在锁内保存key和当时的位置. Map.Entry.getValue()返回的是key当前的位置,
+            // 锁外被替换之后会指向新的段, 不能在之后使用
+            ArrayList<String> keys = new ArrayList<>();
+            ArrayList<Location> locations = new ArrayList<>();
+            synchronized (this) {
+                if (mClosed || !needsCompact()) {
+                    return;
+                }
+                oldest = mSegments.firstEntry().getValue();
+                for (Map.Entry<String, Location> entry : mIndex.entrySet()) {
+                    if (entry.getValue().segment == oldest) {
+                        keys.add(entry.getKey());
+                        locations.add(entry.getValue());
+                    }
+                }
+            }
+
+            int moved = 0;
+            for (int i = 0; i < locations.size(); i++) {
+                Location location = locations.get(i);
+                FileChannel channel;
+                synchronized (this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    // 已经被替换或者删除的不需要移动
+                    if (!isCurrent(keys.get(i), location, oldest)) {
+                        continue;
+                    }
+                    channel = oldest.channel;
+                }
+                // 记录的内容不会改变, 在锁外读取
+                byte[] record = readRecord(channel, location.offset, location.length);
+                synchronized (this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    // 读取期间被替换或者删除的不需要移动
+                    if (!isCurrent(keys.get(i), location, oldest)) {
+                        continue;
+                    }
+                    Location moveTo = append(record);
+                    oldest.liveBytes -= record.length;
+                    moveTo.segment.liveBytes += record.length;
+                    location.segment = moveTo.segment;
+                    location.offset = moveTo.offset;
+                    moved++;
+                }
+            }
+
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                if (oldest.liveBytes != 0) {
+                    // 新的记录只会写入最后一个段, 这里只是保护
+                    LogUtil._w(TAG, "段文件" + oldest.file.getName() + "仍有有效记录, 停止整理");
+                    return;
+                }
+                mSegments.remove(oldest.id);
+                oldest.deleted = true;
+                DiskLruCache.closeQuietly(oldest.channel);
+                oldest.file.delete();
+            }
+            LogUtil._i(TAG, "整理段文件" + oldest.file.getName() + ", 移动" + moved + "条记录");
+        }
+    }
+}
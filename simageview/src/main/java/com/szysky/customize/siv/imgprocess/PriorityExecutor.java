@@ -0,0 +1,224 @@
+package com.szysky.customize.siv.imgprocess;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-21  下午4:26
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 按照优先级调度的线程池.
+ *                    优先级高的任务先执行, 相同优先级可选择FIFO或者LIFO的顺序. 列表快速滑动之后,
+ *                    LIFO可以让新绑定的控件先加载, 不用等待已经滑出屏幕的控件.
+ *                    因为使用的是无界队列, 所以核心线程数即为最大线程数, 空闲的线程会在超时后回收.
+ *                    同时统计队列的长度和任务的排队时间, 方便对不同阶段的线程池进行配置.
+ */
+
+public class PriorityExecutor extends ThreadPoolExecutor {
+
+    private final TaskComparator mComparator;
+
+    /**
+     * 线程池的名称, 用于统计输出
+     */
+    private final String mName;
+
+    /**
+     * 队列出现过的最大长度
+     */
+    private final AtomicInteger mPeakQueueSize = new AtomicInteger();
+
+    /**
+     * 已经开始执行的任务数量, 和这些任务在队列中等待的总时长
+     */
+    private final AtomicLong mStartedCount = new AtomicLong();
+    private final AtomicLong mTotalQueueTime = new AtomicLong();
+
+    public PriorityExecutor(String name, int poolSize, long keepAliveSeconds, ThreadFactory threadFactory, boolean lifo) {
+        this(name, poolSize, keepAliveSeconds, threadFactory, new TaskComparator(lifo));
+    }
+
+    private PriorityExecutor(String name, int poolSize, long keepAliveSeconds, ThreadFactory threadFactory, TaskComparator comparator) {
+        super(poolSize, poolSize, keepAliveSeconds, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(16, comparator), threadFactory);
+        mName = name;
+        mComparator = comparator;
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 不是{@link PriorityTask}的任务, 包装成普通优先级的任务再执行
+     */
+    @Override
+    public void execute(Runnable command) {
+        if (!(command instanceof PriorityTask)){
+            command = new WrapTask(command);
+        }
+        ((PriorityTask) command).enqueueTime = System.currentTimeMillis();
+        super.execute(command);
+
+        // 记录队列的峰值
+        int size = getQueue().size();
+        int peak;
+        while (size > (peak = mPeakQueueSize.get())){
+            if (mPeakQueueSize.compareAndSet(peak, size)){
+                break;
+            }
+        }
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        if (r instanceof PriorityTask){
+            mStartedCount.incrementAndGet();
+            mTotalQueueTime.addAndGet(System.currentTimeMillis() - ((PriorityTask) r).enqueueTime);
+        }
+    }
+
+    /**
+     * 修改线程池的线程数量
+     */
+    public void setPoolSize(int poolSize){
+        if (poolSize <= 0){
+            throw new IllegalArgumentException("线程数量必须大于0");
+        }
+        // 核心线程数不能大于最大线程数, 需要注意修改的先后顺序
+        if (poolSize > getMaximumPoolSize()){
+            setMaximumPoolSize(poolSize);
+            setCorePoolSize(poolSize);
+        }else{
+            setCorePoolSize(poolSize);
+            setMaximumPoolSize(poolSize);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * 当前还在排队的任务数量
+     */
+    public int getQueueSize(){
+        return getQueue().size();
+    }
+
+    /**
+     * 队列出现过的最大长度
+     */
+    public int getPeakQueueSize(){
+        return mPeakQueueSize.get();
+    }
+
+    /**
+     * 任务在队列中的平均等待时间, 单位毫秒
+     */
+    public long getAverageQueueTime(){
+        long count = mStartedCount.get();
+        return count == 0 ? 0 : mTotalQueueTime.get() / count;
+    }
+
+    /**
+     * 线程池的统计信息
+     */
+    public String getStatistics(){
+        return mName + " >> 线程数:" + getPoolSize() + "/" + getMaximumPoolSize()
+                + "  执行中:" + getActiveCount()
+                + "  排队中:" + getQueueSize()
+                + "  最大排队:" + getPeakQueueSize()
+                + "  已完成:" + getCompletedTaskCount()
+                + "  平均排队:" + getAverageQueueTime() + "ms";
+    }
+
+    /**
+     * 提升一个还在排队中的任务的优先级, 并作为新提交的任务重新排队.
+     * 任务已经开始执行或者优先级已经足够高的时候不做处理
+     */
+    public void promote(Runnable task, int priority){
+        if (!(task instanceof PriorityTask) || ((PriorityTask) task).getPriority() >= priority){
+            return;
+        }
+        if (remove(task)){
+            ((PriorityTask) task).renew(priority);
+            execute(task);
+        }
+    }
+
+    /**
+     * 设置相同优先级的任务是否按照后进先出的顺序执行
+     */
+    public void setLifo(boolean lifo){
+        if (mComparator.lifo == lifo){
+            return;
+        }
+        // 排序规则改变, 需要对排队中的任务重新排序
+        ArrayList<Runnable> pending = new ArrayList<>();
+        getQueue().drainTo(pending);
+        mComparator.lifo = lifo;
+        for (Runnable runnable : pending) {
+            execute(runnable);
+        }
+    }
+
+    public boolean isLifo(){
+        return mComparator.lifo;
+    }
+
+
+    private static class TaskComparator implements Comparator<Runnable> {
+
+        volatile boolean lifo;
+
+        TaskComparator(boolean lifo) {
+            this.lifo = lifo;
+        }
+
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            PriorityTask left = (PriorityTask) lhs;
+            PriorityTask right = (PriorityTask) rhs;
+
+            // 优先级高的排在前面
+            if (left.getPriority() != right.getPriority()){
+                return left.getPriority() > right.getPriority() ? -1 : 1;
+            }
+
+            // 相同优先级比较提交顺序
+            long diff = left.getSequence() - right.getSequence();
+            if (diff == 0){
+                return 0;
+            }
+            if (lifo){
+                return diff > 0 ? -1 : 1;
+            }
+            return diff > 0 ? 1 : -1;
+        }
+    }
+
+
+    /**
+     * 对普通Runnable的包装
+     */
+    private static class WrapTask extends PriorityTask {
+
+        private final Runnable mRunnable;
+
+        WrapTask(Runnable runnable) {
+            super(PRIORITY_NORMAL);
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.szysky.customize.siv.imgprocess;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-21  下午4:18
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 带有优先级的任务, 提供给{@link PriorityExecutor}排序使用.
+ *                    优先级高的先执行, 相同优先级按照提交的顺序(FIFO或者LIFO)执行
+ */
+
+public abstract class PriorityTask implements Runnable {
+
+    /**
+     * 预加载等不急需的任务
+     */
+    public static final int PRIORITY_LOW = 0;
+
+    /**
+     * 控件的普通加载任务
+     */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * 需要尽快显示的任务
+     */
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * 全局的提交序号, 用来区分相同优先级任务的先后
+     */
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    private volatile int mPriority;
+    private volatile long mSequence;
+
+    /**
+     * 进入线程池队列的时间, 用来统计排队等待的时长
+     */
+    volatile long enqueueTime;
+
+    public PriorityTask(int priority) {
+        mPriority = priority;
+        mSequence = sSequence.getAndIncrement();
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * 修改任务的优先级, 并重新获取提交序号, 相当于一个新提交的任务.
+     * 只能在任务不在队列中的时候调用, 否则会破坏队列的排序
+     */
+    void renew(int priority){
+        mPriority = priority;
+        mSequence = sSequence.getAndIncrement();
+    }
+}
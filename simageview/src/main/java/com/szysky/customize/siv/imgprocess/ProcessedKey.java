@@ -0,0 +1,100 @@
+package com.szysky.customize.siv.imgprocess;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-29  上午11:20
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 绘图策略处理结果的key, 由绘图策略, 处理标识, 布局, 控件大小和图片地址组成, 创建时计算好hash值.
+ *                    控件每次绑定图片都要在主线程生成并查询, 这里只保存各个组成部分, 不拼接字符串.
+ *                    只有写入磁盘缓存或者交给自定义缓存时才通过{@link #toString()}生成文本形式, 生成之后保存下来.
+ */
+
+public final class ProcessedKey {
+
+    private final Class<?> mStrategy;
+    private final String mTransformationId;
+    private final Class<?> mLayout;
+    private final int mWidth;
+    private final int mHeight;
+    private final String[] mUrls;
+    private final int mHash;
+    private String mText;
+
+    /**
+     * @param strategy 绘图策略的类型
+     * @param transformationId 绘图策略的处理标识
+     * @param layout 多张图片合成时的布局类型, 单张图片的处理为null
+     * @param width 控件的宽度
+     * @param height 控件的高度
+     * @param urls 图片地址
+     */
+    public ProcessedKey(Class<?> strategy, String transformationId, Class<?> layout, int width, int height, List<String> urls) {
+        if (strategy == null || transformationId == null || urls == null){
+            throw new IllegalArgumentException("绘图策略, 处理标识和图片地址不能为null");
+        }
+        mStrategy = strategy;
+        mTransformationId = transformationId;
+        mLayout = layout;
+        mWidth = width;
+        mHeight = height;
+        mUrls = urls.toArray(new String[urls.size()]);
+
+        int hash = strategy.hashCode();
+        hash = 31 * hash + transformationId.hashCode();
+        hash = 31 * hash + (layout == null ? 0 : layout.hashCode());
+        hash = 31 * hash + width;
+        hash = 31 * hash + height;
+        hash = 31 * hash + Arrays.hashCode(mUrls);
+        mHash = hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o){
+            return true;
+        }
+        if (!(o instanceof ProcessedKey)){
+            return false;
+        }
+        ProcessedKey other = (ProcessedKey) o;
+        return mHash == other.mHash
+                && mWidth == other.mWidth
+                && mHeight == other.mHeight
+                && mStrategy == other.mStrategy
+                && mLayout == other.mLayout
+                && mTransformationId.equals(other.mTransformationId)
+                && Arrays.equals(mUrls, other.mUrls);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    /**
+     * 文本形式的key, 用作磁盘缓存和自定义缓存的key. 第一次调用时生成
+     */
+    @Override
+    public String toString() {
+        String text = mText;
+        if (text == null){
+            StringBuilder key = new StringBuilder(mLayout == null ? "transform:" : "composite:");
+            key.append(mStrategy.getName()).append('|')
+                    .append(mTransformationId).append('|');
+            if (mLayout != null){
+                key.append(mLayout.getName()).append('|');
+            }
+            key.append(mWidth).append('x').append(mHeight);
+            for (String url : mUrls) {
+                key.append('|').append(url);
+            }
+            text = key.toString();
+            mText = text;
+        }
+        return text;
+    }
+}
@@ -0,0 +1,234 @@
+package com.szysky.customize.siv.imgprocess;
+
+import com.szysky.customize.siv.util.LogUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.regex.Pattern;
+
+/**
+ * Author :  suzeyu
+ * Time   :  2016-12-28  上午10:15
+ * Blog   :  http://szysky.com
+ * GitHub :  https://github.com/suzeyu1992
+ * ClassDescription : 分片的磁盘缓存. 按照key的哈希值分配到N个子目录, 每个子目录是一个独立的{@link DiskLruCache},
+ *                    有自己的锁, 日志和容量(总容量的N分之一). 不同分片的读写互不阻塞,
+ *                    多个线程同时读取磁盘缓存时不会都排在同一把锁后面.
+ *
+ *                    分片目录的名称包含分片数量, 分片数量改变之后旧的分片目录以及没有分片时
+ *                    留在根目录下的文件(日志和缓存文件)会在后台删除. 只按照{@link DiskLruCache}的文件名删除,
+ *                    根目录下其他的子目录和文件不受影响.
+ */
+
+public final class ShardedDiskLruCache implements Closeable {
+
+    private static final String TAG = ShardedDiskLruCache.class.getName();
+
+    /**
+     * 分片目录的前缀, 完整名称为 前缀 + 分片数量 + "." + 序号
+     */
+    static final String SHARD_DIR_PREFIX = "shard.";
+
+    /**
+     * {@link DiskLruCache}缓存文件的名称, "key.序号"以及写入中的"key.序号.tmp"
+     */
+    private static final Pattern ENTRY_FILE_NAME = Pattern.compile("[^.]+\\.\\d+(\\.tmp)?");
+
+    private final File mDirectory;
+    private final DiskLruCache[] mShards;
+
+    private ShardedDiskLruCache(File directory, DiskLruCache[] shards) {
+        mDirectory = directory;
+        mShards = shards;
+    }
+
+    /**
+     * 打开或者创建分片的磁盘缓存
+     *
+     * @param directory  根目录, 分片目录创建在这个目录下
+     * @param shardCount 分片的数量
+     * @param maxSize    所有分片的总容量, 平均分配到每个分片
+     * @param useBinaryJournal 见{@link DiskLruCache#open(File, int, int, long, boolean)}
+     * @throws IOException 任意一个分片打开失败, 已经打开的分片会被关闭
+     */
+    public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+                                           int shardCount, boolean useBinaryJournal) throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("分片数量必须大于0");
+        }
+        if (maxSize < shardCount) {
+            throw new IllegalArgumentException("总容量不能小于分片数量");
+        }
+
+        DiskLruCache[] shards = new DiskLruCache[shardCount];
+        long shardSize = maxSize / shardCount;
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                File shardDir = new File(directory, shardDirName(shardCount, i));
+                if (!shardDir.exists()) {
+                    shardDir.mkdirs();
+                }
+                shards[i] = DiskLruCache.open(shardDir, appVersion, valueCount, shardSize, useBinaryJournal);
+            }
+        } catch (IOException e) {
+            for (DiskLruCache shard : shards) {
+                DiskLruCache.closeQuietly(shard);
+            }
+            throw e;
+        }
+
+        ShardedDiskLruCache cache = new ShardedDiskLruCache(directory, shards);
+        cache.deleteStaleFilesAsync();
+        return cache;
+    }
+
+    private static String shardDirName(int shardCount, int index) {
+        return SHARD_DIR_PREFIX + shardCount + "." + index;
+    }
+
+    /**
+     * key所在的分片
+     */
+    private DiskLruCache shardOf(String key) {
+        return mShards[(key.hashCode() & 0x7fffffff) % mShards.length];
+    }
+
+    /**
+     * 见{@link DiskLruCache#get(String)}, 只锁定key所在的分片
+     */
+    public DiskLruCache.Snapshot get(String key) throws IOException {
+        return shardOf(key).get(key);
+    }
+
+    /**
+     * 见{@link DiskLruCache#edit(String)}, 只锁定key所在的分片
+     */
+    public DiskLruCache.Editor edit(String key) throws IOException {
+        return shardOf(key).edit(key);
+    }
+
+    /**
+     * 见{@link DiskLruCache#remove(String)}, 只锁定key所在的分片
+     */
+    public boolean remove(String key) throws IOException {
+        return shardOf(key).remove(key);
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    /**
+     * 所有分片的总容量
+     */
+    public long maxSize() {
+        long maxSize = 0;
+        for (DiskLruCache shard : mShards) {
+            maxSize += shard.maxSize();
+        }
+        return maxSize;
+    }
+
+    /**
+     * 所有分片当前使用的空间, 依次读取每个分片, 不是同一时刻的值
+     */
+    public long size() {
+        long size = 0;
+        for (DiskLruCache shard : mShards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public boolean isClosed() {
+        return mShards[0].isClosed();
+    }
+
+    public void flush() throws IOException {
+        for (DiskLruCache shard : mShards) {
+            shard.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (DiskLruCache shard : mShards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 关闭并删除所有分片的缓存文件
+     */
+    public void delete() throws IOException {
+        for (DiskLruCache shard : mShards) {
+            shard.delete();
+        }
+    }
+
+    /**
+     * 在后台删除根目录下不属于当前分片的内容: 没有分片时的日志和缓存文件, 以及分片数量不同时的分片目录
+     */
+    private void deleteStaleFilesAsync() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deleteStaleFiles();
+            }
+        }, "ShardedDiskLruCache-cleanup");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * 根目录下可能还有其他的数据(比如临时文件目录, 变体缓存), 所以只删除分片目录和{@link DiskLruCache}自己的文件:
+     * 日志文件都以{@link DiskLruCache#JOURNAL_FILE}开头, 缓存文件见{@link #ENTRY_FILE_NAME}
+     */
+    private void deleteStaleFiles() {
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return;
+        }
+        HashSet<String> current = new HashSet<>();
+        for (int i = 0; i < mShards.length; i++) {
+            current.add(shardDirName(mShards.length, i));
+        }
+
+        int deleted = 0;
+        for (String name : names) {
+            if (current.contains(name)) {
+                continue;
+            }
+            File file = new File(mDirectory, name);
+            try {
+                if (name.startsWith(SHARD_DIR_PREFIX) && file.isDirectory()) {
+                    DiskLruCache.deleteContents(file);
+                    file.delete();
+                    deleted++;
+                } else if ((name.startsWith(DiskLruCache.JOURNAL_FILE) || ENTRY_FILE_NAME.matcher(name).matches())
+                        && file.isFile() && file.delete()) {
+                    deleted++;
+                }
+            } catch (IOException e) {
+                LogUtil._w(TAG, "删除旧的磁盘缓存文件失败: " + file, e);
+            }
+        }
+        if (deleted > 0) {
+            LogUtil._i(TAG, "删除旧的磁盘缓存文件: " + deleted + "个");
+        }
+    }
+}
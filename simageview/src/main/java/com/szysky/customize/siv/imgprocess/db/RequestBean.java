@@ -2,7 +2,10 @@ package com.szysky.customize.siv.imgprocess.db;
 
 import android.graphics.Bitmap;
 
+import com.szysky.customize.siv.RequestHandle;
 import com.szysky.customize.siv.SImageView;
+import com.szysky.customize.siv.imgprocess.PriorityTask;
+import com.szysky.customize.siv.imgprocess.ProcessedKey;
 import com.szysky.customize.siv.util.SecurityUtil;
 
 import java.util.ArrayList;
@@ -32,6 +35,14 @@ public class RequestBean {
     public int loadTotal;       // 需要下载的总数
     public volatile int loadedNum;        // 已经完成的数量
     private String mTag = "" ;                 // 设置图片对应的控件的tag
+    public volatile RequestHandle handle;      // 对外返回的请求句柄, 用来判断请求是否被取消
+    public volatile Runnable pendingTask;      // 当前在线程池中排队的任务, 取消时从队列中移除
+    public int priority = PriorityTask.PRIORITY_NORMAL;   // 请求在线程池中的优先级
+    public Object pauseTag;                    // 暂停加载时使用的tag
+    public boolean diskOnly;                   // 只需要保存到磁盘缓存, 不需要解码, 用于预加载
+    public ProcessedKey processedKey;                // 图片处理结果的key, 不为null时磁盘阶段先查询处理结果
+    public Bitmap processed;                   // 从磁盘获取到的处理结果
+    public Bitmap.Config decodeConfig = Bitmap.Config.ARGB_8888;   // 解码时优先使用的格式, RGB_565只对不透明的格式生效
 
 
 
@@ -53,9 +64,11 @@ public class RequestBean {
         this.reqHeight = reqHeight;
         loadTotal = urls.size();
 
-        // 初始化tag, 并设置
+        // 初始化tag, 并设置. 预加载时没有控件
         getTag();
-        sImageView.setTag(mTag);
+        if (sImageView != null){
+            sImageView.setTag(mTag);
+        }
 
         noLoadUrls = new CopyOnWriteArrayList<>();
         bitmaps = new ConcurrentHashMap<>();
@@ -101,6 +114,14 @@ public class RequestBean {
     }
 
 
+    /**
+     * 请求是否已经被取消
+     */
+    public boolean isCancelled(){
+        RequestHandle h = handle;
+        return h != null && h.isCancelled();
+    }
+
     /**
      * 获得一个{@link SImageView}图片请求的tag
      */
@@ -147,7 +168,9 @@ public class RequestBean {
                 req.reqHeight = reqHeight;
                 req.reqWidth = reqWidth;
                 req.getTag();
-                sImageView.setTag(req.mTag);
+                if (sImageView != null){
+                    sImageView.setTag(req.mTag);
+                }
                 for (String url:urls) {
                     req.noLoadUrls.add(url);
                 }
@@ -173,6 +196,14 @@ public class RequestBean {
         urls.clear();
         noLoadUrls.clear();
         sImageView = null;
+        handle = null;
+        pendingTask = null;
+        priority = PriorityTask.PRIORITY_NORMAL;
+        pauseTag = null;
+        diskOnly = false;
+        processedKey = null;
+        processed = null;
+        decodeConfig = Bitmap.Config.ARGB_8888;
 
         // 填入缓冲池 并修正
         synchronized (sPoolSync){
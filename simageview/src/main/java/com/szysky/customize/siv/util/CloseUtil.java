@@ -1,5 +1,6 @@
 package com.szysky.customize.siv.util;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,6 +32,13 @@ public class CloseUtil {
                 e.printStackTrace();
             }
         }
+        if ((stream instanceof Closeable)){
+            try {
+                ((Closeable)stream).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
 
     }
@@ -0,0 +1,198 @@
+package com.szysky.customize.siv.imgprocess;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link DiskLruCache}的测试
+ */
+public class DiskLruCacheTest {
+
+    private File mDir;
+    private File mCrashDir;
+    private DiskLruCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = newTempDir("disk-lru");
+        mCrashDir = newTempDir("disk-lru-crash");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mCache != null) {
+            mCache.close();
+        }
+        DiskLruCache.deleteContents(mDir);
+        DiskLruCache.deleteContents(mCrashDir);
+        mDir.delete();
+        mCrashDir.delete();
+    }
+
+    /**
+     * 替换已有的条目之后, 日志记录还没有批量写入时进程退出(复制当时的目录来模拟).
+     * 重新打开时条目要么被丢弃, 要么日志中的长度和文件一致, 不能把旧的长度和新的文件对应起来
+     */
+    @Test
+    public void crashAfterOverwrite_neverPairsOldLengthsWithNewFiles() throws Exception {
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE);
+        put(mCache, "k", "old", "old-etag");
+        mCache.flush();
+
+        put(mCache, "k", "new value", "new-etag-with-other-length");
+        copyFiles(mDir, mCrashDir);
+
+        DiskLruCache crashed = DiskLruCache.open(mCrashDir, 1, 2, Long.MAX_VALUE);
+        try {
+            DiskLruCache.Snapshot snapshot = crashed.get("k");
+            if (snapshot != null) {
+                assertEquals("new value", snapshot.getString(0));
+                assertEquals("new-etag-with-other-length", snapshot.getString(1));
+                snapshot.close();
+                assertEquals(new File(mCrashDir, "k.0").length() + new File(mCrashDir, "k.1").length(),
+                        crashed.size());
+            } else {
+                assertEquals(0, crashed.size());
+            }
+        } finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void textJournal_migratesToBinaryAndBack() throws Exception {
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE);
+        put(mCache, "a", "a0", "a1");
+        put(mCache, "b", "b0", "b1");
+        mCache.close();
+
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE, true);
+        assertFalse(new File(mDir, DiskLruCache.JOURNAL_FILE).exists());
+        assertTrue(new File(mDir, BinaryJournal.SNAPSHOT_FILE).exists());
+        assertValues(mCache, "a", "a0", "a1");
+        assertValues(mCache, "b", "b0", "b1");
+        assertEquals(8, mCache.size());
+        put(mCache, "c", "c0", "c1");
+        mCache.close();
+
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE);
+        assertTrue(new File(mDir, DiskLruCache.JOURNAL_FILE).exists());
+        assertFalse(new File(mDir, BinaryJournal.SNAPSHOT_FILE).exists());
+        assertFalse(new File(mDir, BinaryJournal.TAIL_FILE).exists());
+        assertValues(mCache, "a", "a0", "a1");
+        assertValues(mCache, "b", "b0", "b1");
+        assertValues(mCache, "c", "c0", "c1");
+        assertEquals(12, mCache.size());
+    }
+
+    /**
+     * 快照之后的修改, 删除和替换都在尾部中, 重新打开时按顺序重放
+     */
+    @Test
+    public void binaryTail_isReplayedOnReopen() throws Exception {
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE, true);
+        put(mCache, "a", "a0", "a1");
+        put(mCache, "b", "b0", "b1");
+        put(mCache, "c", "c0", "c1");
+        assertTrue(mCache.remove("b"));
+        put(mCache, "c", "c0-new", "c1-new");
+        mCache.close();
+
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE, true);
+        assertValues(mCache, "a", "a0", "a1");
+        assertNull(mCache.get("b"));
+        assertValues(mCache, "c", "c0-new", "c1-new");
+        assertEquals(4 + 12, mCache.size());
+    }
+
+    /**
+     * 尾部最后一条记录只写了一半时, 只丢掉这一条记录. 之后追加的记录在下次打开时仍然有效
+     */
+    @Test
+    public void binaryTornTail_dropsOnlyTheLastRecord() throws Exception {
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE, true);
+        put(mCache, "a", "a0", "a1");
+        put(mCache, "b", "b0", "b1");
+        mCache.close();
+        File tail = new File(mDir, BinaryJournal.TAIL_FILE);
+        RandomAccessFile file = new RandomAccessFile(tail, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        // b的CLEAN记录不完整, 只剩下DIRTY记录, 条目被丢弃
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE, true);
+        assertValues(mCache, "a", "a0", "a1");
+        assertNull(mCache.get("b"));
+        assertEquals(4, mCache.size());
+        put(mCache, "c", "c0", "c1");
+        mCache.close();
+
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE, true);
+        assertValues(mCache, "a", "a0", "a1");
+        assertNull(mCache.get("b"));
+        assertValues(mCache, "c", "c0", "c1");
+    }
+
+    /**
+     * 尾部中间出现无法识别的内容时, 之前已经重放的记录和截掉之后的尾部保持一致, 再次打开时不会丢失
+     */
+    @Test
+    public void binaryTailWithGarbage_keepsReplayedRecords() throws Exception {
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE, true);
+        put(mCache, "a", "a0", "a1");
+        put(mCache, "b", "b0", "b1");
+        mCache.close();
+        FileOutputStream out = new FileOutputStream(new File(mDir, BinaryJournal.TAIL_FILE), true);
+        out.write(new byte[]{0x7f, 1, 'x'});
+        out.close();
+
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE, true);
+        assertValues(mCache, "a", "a0", "a1");
+        assertValues(mCache, "b", "b0", "b1");
+        mCache.close();
+
+        mCache = DiskLruCache.open(mDir, 1, 2, Long.MAX_VALUE, true);
+        assertValues(mCache, "a", "a0", "a1");
+        assertValues(mCache, "b", "b0", "b1");
+        assertEquals(8, mCache.size());
+    }
+
+    private static void assertValues(DiskLruCache cache, String key, String value0, String value1) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(key + "不存在", snapshot);
+        assertEquals(value0, snapshot.getString(0));
+        assertEquals(value1, snapshot.getString(1));
+        snapshot.close();
+    }
+
+    static void put(DiskLruCache cache, String key, String value0, String value1) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value0);
+        editor.set(1, value1);
+        editor.commit();
+    }
+
+    static File newTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    static void copyFiles(File from, File to) throws IOException {
+        for (File file : from.listFiles()) {
+            if (file.isFile()) {
+                Files.copy(file.toPath(), new File(to, file.getName()).toPath());
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.szysky.customize.siv.imgprocess;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link HttpFetcher}的测试, 使用{@link LocalHttpServer}代替真实的服务器
+ */
+public class HttpFetcherTest {
+
+    private static final String ETAG_V1 = "\"v1\"";
+    private static final String ETAG_V2 = "\"v2\"";
+
+    private final HttpFetcher mFetcher = new HttpFetcher();
+    private LocalHttpServer mServer;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    /**********************长连接**********************/
+
+    @Test
+    public void keepAlive_fullyReadBodiesReuseOneConnection() throws Exception {
+        mServer = new LocalHttpServer(okHandler(bytes(4 * 1024)));
+
+        for (int i = 0; i < 5; i++) {
+            FetchResponse response = mFetcher.fetch(mServer.url("/avatar/" + i), null);
+            assertEquals(4 * 1024, readAll(response.getBody()).length);
+            response.close();
+        }
+
+        assertEquals(5, mServer.getRequests().size());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void keepAlive_closingUnreadBodyDrainsItAndReusesConnection() throws Exception {
+        mServer = new LocalHttpServer(okHandler(bytes(16 * 1024)));
+
+        for (int i = 0; i < 3; i++) {
+            FetchResponse response = mFetcher.fetch(mServer.url("/avatar/" + i), null);
+            // 只读一部分, 剩下的由close()读完
+            assertTrue(response.getBody().read(new byte[1024]) > 0);
+            response.close();
+        }
+
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void keepAlive_largeUnreadBodyIsDisconnectedInsteadOfDrained() throws Exception {
+        mServer = new LocalHttpServer(okHandler(bytes(512 * 1024)));
+
+        FetchResponse response = mFetcher.fetch(mServer.url("/big"), null);
+        response.close();
+        FetchResponse next = mFetcher.fetch(mServer.url("/big"), null);
+        readAll(next.getBody());
+        next.close();
+
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    /**********************每个host的并发许可**********************/
+
+    @Test(timeout = 20 * 1000)
+    public void permits_releasedWhenServerDropsConnection() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return LocalHttpServer.Response.disconnect();
+            }
+        });
+
+        // 超过每个host的许可数量, 泄漏许可时后面的请求会一直阻塞
+        for (int i = 0; i < 12; i++) {
+            try {
+                mFetcher.fetch(mServer.url("/broken"), null);
+                fail("服务器断开连接时应该抛出异常");
+            } catch (IOException expected) {
+                // 预期的异常
+            }
+        }
+
+        mServer.setHandler(okHandler(bytes(10)));
+        FetchResponse response = mFetcher.fetch(mServer.url("/ok"), null);
+        assertEquals(200, response.getCode());
+        response.close();
+    }
+
+    @Test(timeout = 20 * 1000)
+    public void permits_releasedWhenErrorResponseIsClosed() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return new LocalHttpServer.Response(500).body(bytes(100));
+            }
+        });
+
+        for (int i = 0; i < 12; i++) {
+            FetchResponse response = mFetcher.fetch(mServer.url("/error"), null);
+            assertEquals(500, response.getCode());
+            assertFalse(response.isSuccessful());
+            response.close();
+        }
+        assertEquals(12, mFetcher.getFetchCount());
+    }
+
+    @Test(timeout = 20 * 1000)
+    public void permits_releasedWhenLargeBodyIsAbandoned() throws Exception {
+        mServer = new LocalHttpServer(okHandler(bytes(512 * 1024)));
+
+        for (int i = 0; i < 12; i++) {
+            mFetcher.fetch(mServer.url("/big"), null).close();
+        }
+        assertEquals(12, mFetcher.getFetchCount());
+    }
+
+    /**********************统计信息**********************/
+
+    @Test
+    public void statistics_countFetchesTimingAndBytes() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return new LocalHttpServer.Response(200).body(bytes(1000)).delay(100);
+            }
+        });
+
+        assertEquals(0, mFetcher.getFetchCount());
+        assertEquals(0, mFetcher.getAverageHeaderTime());
+
+        for (int i = 0; i < 3; i++) {
+            FetchResponse response = mFetcher.fetch(mServer.url("/slow"), null);
+            assertTrue(response.getHeaderTime() >= 90);
+            readAll(response.getBody());
+            response.close();
+        }
+
+        assertEquals(3, mFetcher.getFetchCount());
+        assertEquals(3000, mFetcher.getTotalBytes());
+        assertTrue(mFetcher.getAverageHeaderTime() >= 90);
+        assertTrue(mFetcher.getAverageFetchTime() >= mFetcher.getAverageHeaderTime());
+        String statistics = mFetcher.getStatistics();
+        assertTrue(statistics, statistics.contains("请求数:3"));
+        assertTrue(statistics, statistics.contains("总流量:2KB"));
+    }
+
+    @Test
+    public void statistics_recordedOnlyWhenBodyIsClosed() throws Exception {
+        mServer = new LocalHttpServer(okHandler(bytes(10)));
+
+        FetchResponse response = mFetcher.fetch(mServer.url("/a"), null);
+        assertEquals(0, mFetcher.getFetchCount());
+        response.close();
+        response.close();
+        assertEquals(1, mFetcher.getFetchCount());
+    }
+
+    /**********************重新验证和断点续传依赖的响应**********************/
+
+    @Test
+    public void revalidation_notModifiedKeepsValidatorsAndRefreshesExpiry() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                if (ETAG_V1.equals(request.header("If-None-Match"))) {
+                    return new LocalHttpServer.Response(304).header("Cache-Control", "max-age=60");
+                }
+                return new LocalHttpServer.Response(200).header("ETag", ETAG_V1).body(bytes(10));
+            }
+        });
+        long now = System.currentTimeMillis();
+        CacheMetadata stale = new CacheMetadata(ETAG_V1, "Fri, 01 Jan 2016 00:00:00 GMT", now - 1);
+        assertTrue(stale.isStale(now));
+
+        FetchResponse response = mFetcher.fetch(mServer.url("/avatar"), stale.conditionalHeaders());
+        assertEquals(304, response.getCode());
+        assertEquals(-1, response.getBody().read());
+        response.close();
+
+        LocalHttpServer.Request request = mServer.lastRequest();
+        assertEquals(ETAG_V1, request.header("If-None-Match"));
+        assertEquals("Fri, 01 Jan 2016 00:00:00 GMT", request.header("If-Modified-Since"));
+
+        CacheMetadata revalidated = stale.revalidate(response, now);
+        assertEquals(ETAG_V1, revalidated.etag);
+        assertEquals(stale.lastModified, revalidated.lastModified);
+        assertEquals(now + 60 * 1000, revalidated.expires);
+        assertFalse(revalidated.isStale(now));
+    }
+
+    @Test
+    public void resume_partialContentExposesRange() throws Exception {
+        final byte[] image = bytes(200);
+        mServer = new LocalHttpServer(rangeHandler(image, ETAG_V1));
+
+        FetchResponse response = mFetcher.fetch(mServer.url("/big"), rangeHeaders(100, ETAG_V1));
+        assertEquals(206, response.getCode());
+        assertTrue(response.isSuccessful());
+        assertEquals(100, response.getRangeStart());
+        assertEquals(200, response.getRangeTotal());
+        assertEquals(100, response.getContentLength());
+        assertArrayEquals(Arrays.copyOfRange(image, 100, 200), readAll(response.getBody()));
+        response.close();
+
+        LocalHttpServer.Request request = mServer.lastRequest();
+        assertEquals("bytes=100-", request.header("Range"));
+        assertEquals(ETAG_V1, request.header("If-Range"));
+    }
+
+    @Test
+    public void resume_ifRangeMismatchReturnsFullBody() throws Exception {
+        final byte[] image = bytes(200);
+        // 服务器上的图片已经变成了v2, 带着v1的If-Range请求会得到完整的200
+        mServer = new LocalHttpServer(rangeHandler(image, ETAG_V2));
+
+        FetchResponse response = mFetcher.fetch(mServer.url("/big"), rangeHeaders(100, ETAG_V1));
+        assertEquals(200, response.getCode());
+        assertEquals(-1, response.getRangeStart());
+        assertEquals(-1, response.getRangeTotal());
+        assertEquals(200, response.getContentLength());
+        assertEquals(ETAG_V2, response.getHeader("etag"));
+        assertTrue(response.isResumable());
+        assertArrayEquals(image, readAll(response.getBody()));
+        response.close();
+    }
+
+    @Test
+    public void resume_requiresStrongEtagRangesAndLength() {
+        assertTrue(responseWith("ETag", ETAG_V1, "Accept-Ranges", "bytes", "Content-Length", "10").isResumable());
+        assertFalse(responseWith("ETag", "W/" + ETAG_V1, "Accept-Ranges", "bytes", "Content-Length", "10").isResumable());
+        assertFalse(responseWith("ETag", ETAG_V1, "Accept-Ranges", "none", "Content-Length", "10").isResumable());
+        assertFalse(responseWith("ETag", ETAG_V1, "Accept-Ranges", "bytes").isResumable());
+        assertFalse(responseWith("Accept-Ranges", "bytes", "Content-Length", "10").isResumable());
+    }
+
+    @Test
+    public void contentRange_malformedValuesAreRejected() {
+        assertEquals(-1, responseWith("Content-Range", "items 1-2/3").getRangeStart());
+        assertEquals(-1, responseWith("Content-Range", "bytes x-2/3").getRangeStart());
+        assertEquals(-1, responseWith("Content-Range", "bytes 0-99/*").getRangeTotal());
+        assertEquals(0, responseWith("Content-Range", "bytes 0-99/*").getRangeStart());
+    }
+
+    /**********************工具方法**********************/
+
+    private static LocalHttpServer.Handler okHandler(final byte[] body) {
+        return new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return new LocalHttpServer.Response(200).body(body);
+            }
+        };
+    }
+
+    /**
+     * 支持If-Range的处理: 校验通过时返回206和请求的范围, 否则返回完整的200
+     */
+    private static LocalHttpServer.Handler rangeHandler(final byte[] image, final String currentEtag) {
+        return new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                String range = request.header("Range");
+                String ifRange = request.header("If-Range");
+                if (range != null && range.startsWith("bytes=") && range.endsWith("-")
+                        && (ifRange == null || currentEtag.equals(ifRange))) {
+                    int start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                    return new LocalHttpServer.Response(206)
+                            .header("ETag", currentEtag)
+                            .header("Accept-Ranges", "bytes")
+                            .header("Content-Range", "bytes " + start + "-" + (image.length - 1) + "/" + image.length)
+                            .body(Arrays.copyOfRange(image, start, image.length));
+                }
+                return new LocalHttpServer.Response(200)
+                        .header("ETag", currentEtag)
+                        .header("Accept-Ranges", "bytes")
+                        .body(image);
+            }
+        };
+    }
+
+    private static Map<String, String> rangeHeaders(long start, String etag) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Range", "bytes=" + start + "-");
+        headers.put("If-Range", etag);
+        return headers;
+    }
+
+    private static FetchResponse responseWith(String... nameValues) {
+        Map<String, List<String>> headers = new HashMap<>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            headers.put(nameValues[i], Collections.singletonList(nameValues[i + 1]));
+        }
+        return new FetchResponse(200, headers, null, 0);
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,136 @@
+package com.szysky.customize.siv.imgprocess;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link DiskLruCache}日志批量写入的效果. 不是单元测试, 在本机JVM上通过main()运行.
+ *
+ * 多个线程同时进行 编辑, 写入数据和元数据, 提交, 读取 的循环, 统计每秒提交的数量, 以及每次提交产生的写系统调用数量
+ * (读取/proc/self/io, 只在Linux上可用). 两种模式对比:
+ *
+ * 1. 批量写入: 日志记录积累之后一起写入文件
+ * 2. 每次提交之后flush(): 和批量写入之前一样, 每条日志记录都单独写入文件
+ *
+ * 文件系统的状态对单次结果影响很大, 两种模式交替运行多轮, 提交速度取中位数
+ *
+ * 参数: [缓存目录] [线程数] [每个线程的提交数] [每个条目的数据大小] [轮数]
+ */
+public class JournalCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "siv-journal-bench");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int perThread = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : 2 * 1024;
+        int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        // 预热一轮, 结果不计入
+        run(dir, threads, perThread / 4, size, false);
+        run(dir, threads, perThread / 4, size, true);
+
+        double[][] rates = new double[2][rounds];
+        double[] writes = new double[2];
+        for (int round = 0; round < rounds; round++) {
+            // 每一轮交换先后顺序
+            for (int i = 0; i < 2; i++) {
+                int mode = (round + i) % 2;
+                double[] result = run(dir, threads, perThread, size, mode == 1);
+                rates[mode][round] = result[0];
+                writes[mode] = result[1];
+            }
+        }
+
+        for (int mode = 0; mode < 2; mode++) {
+            Arrays.sort(rates[mode]);
+            System.out.printf("%-14s 线程:%d  提交:%d  中位数:%6.0f次提交/秒 (%.0f - %.0f)  %s%n",
+                    mode == 1 ? "每次提交flush" : "批量写入日志", threads, threads * perThread,
+                    rates[mode][rounds / 2], rates[mode][0], rates[mode][rounds - 1],
+                    writes[mode] < 0 ? "" : String.format("写系统调用: %.2f次/提交", writes[mode]));
+        }
+    }
+
+    /**
+     * @return 每秒提交的数量, 以及每次提交的写系统调用数量(无法统计时为-1)
+     */
+    private static double[] run(File dir, int threads, final int perThread, int size, final boolean flushEach) throws Exception {
+        dir.mkdirs();
+        DiskLruCache.deleteContents(dir);
+        final DiskLruCache cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE);
+        final byte[] data = new byte[size];
+        final AtomicInteger ids = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        long writesBefore = writeSyscalls();
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            String key = "entry" + ids.getAndIncrement();
+                            DiskLruCache.Editor editor = cache.edit(key);
+                            OutputStream out = new BufferedOutputStream(editor.newOutputStream(0), 8 * 1024);
+                            out.write(data);
+                            out.close();
+                            editor.set(1, "metadata");
+                            editor.commit();
+                            if (flushEach) {
+                                cache.flush();
+                            }
+                            cache.get(key).close();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long nanos = System.nanoTime() - start;
+        long writes = writeSyscalls() - writesBefore;
+        cache.close();
+        DiskLruCache.deleteContents(dir);
+
+        if (failures.get() > 0) {
+            throw new IllegalStateException("写入失败的线程数: " + failures.get());
+        }
+        int commits = threads * perThread;
+        return new double[]{commits / (nanos / 1e9), writesBefore < 0 ? -1 : (double) writes / commits};
+    }
+
+    /**
+     * 当前进程到目前为止的写系统调用次数
+     *
+     * @return 不是Linux或者无法读取时返回-1
+     */
+    private static long writeSyscalls() {
+        File io = new File("/proc/self/io");
+        if (!io.exists()) {
+            return -1;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(io))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("syscw:")) {
+                    return Long.parseLong(line.substring("syscw:".length()).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+}
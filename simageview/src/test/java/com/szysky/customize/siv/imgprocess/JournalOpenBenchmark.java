@@ -0,0 +1,85 @@
+package com.szysky.customize.siv.imgprocess;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * {@link DiskLruCache}使用文本日志和二进制日志时打开缓存的耗时对比. 不是单元测试, 在本机JVM上通过main()运行.
+ *
+ * 分别准备两个内容相同的缓存目录, 每个条目两个值, key和磁盘缓存一样是32位的十六进制字符串.
+ * 每一轮交替打开两种缓存并立即关闭, 只统计open()的耗时, 取中位数和最小值.
+ * 打开时读取日志并计算大小, 未知文件的清理在后台线程进行, 不计入
+ *
+ * 参数: [缓存目录] [条目数量] [轮数]
+ */
+public class JournalOpenBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        File root = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "siv-journal-open-bench");
+        int entries = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 9;
+
+        File textDir = new File(root, "text");
+        File binaryDir = new File(root, "binary");
+        prepare(textDir, entries, false);
+        prepare(binaryDir, entries, true);
+        System.out.printf("条目:%d  文本日志:%dKB  二进制快照:%dKB%n", entries,
+                new File(textDir, DiskLruCache.JOURNAL_FILE).length() / 1024,
+                new File(binaryDir, BinaryJournal.SNAPSHOT_FILE).length() / 1024);
+
+        // 预热, 结果不计入
+        open(textDir, false);
+        open(binaryDir, true);
+
+        double[] textMillis = new double[rounds];
+        double[] binaryMillis = new double[rounds];
+        for (int round = 0; round < rounds; round++) {
+            // 每一轮交换先后顺序
+            if (round % 2 == 0) {
+                textMillis[round] = open(textDir, false);
+                binaryMillis[round] = open(binaryDir, true);
+            } else {
+                binaryMillis[round] = open(binaryDir, true);
+                textMillis[round] = open(textDir, false);
+            }
+        }
+        Arrays.sort(textMillis);
+        Arrays.sort(binaryMillis);
+        System.out.printf("文本日志:   中位数 %6.1fms  最小 %6.1fms%n", textMillis[rounds / 2], textMillis[0]);
+        System.out.printf("二进制日志: 中位数 %6.1fms  最小 %6.1fms%n", binaryMillis[rounds / 2], binaryMillis[0]);
+
+        DiskLruCache.deleteContents(textDir);
+        DiskLruCache.deleteContents(binaryDir);
+    }
+
+    /**
+     * 创建有指定数量条目的缓存. 先使用文本日志写入, 需要二进制日志时在下次打开时迁移,
+     * 和已经使用中的缓存改为二进制日志时一样
+     */
+    private static void prepare(File dir, int entries, boolean binary) throws Exception {
+        dir.mkdirs();
+        DiskLruCache.deleteContents(dir);
+        DiskLruCache cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE);
+        for (int i = 0; i < entries; i++) {
+            DiskLruCache.Editor editor = cache.edit(String.format("%032x", i * 2654435761L));
+            editor.set(0, "data");
+            editor.set(1, "metadata");
+            editor.commit();
+        }
+        cache.close();
+        if (binary) {
+            DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, true).close();
+        }
+    }
+
+    /**
+     * @return open()的耗时, 单位毫秒
+     */
+    private static double open(File dir, boolean binary) throws Exception {
+        long start = System.nanoTime();
+        DiskLruCache cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, binary);
+        long nanos = System.nanoTime() - start;
+        cache.close();
+        return nanos / 1e6;
+    }
+}
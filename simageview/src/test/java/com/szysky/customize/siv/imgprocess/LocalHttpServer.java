@@ -0,0 +1,258 @@
+package com.szysky.customize.siv.imgprocess;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的本地HTTP服务器. 直接基于ServerSocket实现, 支持长连接,
+ * 可以统计建立的TCP连接数量, 用来验证连接是否被复用
+ */
+class LocalHttpServer implements Closeable {
+
+    /**
+     * 根据请求生成响应
+     */
+    interface Handler {
+        Response handle(Request request) throws IOException;
+    }
+
+    static class Request {
+        final String method;
+        final String path;
+        /** 请求头的名称统一为小写 */
+        final Map<String, String> headers;
+
+        Request(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+    }
+
+    static class Response {
+        final int code;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        byte[] body = new byte[0];
+        /** 发送响应头之前的延迟, 单位毫秒 */
+        long delayMillis;
+        /** 不返回任何数据直接断开连接 */
+        boolean disconnect;
+
+        Response(int code) {
+            this.code = code;
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        Response body(byte[] body) {
+            this.body = body;
+            return this;
+        }
+
+        Response delay(long millis) {
+            this.delayMillis = millis;
+            return this;
+        }
+
+        static Response disconnect() {
+            Response response = new Response(0);
+            response.disconnect = true;
+            return response;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final List<Request> mRequests = new CopyOnWriteArrayList<>();
+    private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+    private volatile Handler mHandler;
+
+    LocalHttpServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "LocalHttpServer-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    void setHandler(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * 已经接受的TCP连接数量
+     */
+    int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    List<Request> getRequests() {
+        return mRequests;
+    }
+
+    Request lastRequest() {
+        return mRequests.get(mRequests.size() - 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            mConnectionCount.incrementAndGet();
+            mSockets.add(socket);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "LocalHttpServer-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * 在一个连接上依次处理请求, 直到客户端关闭连接
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                Request request = readRequest(in);
+                if (request == null) {
+                    return;
+                }
+                mRequests.add(request);
+                Response response = mHandler.handle(request);
+                if (response.disconnect) {
+                    return;
+                }
+                if (response.delayMillis > 0) {
+                    Thread.sleep(response.delayMillis);
+                }
+                writeResponse(out, request, response);
+            }
+        } catch (IOException | InterruptedException e) {
+            // 连接已经断开
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty()) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        return new Request(parts[0], parts.length > 1 ? parts[1] : "/", headers);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static void writeResponse(OutputStream out, Request request, Response response) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.code).append(" ").append(reason(response.code)).append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        boolean hasBody = response.code != 304 && response.code != 204 && !"HEAD".equals(request.method);
+        if (hasBody) {
+            head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        }
+        head.append("Connection: keep-alive\r\n\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (hasBody) {
+            out.write(response.body);
+        }
+        out.flush();
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 206:
+                return "Partial Content";
+            case 304:
+                return "Not Modified";
+            case 404:
+                return "Not Found";
+            case 500:
+                return "Internal Server Error";
+            default:
+                return "Status";
+        }
+    }
+}
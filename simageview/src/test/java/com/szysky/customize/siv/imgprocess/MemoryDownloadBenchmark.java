@@ -0,0 +1,130 @@
+package com.szysky.customize.siv.imgprocess;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 网络未命中时, 下载完成到可以开始解码之间的耗时对比. 不是单元测试, 在本机JVM上通过main()运行:
+ *
+ * 1. 先写入磁盘再读取: 写入磁盘缓存并提交, 然后重新打开条目把数据完整读出来, 之前的做法
+ * 2. 内存交接: 数据放入等待写入的表, 写入磁盘交给后台线程, 解码直接使用内存中的数据
+ *
+ * 不包含BitmapFactory的解码时间, 两种做法的解码耗时相同. 数据结构和磁盘缓存的配置与{@link DefaultImageCache}一致
+ *
+ * 参数: [缓存目录] [每种大小的次数]
+ */
+public class MemoryDownloadBenchmark {
+
+    private static final int[] SIZES = {16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "siv-memory-download-bench");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        for (int size : SIZES) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            // 预热一轮, 结果不计入
+            diskRoundTrip(dir, data, iterations / 4);
+            memoryHandoff(dir, data, iterations / 4);
+
+            long diskNanos = diskRoundTrip(dir, data, iterations);
+            long memoryNanos = memoryHandoff(dir, data, iterations);
+            System.out.printf("%5dKB  先写入磁盘再读取: %7.1fus/次  内存交接: %6.1fus/次  每次未命中节省: %7.1fus%n",
+                    size / 1024, diskNanos / 1000.0 / iterations, memoryNanos / 1000.0 / iterations,
+                    (diskNanos - memoryNanos) / 1000.0 / iterations);
+        }
+    }
+
+    /**
+     * 之前的做法: 解码要等到数据提交到磁盘之后, 再从磁盘读出来
+     *
+     * @return 所有次数在关键路径上的总耗时, 单位纳秒
+     */
+    private static long diskRoundTrip(File dir, byte[] data, int iterations) throws IOException {
+        ShardedDiskLruCache cache = openCache(dir);
+        byte[] buffer = new byte[data.length];
+        long total = 0;
+        try {
+            for (int i = 0; i < iterations; i++) {
+                String key = "disk" + i;
+                long start = System.nanoTime();
+                write(cache, key, data);
+                DiskLruCache.Snapshot snapshot = cache.get(key);
+                InputStream in = snapshot.getInputStream(0);
+                int offset = 0;
+                int len;
+                while (offset < buffer.length && (len = in.read(buffer, offset, buffer.length - offset)) != -1) {
+                    offset += len;
+                }
+                snapshot.close();
+                total += System.nanoTime() - start;
+            }
+        } finally {
+            cache.delete();
+        }
+        return total;
+    }
+
+    /**
+     * 现在的做法: 关键路径上只有放入等待写入的表和提交后台任务, 写入磁盘的时间不计入, 但是所有写入完成之后才结束
+     *
+     * @return 所有次数在关键路径上的总耗时, 单位纳秒
+     */
+    private static long memoryHandoff(File dir, final byte[] data, int iterations) throws Exception {
+        final ShardedDiskLruCache cache = openCache(dir);
+        final ConcurrentHashMap<String, byte[]> pendingWrites = new ConcurrentHashMap<>();
+        ExecutorService diskExecutor = Executors.newFixedThreadPool(2);
+        long total = 0;
+        try {
+            for (int i = 0; i < iterations; i++) {
+                final String key = "memory" + i;
+                long start = System.nanoTime();
+                pendingWrites.put(key, data);
+                diskExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            write(cache, key, data);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        } finally {
+                            pendingWrites.remove(key, data);
+                        }
+                    }
+                });
+                if (pendingWrites.get(key) == null) {
+                    // 后台写入已经完成, 和之前一样从磁盘读取
+                    cache.get(key).close();
+                }
+                total += System.nanoTime() - start;
+            }
+            diskExecutor.shutdown();
+            diskExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } finally {
+            cache.delete();
+        }
+        return total;
+    }
+
+    private static ShardedDiskLruCache openCache(File dir) throws IOException {
+        return ShardedDiskLruCache.open(dir, 1, 2, 512L * 1024 * 1024, 4, false);
+    }
+
+    private static void write(ShardedDiskLruCache cache, String key, byte[] data) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        OutputStream out = new BufferedOutputStream(editor.newOutputStream(0), 8 * 1024);
+        out.write(data);
+        out.close();
+        editor.set(1, "metadata");
+        editor.commit();
+    }
+}
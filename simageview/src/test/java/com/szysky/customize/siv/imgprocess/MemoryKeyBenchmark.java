@@ -0,0 +1,113 @@
+package com.szysky.customize.siv.imgprocess;
+
+import android.util.LruCache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 控件绑定图片时在主线程查询内存缓存的耗时对比. 不是单元测试, 通过main()运行:
+ *
+ * 1. MD5字符串: 之前的做法, 每次查询通过keyFormUrlAndWH()把地址和宽高拼接之后计算MD5, 再转换成十六进制字符串
+ * 2. {@link MemoryKey}: 通过{@link MemoryKey#probe(String, int, int, int)}获得线程内复用的key, 没有额外的计算和内存分配
+ *
+ * 两种key都在{@link LruCache}中查询, 每次查询不同的地址, 和滑动列表时每次绑定不同的图片一样.
+ * 缓存中的key数量和内存缓存中常见的数量相当. 需要可以运行的LruCache(设备上, 或者本机JVM上使用和AOSP相同实现的LruCache)
+ *
+ * 参数: [查询次数]
+ */
+public class MemoryKeyBenchmark {
+
+    private static final int CACHED_KEYS = 200;
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 240;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < CACHED_KEYS; i++) {
+            urls.add("http://img.example.com/avatar/2016/12/" + i + "_640x640_q85.jpg?token=7f3a9c2e81b4d6f0");
+        }
+        LruCache<String, Object> stringCache = new LruCache<>(CACHED_KEYS * 2);
+        LruCache<MemoryKey, Object> keyCache = new LruCache<>(CACHED_KEYS * 2);
+        for (String url : urls) {
+            stringCache.put(keyFormUrlAndWH(url, WIDTH, HEIGHT), url);
+            keyCache.put(new MemoryKey(url, WIDTH, HEIGHT, MemoryKey.TRANSFORM_NONE), url);
+        }
+
+        // 预热, 结果不计入
+        lookupStrings(stringCache, urls, iterations / 4);
+        lookupKeys(keyCache, urls, iterations / 4);
+
+        long stringNanos = lookupStrings(stringCache, urls, iterations);
+        long keyNanos = lookupKeys(keyCache, urls, iterations);
+        System.out.printf("MD5字符串: %6.0fns/次  MemoryKey: %5.0fns/次%n",
+                (double) stringNanos / iterations, (double) keyNanos / iterations);
+    }
+
+    private static long lookupStrings(LruCache<String, Object> cache, List<String> urls, int iterations) {
+        int hits = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (cache.get(keyFormUrlAndWH(urls.get(i % urls.size()), WIDTH, HEIGHT)) != null) {
+                hits++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        check(hits, iterations);
+        return nanos;
+    }
+
+    private static long lookupKeys(LruCache<MemoryKey, Object> cache, List<String> urls, int iterations) {
+        int hits = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (cache.get(MemoryKey.probe(urls.get(i % urls.size()), WIDTH, HEIGHT, MemoryKey.TRANSFORM_NONE)) != null) {
+                hits++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        check(hits, iterations);
+        return nanos;
+    }
+
+    private static void check(int hits, int iterations) {
+        if (hits != iterations) {
+            throw new IllegalStateException("查询结果不正确: " + hits + "/" + iterations);
+        }
+    }
+
+    /**
+     * 之前DefaultImageCache.keyFormUrlAndWH()的实现
+     */
+    private static String keyFormUrlAndWH(String url, int reqWidth, int reqHeight) {
+        String cacheKey;
+        try {
+            if (!(reqHeight == 0 || reqWidth == 0)) {
+                int marker = reqWidth * 17 + reqHeight * 31;
+                url += marker;
+            }
+            MessageDigest mDigest = MessageDigest.getInstance("MD5");
+            mDigest.update(url.getBytes());
+            cacheKey = bytesToHexString(mDigest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            cacheKey = String.valueOf(url.hashCode());
+        }
+        return cacheKey;
+    }
+
+    private static String bytesToHexString(byte[] bytes) {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            String hex = Integer.toHexString(0xFF & bytes[i]);
+            if (hex.length() == 1) {
+                stringBuilder.append('0');
+            }
+            stringBuilder.append(hex);
+        }
+        return stringBuilder.toString();
+    }
+}
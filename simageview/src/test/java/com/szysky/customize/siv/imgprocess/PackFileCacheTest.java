@@ -0,0 +1,245 @@
+package com.szysky.customize.siv.imgprocess;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link PackFileCache}的测试
+ */
+public class PackFileCacheTest {
+
+    private static final long MAX_SIZE = 8 * 1024 * 1024;
+    private static final int KEYS = 400;
+
+    private File mDir;
+    private PackFileCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("pack", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mCache != null) {
+            mCache.close();
+        }
+        DiskLruCache.deleteContents(mDir);
+        mDir.delete();
+    }
+
+    @Test
+    public void valuesAreReadableAfterReopen() throws Exception {
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        for (int i = 0; i < 20; i++) {
+            mCache.put("key" + i, values(0, i));
+        }
+        mCache.close();
+
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        for (int i = 0; i < 20; i++) {
+            assertValues(0, i, mCache.get("key" + i));
+        }
+    }
+
+    /**
+     * 整理在后台读取旧段中的记录时, 同一个key不断被新的值替换. 整理不能把其他位置的内容移动过去,
+     * 重新打开之后也不能出现之前的值
+     */
+    @Test
+    public void overwriteDuringCompaction_keepsLatestValues() throws Exception {
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        int rounds = 12;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < KEYS; i++) {
+                mCache.put("key" + i, values(round, i));
+            }
+            for (int i = 0; i < KEYS; i++) {
+                assertValues(round, i, mCache.get("key" + i));
+            }
+        }
+        awaitCompaction(mCache);
+        assertTrue("应该已经整理掉了最旧的段", !new File(mDir, PackFileCache.SEGMENT_FILE_PREFIX + 0).exists());
+        for (int i = 0; i < KEYS; i++) {
+            assertValues(rounds - 1, i, mCache.get("key" + i));
+        }
+        mCache.close();
+
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        for (int i = 0; i < KEYS; i++) {
+            assertValues(rounds - 1, i, mCache.get("key" + i));
+        }
+    }
+
+    /**
+     * 整理进行中关闭缓存, 已经移动的和没有移动的记录重新打开之后都是最新的值
+     */
+    @Test
+    public void closeWhileCompacting_reopensWithLatestValues() throws Exception {
+        for (int attempt = 0; attempt < 5; attempt++) {
+            mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+            int round = attempt * 3;
+            for (int r = round; r < round + 3; r++) {
+                for (int i = 0; i < KEYS; i++) {
+                    mCache.put("key" + i, values(r, i));
+                }
+            }
+            mCache.close();
+            try {
+                mCache.get("key0");
+                fail("关闭之后不能再读取");
+            } catch (IllegalStateException expected) {
+            }
+            // 等待整理线程发现已经关闭并退出
+            awaitCompaction(mCache);
+
+            mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+            for (int i = 0; i < KEYS; i++) {
+                assertValues(round + 2, i, mCache.get("key" + i));
+            }
+            mCache.close();
+        }
+    }
+
+    @Test
+    public void removedKeysStayRemovedAfterReopen() throws Exception {
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        mCache.put("a", values(0, 0));
+        mCache.put("b", values(0, 1));
+        assertTrue(mCache.remove("a"));
+        assertFalse(mCache.remove("a"));
+        assertNull(mCache.get("a"));
+        mCache.close();
+
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        assertFalse(mCache.contains("a"));
+        assertNull(mCache.get("a"));
+        assertValues(0, 1, mCache.get("b"));
+
+        // 删除之后重新写入
+        mCache.put("a", values(1, 0));
+        mCache.close();
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        assertValues(1, 0, mCache.get("a"));
+    }
+
+    /**
+     * 写入时进程退出, 段文件末尾只有半条记录. 重新打开时截掉不完整的部分, 之前的记录不受影响
+     */
+    @Test
+    public void tornTail_isTruncatedOnOpen() throws Exception {
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        mCache.put("a", values(0, 0));
+        mCache.put("b", values(0, 1));
+        mCache.close();
+
+        File segment = new File(mDir, PackFileCache.SEGMENT_FILE_PREFIX + 0);
+        long complete = segment.length();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(complete - 10);
+        file.close();
+        long torn = segment.length();
+
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        assertValues(0, 0, mCache.get("a"));
+        assertNull(mCache.get("b"));
+        assertTrue(segment.length() < torn);
+
+        // 截掉之后继续追加的记录可以正常读取
+        mCache.put("c", values(0, 2));
+        mCache.close();
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        assertValues(0, 0, mCache.get("a"));
+        assertNull(mCache.get("b"));
+        assertValues(0, 2, mCache.get("c"));
+    }
+
+    /**
+     * 记录的内容被破坏时, 从这条记录开始截掉
+     */
+    @Test
+    public void corruptRecord_isTruncatedOnOpen() throws Exception {
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        mCache.put("a", values(0, 0));
+        mCache.close();
+        File segment = new File(mDir, PackFileCache.SEGMENT_FILE_PREFIX + 0);
+        long first = segment.length();
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        mCache.put("b", values(0, 1));
+        mCache.close();
+
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(first + 100);
+        file.write(file.read() ^ 0xff);
+        file.close();
+
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        assertValues(0, 0, mCache.get("a"));
+        assertNull(mCache.get("b"));
+        assertEquals(first, segment.length());
+    }
+
+    /**
+     * 只读取一个值时, 返回的内容和整条记录中的一致, 并且得到每个值的长度
+     */
+    @Test
+    public void singleValue_matchesWholeRecord() throws Exception {
+        mCache = PackFileCache.open(mDir, 2, MAX_SIZE);
+        for (int i = 0; i < 20; i++) {
+            mCache.put("key" + i, values(0, i));
+        }
+        mCache.put("key3", values(1, 3));
+        mCache.remove("key5");
+
+        for (int i = 0; i < 20; i++) {
+            int[] lengths = new int[2];
+            byte[] metadata = mCache.get("key" + i, 1, lengths);
+            if (i == 5) {
+                assertNull(metadata);
+                continue;
+            }
+            byte[][] expected = values(i == 3 ? 1 : 0, i);
+            assertEquals(new String(expected[1]), new String(metadata));
+            assertEquals(expected[0].length, lengths[0]);
+            assertEquals(expected[1].length, lengths[1]);
+            assertTrue(Arrays.equals(expected[0], mCache.get("key" + i, 0, null)));
+        }
+        assertNull(mCache.get("missing", 1, null));
+    }
+
+    private static void awaitCompaction(PackFileCache cache) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (cache.isCompacting() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse("整理没有在规定时间内结束", cache.isCompacting());
+    }
+
+    /**
+     * 每一轮每个key的值都不同, 大小在2KB到20KB之间
+     */
+    private static byte[][] values(int round, int index) {
+        Random random = new Random(round * 100003L + index);
+        byte[] data = new byte[2 * 1024 + random.nextInt(18 * 1024)];
+        random.nextBytes(data);
+        return new byte[][]{data, ("round" + round + "_" + index).getBytes()};
+    }
+
+    private static void assertValues(int round, int index, byte[][] actual) {
+        assertNotNull("key" + index + "不存在", actual);
+        byte[][] expected = values(round, index);
+        assertEquals(expected.length, actual.length);
+        assertEquals(new String(expected[1]), new String(actual[1]));
+        assertTrue("key" + index + "的数据不是第" + round + "轮的值", Arrays.equals(expected[0], actual[0]));
+    }
+}
@@ -0,0 +1,59 @@
+package com.szysky.customize.siv.imgprocess;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ProcessedKey}的测试
+ */
+public class ProcessedKeyTest {
+
+    private static final List<String> URLS = Arrays.asList("http://img.example.com/a.jpg", "http://img.example.com/b.jpg");
+
+    @Test
+    public void equalParts_equalKeys() {
+        ProcessedKey key = new ProcessedKey(String.class, "circle", Integer.class, 200, 100, URLS);
+        ProcessedKey same = new ProcessedKey(String.class, "circle", Integer.class, 200, 100, new ArrayList<>(URLS));
+
+        assertEquals(key, same);
+        assertEquals(key.hashCode(), same.hashCode());
+    }
+
+    @Test
+    public void anyDifferentPart_differentKeys() {
+        ProcessedKey key = new ProcessedKey(String.class, "circle", Integer.class, 200, 100, URLS);
+
+        assertNotEquals(key, new ProcessedKey(Long.class, "circle", Integer.class, 200, 100, URLS));
+        assertNotEquals(key, new ProcessedKey(String.class, "round", Integer.class, 200, 100, URLS));
+        assertNotEquals(key, new ProcessedKey(String.class, "circle", null, 200, 100, URLS));
+        assertNotEquals(key, new ProcessedKey(String.class, "circle", Integer.class, 100, 200, URLS));
+        assertNotEquals(key, new ProcessedKey(String.class, "circle", Integer.class, 200, 100,
+                Arrays.asList(URLS.get(1), URLS.get(0))));
+    }
+
+    @Test
+    public void laterChangesToUrlList_doNotAffectKey() {
+        List<String> urls = new ArrayList<>(URLS);
+        ProcessedKey key = new ProcessedKey(String.class, "circle", null, 200, 100, urls);
+        urls.set(0, "http://img.example.com/c.jpg");
+
+        assertEquals(new ProcessedKey(String.class, "circle", null, 200, 100, URLS), key);
+    }
+
+    /**
+     * 文本形式是磁盘缓存中处理结果的key, 格式改变会让已经保存的处理结果全部失效
+     */
+    @Test
+    public void toString_keepsDiskKeyFormat() {
+        assertEquals("transform:java.lang.String|circle|200x100|http://img.example.com/a.jpg",
+                new ProcessedKey(String.class, "circle", null, 200, 100, URLS.subList(0, 1)).toString());
+        assertEquals("composite:java.lang.String|circle|java.lang.Integer|200x100"
+                        + "|http://img.example.com/a.jpg|http://img.example.com/b.jpg",
+                new ProcessedKey(String.class, "circle", Integer.class, 200, 100, URLS).toString());
+    }
+}
@@ -0,0 +1,144 @@
+package com.szysky.customize.siv.imgprocess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多个线程同时读取磁盘缓存时, 一个{@link DiskLruCache}和{@link ShardedDiskLruCache}的吞吐量对比.
+ * 不是单元测试, 在本机JVM上通过main()运行.
+ *
+ * 每个线程在固定时间内不断打开条目, 读完数据并关闭. 一个DiskLruCache的get()都在同一把锁上,
+ * 分片之后只有相同分片的读取会互相等待. 分片的收益需要多核, 单核的机器上只能看出分片本身有没有额外的开销.
+ * 两种缓存交替运行多轮, 取中位数
+ *
+ * 参数: [缓存目录] [条目数量] [每个条目的数据大小] [每次运行的毫秒数] [轮数]
+ */
+public class ShardScalingBenchmark {
+
+    private static final int SHARD_COUNT = 4;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    /**
+     * 两种缓存相同的读取方式
+     */
+    private interface Reader {
+        DiskLruCache.Snapshot get(String key) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File root = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "siv-shard-bench");
+        int entries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 16 * 1024;
+        long millis = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+        int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+        File singleDir = new File(root, "single");
+        File shardedDir = new File(root, "sharded");
+        singleDir.mkdirs();
+        shardedDir.mkdirs();
+        DiskLruCache.deleteContents(singleDir);
+        DiskLruCache.deleteContents(shardedDir);
+        final DiskLruCache single = DiskLruCache.open(singleDir, 1, 1, Long.MAX_VALUE);
+        final ShardedDiskLruCache sharded = ShardedDiskLruCache.open(shardedDir, 1, 1, Long.MAX_VALUE, SHARD_COUNT, false);
+
+        String[] keys = new String[entries];
+        byte[] data = new byte[size];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = "entry" + i;
+            write(single.edit(keys[i]), data);
+            write(sharded.edit(keys[i]), data);
+        }
+
+        Reader singleReader = new Reader() {
+            @Override
+            public DiskLruCache.Snapshot get(String key) throws IOException {
+                return single.get(key);
+            }
+        };
+        Reader shardedReader = new Reader() {
+            @Override
+            public DiskLruCache.Snapshot get(String key) throws IOException {
+                return sharded.get(key);
+            }
+        };
+
+        System.out.println("CPU数量: " + Runtime.getRuntime().availableProcessors());
+        // 预热, 结果不计入
+        read(singleReader, keys, 1, millis / 2);
+        read(shardedReader, keys, 1, millis / 2);
+
+        for (int threads : THREAD_COUNTS) {
+            double[] singleRates = new double[rounds];
+            double[] shardedRates = new double[rounds];
+            for (int round = 0; round < rounds; round++) {
+                // 每一轮交换先后顺序
+                if (round % 2 == 0) {
+                    singleRates[round] = read(singleReader, keys, threads, millis);
+                    shardedRates[round] = read(shardedReader, keys, threads, millis);
+                } else {
+                    shardedRates[round] = read(shardedReader, keys, threads, millis);
+                    singleRates[round] = read(singleReader, keys, threads, millis);
+                }
+            }
+            Arrays.sort(singleRates);
+            Arrays.sort(shardedRates);
+            System.out.printf("线程:%d  一个DiskLruCache: %7.0f次读取/秒  %d个分片: %7.0f次读取/秒%n",
+                    threads, singleRates[rounds / 2], SHARD_COUNT, shardedRates[rounds / 2]);
+        }
+
+        single.delete();
+        sharded.delete();
+    }
+
+    private static void write(DiskLruCache.Editor editor, byte[] data) throws IOException {
+        OutputStream out = editor.newOutputStream(0);
+        out.write(data);
+        out.close();
+        editor.commit();
+    }
+
+    /**
+     * @return 每秒读取的条目数量
+     */
+    private static double read(final Reader reader, final String[] keys, int threads, long millis) throws Exception {
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final long end = System.nanoTime() + millis * 1000000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * 97;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[8 * 1024];
+                    int i = offset;
+                    try {
+                        while (System.nanoTime() < end) {
+                            DiskLruCache.Snapshot snapshot = reader.get(keys[i++ % keys.length]);
+                            InputStream in = snapshot.getInputStream(0);
+                            while (in.read(buffer) != -1) {
+                                // 读完数据
+                            }
+                            snapshot.close();
+                            reads.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failures.get() > 0) {
+            throw new IllegalStateException("读取失败的线程数: " + failures.get());
+        }
+        return reads.get() * 1000.0 / millis;
+    }
+}
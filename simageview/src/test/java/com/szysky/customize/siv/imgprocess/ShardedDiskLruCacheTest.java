@@ -0,0 +1,96 @@
+package com.szysky.customize.siv.imgprocess;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ShardedDiskLruCache}的测试
+ */
+public class ShardedDiskLruCacheTest {
+
+    private File mDir;
+    private ShardedDiskLruCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("sharded", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mCache != null) {
+            mCache.close();
+        }
+        DiskLruCache.deleteContents(mDir);
+        mDir.delete();
+    }
+
+    @Test
+    public void keysAreReadableAfterReopen() throws Exception {
+        mCache = ShardedDiskLruCache.open(mDir, 1, 1, 1024 * 1024, 4, false);
+        for (int i = 0; i < 20; i++) {
+            put(mCache, "key" + i, "value" + i);
+        }
+        mCache.close();
+
+        mCache = ShardedDiskLruCache.open(mDir, 1, 1, 1024 * 1024, 4, false);
+        for (int i = 0; i < 20; i++) {
+            DiskLruCache.Snapshot snapshot = mCache.get("key" + i);
+            assertEquals("value" + i, snapshot.getString(0));
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void staleLayoutIsDeletedButOtherDataIsKept() throws Exception {
+        // 没有分片时的日志和缓存文件, 以及分片数量不同时的分片目录
+        File journal = touch(new File(mDir, "journal"));
+        File entry = touch(new File(mDir, "0cc175b9c0f1b6a831c399e269772661.0"));
+        File dirty = touch(new File(mDir, "0cc175b9c0f1b6a831c399e269772661.1.tmp"));
+        File oldShard = new File(mDir, ShardedDiskLruCache.SHARD_DIR_PREFIX + "2.0");
+        touch(new File(oldShard, "journal"));
+        // 根目录下其他的数据
+        File otherDir = new File(mDir, "partial");
+        File otherDirFile = touch(new File(otherDir, "download.part"));
+        File otherFile = touch(new File(mDir, "settings.json"));
+
+        mCache = ShardedDiskLruCache.open(mDir, 1, 1, 1024 * 1024, 4, false);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((journal.exists() || entry.exists() || dirty.exists() || oldShard.exists())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(journal.exists());
+        assertFalse(entry.exists());
+        assertFalse(dirty.exists());
+        assertFalse(oldShard.exists());
+        assertTrue(otherDirFile.exists());
+        assertTrue(otherFile.exists());
+        assertTrue(new File(mDir, ShardedDiskLruCache.SHARD_DIR_PREFIX + "4.0").isDirectory());
+    }
+
+    private static void put(ShardedDiskLruCache cache, String key, String value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static File touch(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        out.write(1);
+        out.close();
+        return file;
+    }
+}